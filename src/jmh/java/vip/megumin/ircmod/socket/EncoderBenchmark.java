@@ -0,0 +1,56 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Outbound encoding: the chat frame built by {@link SocketChat#buildChatPayload} and the join frame sent on connect.
+ *
+ * @author haipi
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+    @Param({"short", "long", "escaped"})
+    public String text;
+
+    private String message;
+    private SocketChat chat;
+    private FrameEncoder encoder;
+
+    @Setup
+    public void setup() {
+        message = switch (text) {
+            case "long" -> "x".repeat(150);
+            case "escaped" -> "she said \"meet at spawn\"\\n\tthen 日本語\u2028done";
+            default -> "gg";
+        };
+        chat = new SocketChat("wss://localhost/chat-ws", "bench", "bench", "");
+        encoder = new FrameEncoder();
+    }
+
+    @Benchmark
+    public String chatPayload() {
+        return chat.buildChatPayload(message);
+    }
+
+    @Benchmark
+    public String joinPayload() {
+        return encoder.join("mc-irc-mod-2026", "Steve_3", "hunter2");
+    }
+}
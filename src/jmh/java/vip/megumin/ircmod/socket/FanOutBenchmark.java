@@ -0,0 +1,56 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One chat frame delivered to a growing number of listeners held in {@link ListenerFanOut}'s
+ * {@code CopyOnWriteArrayList}, dispatched inline.
+ *
+ * @author haipi
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1", "4", "16"})
+    public int listeners;
+
+    private SocketChat chat;
+    private String frame;
+    private int sink;
+
+    @Setup
+    public void setup() {
+        chat = new SocketChat("wss://localhost/chat-ws", "bench", "bench", "");
+        for (int i = 0; i < listeners; i++) {
+            chat.addListener(new SocketChatListener() {
+                @Override
+                public void onMessage(SocketReceivedPacketEvent event) {
+                    sink += event.text().length();
+                }
+            });
+        }
+        frame = Frames.chat("Alice", "anyone on the smp right now?");
+    }
+
+    @Benchmark
+    public int fanOut() {
+        chat.handlePayload(frame);
+        return sink;
+    }
+}
@@ -0,0 +1,92 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Server frames shaped like hack.chat's, with the extra fields (userid, trip, level, time, ...) it really sends.
+ *
+ * @author haipi
+ */
+
+final class Frames {
+    private static final String[] NICKS = {"Alice", "bob_", "Carol99", "dave", "EveTheGreat", "frank", "grace_h", "heidi"};
+    private static final String[] TEXTS = {
+            "hi",
+            "anyone on the smp right now?",
+            "coords for the mesa base: -1243 72 8830",
+            "gg",
+            "the \"quoted\" part has a \\ backslash and a tab\there",
+            "日本語のメッセージもよく流れてくる",
+            "a longer message that someone pasted into chat, running well past the usual length of a quick reply so the "
+                    + "decoder has to walk a bigger string",
+    };
+
+    private Frames() {
+    }
+
+    static String chat(String nick, String text) {
+        return "{\"cmd\":\"chat\",\"nick\":\"" + nick + "\",\"uType\":\"user\",\"userid\":4021937,\"channel\":\"mc-irc-mod-2026\","
+                + "\"text\":\"" + escape(text) + "\",\"level\":100,\"trip\":\"Xy12Ab\",\"time\":1760000000000}";
+    }
+
+    static String info(String text) {
+        return "{\"cmd\":\"info\",\"text\":\"" + escape(text) + "\",\"channel\":\"mc-irc-mod-2026\",\"time\":1760000000000}";
+    }
+
+    static String warn(String text) {
+        return "{\"cmd\":\"warn\",\"text\":\"" + escape(text) + "\",\"channel\":\"mc-irc-mod-2026\",\"time\":1760000000000}";
+    }
+
+    static String onlineAdd(String nick) {
+        return "{\"cmd\":\"onlineAdd\",\"nick\":\"" + nick + "\",\"trip\":\"\",\"uType\":\"user\",\"hash\":\"a8Kd3nQw\","
+                + "\"level\":100,\"userid\":4021937,\"isBot\":false,\"color\":false,\"channel\":\"mc-irc-mod-2026\",\"time\":1760000000000}";
+    }
+
+    static String onlineRemove(String nick) {
+        return "{\"cmd\":\"onlineRemove\",\"userid\":4021937,\"nick\":\"" + nick + "\",\"channel\":\"mc-irc-mod-2026\",\"time\":1760000000000}";
+    }
+
+    static String onlineSet(int count) {
+        StringBuilder nicks = new StringBuilder();
+        StringBuilder users = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String nick = NICKS[i % NICKS.length] + i;
+            nicks.append(i == 0 ? "" : ",").append('"').append(nick).append('"');
+            users.append(i == 0 ? "" : ",").append("{\"channel\":\"mc-irc-mod-2026\",\"isme\":false,\"nick\":\"")
+                    .append(nick).append("\",\"trip\":\"\",\"uType\":\"user\",\"hash\":\"a8Kd3nQw\",\"level\":100,")
+                    .append("\"userid\":").append(1000 + i).append(",\"isBot\":false,\"color\":false}");
+        }
+        return "{\"cmd\":\"onlineSet\",\"nicks\":[" + nicks + "],\"users\":[" + users + "],\"channel\":\"mc-irc-mod-2026\","
+                + "\"time\":1760000000000}";
+    }
+
+    /**
+     * @param mix {@code chat} (chat only), {@code mixed} (mostly chat with joins, leaves, info and warnings) or
+     *            {@code presence} (join/leave churn plus a full online list)
+     */
+    static String[] mix(String mix, int size, long seed) {
+        Random random = new Random(seed);
+        List<String> out = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String nick = NICKS[random.nextInt(NICKS.length)];
+            String text = TEXTS[random.nextInt(TEXTS.length)];
+            int roll = random.nextInt(100);
+            switch (mix) {
+                case "chat" -> out.add(chat(nick, text));
+                case "presence" -> out.add(roll < 45 ? onlineAdd(nick) : roll < 90 ? onlineRemove(nick) : onlineSet(40));
+                default -> out.add(roll < 80 ? chat(nick, text)
+                        : roll < 88 ? onlineAdd(nick)
+                        : roll < 96 ? onlineRemove(nick)
+                        : roll < 99 ? info("You are now " + nick)
+                        : warn("You are sending too much text. Wait a moment and try again."));
+            }
+        }
+        return out.toArray(new String[0]);
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\t", "\\t");
+    }
+}
@@ -0,0 +1,56 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Nick handling used on every join and nick retry.
+ *
+ * @author haipi
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NickBenchmark {
+    public String cleanNick = "Steve_123";
+    public String dirtyNick = "  §aSteve-the.Builder!! 日本 ";
+    public String inUseWarning = "Nickname taken";
+    public String otherWarning = "You are joining channels too fast. Wait a moment and try again.";
+
+    @Benchmark
+    public String sanitizeClean() {
+        return SocketChat.sanitizeNick(cleanNick);
+    }
+
+    @Benchmark
+    public String sanitizeDirty() {
+        return SocketChat.sanitizeNick(dirtyNick);
+    }
+
+    @Benchmark
+    public String buildNickRetry() {
+        return SocketChat.buildNick(dirtyNick, 7);
+    }
+
+    @Benchmark
+    public boolean nickInUseHit() {
+        return SocketChat.isNickInUseWarning(inUseWarning);
+    }
+
+    @Benchmark
+    public boolean nickInUseMiss() {
+        return SocketChat.isNickInUseWarning(otherWarning);
+    }
+}
@@ -0,0 +1,103 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inbound path: {@link PayloadDecoder} alone, and {@link SocketChat#handlePayload} including roster updates and one
+ * listener.
+ *
+ * @author haipi
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"chat", "mixed", "presence"})
+    public String mix;
+
+    private String[] frames;
+    private int next;
+    private SocketChat chat;
+    private PayloadDecoder.Handler handler;
+    private int sink;
+
+    @Setup
+    public void setup() {
+        frames = Frames.mix(mix, FRAMES, 42L);
+        chat = new SocketChat("wss://localhost/chat-ws", "bench", "bench", "");
+        chat.addListener(new SocketChatListener() {
+            @Override
+            public void onMessage(SocketReceivedPacketEvent event) {
+                sink += event.text().length();
+            }
+        });
+        handler = new PayloadDecoder.Handler() {
+            @Override
+            public void onChat(String nick, String text) {
+                sink += nick.length();
+                sink += text.length();
+            }
+
+            @Override
+            public void onInfo(String text) {
+                sink += text.length();
+            }
+
+            @Override
+            public void onWarn(String text) {
+                sink += text.length();
+            }
+
+            @Override
+            public void onOnlineSet(List<String> nicks) {
+                sink += nicks.size();
+            }
+
+            @Override
+            public void onOnlineAdd(String nick) {
+                sink += nick.length();
+            }
+
+            @Override
+            public void onOnlineRemove(String nick) {
+                sink += nick.length();
+            }
+        };
+    }
+
+    private String nextFrame() {
+        String frame = frames[next];
+        next = (next + 1) & (FRAMES - 1);
+        return frame;
+    }
+
+    @Benchmark
+    public int decode() {
+        PayloadDecoder.decode(nextFrame(), handler);
+        return sink;
+    }
+
+    @Benchmark
+    public int handlePayload() {
+        chat.handlePayload(nextFrame());
+        return sink;
+    }
+}
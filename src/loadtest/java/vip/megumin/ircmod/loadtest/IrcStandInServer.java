@@ -0,0 +1,553 @@
+package vip.megumin.ircmod.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A local stand-in for an IRC server, enough of RFC 1459/2812 for {@code IrcChat}: {@code PASS}, {@code NICK},
+ * {@code USER}, {@code PING}/{@code PONG}, {@code JOIN}, {@code PART}, {@code PRIVMSG} and {@code QUIT}, the
+ * welcome, names and nick-in-use numerics, and {@code JOIN}/{@code PART}/{@code QUIT} relays to channel members.
+ * Like many real servers it pings each client during registration and only welcomes it once answered. Chat is rate
+ * limited per connection, and a client over the limit is disconnected with {@code ERROR :Closing Link (Excess Flood)}
+ * the way ircd does. With an {@link SSLContext} it serves {@code ircs://} instead.
+ * <p>
+ * One blocking thread per connection; relays format the line once and write it to every member.
+ *
+ * @author haipi
+ */
+
+public final class IrcStandInServer implements Closeable {
+    private static final String SERVER_NAME = "standin.local";
+    private static final Pattern NICK_ALLOWED =
+            Pattern.compile("^[A-Za-z\\[\\]\\\\`_^{|}][A-Za-z0-9\\[\\]\\\\`_^{|}-]{0,29}$");
+    private static final int MAX_LINE_BYTES = 8192 + 512;
+
+    private final ServerSocket serverSocket;
+    private final boolean tls;
+    private final double chatPerSecond;
+    private final double chatBurst;
+    private final ExecutorService workers;
+    private final Map<String, Connection> nicks = new ConcurrentHashMap<>();
+    private final Map<String, Set<Connection>> channels = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * @param port          port to listen on, or {@code 0} for any free port
+     * @param chatPerSecond sustained messages each connection may send; {@code 0} disables the limit
+     * @param chatBurst     messages a connection may send back to back before the limit applies
+     * @param tls           serves TLS with this context's key material; {@code null} for plain text
+     */
+    public IrcStandInServer(int port, double chatPerSecond, int chatBurst, SSLContext tls) throws IOException {
+        this.serverSocket = tls != null ? tls.getServerSocketFactory().createServerSocket() : new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        this.tls = tls != null;
+        this.chatPerSecond = chatPerSecond;
+        this.chatBurst = Math.max(1, chatBurst);
+        AtomicInteger ids = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "IrcStandIn-" + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * {@code --port 6667 --rate 2 --burst 10}; add {@code --keystore file.p12 --storepass secret} to serve TLS.
+     */
+    public static void main(String[] args) throws Exception {
+        Args parsed = Args.parse(args);
+        String keystore = parsed.string("keystore", null);
+        SSLContext tls = keystore == null ? null : serverContext(Path.of(keystore),
+                parsed.string("storepass", "changeit").toCharArray());
+        int defaultPort = tls == null ? 6667 : 6697;
+        try (IrcStandInServer server = new IrcStandInServer(parsed.intValue("port", defaultPort),
+                parsed.doubleValue("rate", 2.0), parsed.intValue("burst", 10), tls)) {
+            server.start();
+            System.out.println("Stand-in IRC server on " + server.getUri());
+            Thread.currentThread().join();
+        }
+    }
+
+    /**
+     * A server context from a PKCS#12 key store, e.g. one made with
+     * {@code keytool -genkeypair -keyalg RSA -storetype PKCS12 -ext san=ip:127.0.0.1}.
+     */
+    public static SSLContext serverContext(Path keystore, char[] password) throws Exception {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            store.load(in, password);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getUri() {
+        return (tls ? "ircs" : "irc") + "://127.0.0.1:" + getPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public void start() {
+        workers.execute(this::acceptLoop);
+    }
+
+    /**
+     * Drops up to {@code count} random connections without a word, the way a crashed server or a dead NAT mapping
+     * would, so clients have to notice and reconnect.
+     */
+    public int dropConnections(int count) {
+        List<Connection> all = new ArrayList<>(connections);
+        int dropped = 0;
+        while (dropped < count && !all.isEmpty()) {
+            Connection victim = all.remove(ThreadLocalRandom.current().nextInt(all.size()));
+            victim.closeQuietly();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Connection connection : connections) {
+            connection.closeQuietly();
+        }
+        workers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                workers.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Stand-in accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Connection connection;
+        try {
+            connection = new Connection(socket);
+        } catch (IOException e) {
+            closeSocket(socket);
+            return;
+        }
+        connections.add(connection);
+        String reason = "Connection closed";
+        try {
+            String line;
+            while ((line = readLine(connection.in)) != null) {
+                if (!handleLine(connection, line)) {
+                    reason = "Quit";
+                    break;
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            connections.remove(connection);
+            quit(connection, reason);
+            connection.closeQuietly();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            if (line.size() >= MAX_LINE_BYTES) {
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code false} once the client has quit or been thrown out
+     */
+    private boolean handleLine(Connection connection, String line) throws IOException {
+        List<String> params = new ArrayList<>(4);
+        String command = parse(line, params);
+        if (command == null) {
+            return true;
+        }
+        switch (command.toUpperCase(Locale.ROOT)) {
+            case "PASS", "CAP" -> {
+            }
+            case "NICK" -> nick(connection, params.isEmpty() ? "" : params.get(0));
+            case "USER" -> {
+                if (connection.user == null) {
+                    connection.user = params.isEmpty() ? "user" : params.get(0);
+                    tryRegister(connection);
+                }
+            }
+            case "PING" -> connection.send(":" + SERVER_NAME + " PONG " + SERVER_NAME + " :"
+                    + (params.isEmpty() ? "" : params.get(params.size() - 1)));
+            case "PONG" -> {
+                if (!connection.registered && !params.isEmpty()
+                        && params.get(params.size() - 1).equals(connection.pingToken)) {
+                    connection.registered = true;
+                    welcome(connection);
+                }
+            }
+            case "QUIT" -> {
+                return false;
+            }
+            default -> {
+                if (!connection.registered) {
+                    connection.send(numeric(connection, "451", "You have not registered"));
+                } else if ("JOIN".equalsIgnoreCase(command)) {
+                    for (String channel : (params.isEmpty() ? "" : params.get(0)).split(",")) {
+                        join(connection, channel);
+                    }
+                } else if ("PART".equalsIgnoreCase(command)) {
+                    part(connection, params.isEmpty() ? "" : params.get(0));
+                } else if ("PRIVMSG".equalsIgnoreCase(command)) {
+                    return privmsg(connection, params);
+                } else {
+                    connection.send(numeric(connection, "421", command + " :Unknown command"));
+                }
+            }
+        }
+        return true;
+    }
+
+    private void nick(Connection connection, String nick) throws IOException {
+        if (!NICK_ALLOWED.matcher(nick).matches()) {
+            connection.send(numeric(connection, "432", nick + " :Erroneous nickname"));
+            return;
+        }
+        if (nicks.putIfAbsent(key(nick), connection) != null) {
+            connection.send(numeric(connection, "433", nick + " :Nickname is already in use"));
+            return;
+        }
+        String previous = connection.nick;
+        if (previous != null) {
+            nicks.remove(key(previous), connection);
+        }
+        if (connection.registered) {
+            String relay = ":" + mask(previous, connection) + " NICK :" + nick;
+            connection.nick = nick;
+            connection.send(relay);
+            for (String channel : connection.channels) {
+                relay(channel, relay, connection);
+            }
+            return;
+        }
+        connection.nick = nick;
+        tryRegister(connection);
+    }
+
+    private void tryRegister(Connection connection) throws IOException {
+        if (connection.nick == null || connection.user == null || connection.pingToken != null) {
+            return;
+        }
+        connection.pingToken = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        connection.send("PING :" + connection.pingToken);
+    }
+
+    private void welcome(Connection connection) throws IOException {
+        connection.send(numeric(connection, "001", "Welcome to the stand-in IRC network " + mask(connection.nick,
+                connection)));
+        connection.send(numeric(connection, "002", "Your host is " + SERVER_NAME));
+        connection.send(numeric(connection, "376", "End of /MOTD command."));
+    }
+
+    private void join(Connection connection, String channel) throws IOException {
+        if (channel.isEmpty() || channel.charAt(0) != '#') {
+            connection.send(numeric(connection, "403", channel + " :No such channel"));
+            return;
+        }
+        String name = key(channel);
+        if (!connection.channels.add(name)) {
+            return;
+        }
+        Set<Connection> members = channels.computeIfAbsent(name, ignored -> ConcurrentHashMap.newKeySet());
+        members.add(connection);
+        relay(name, ":" + mask(connection.nick, connection) + " JOIN " + channel, null);
+
+        StringBuilder names = new StringBuilder();
+        for (Connection member : members) {
+            String nick = member.nick;
+            if (nick == null) {
+                continue;
+            }
+            if (names.length() + nick.length() > 400) {
+                connection.send(numeric(connection, "353", "= " + channel + " :" + names));
+                names.setLength(0);
+            }
+            if (names.length() > 0) {
+                names.append(' ');
+            }
+            names.append(nick);
+        }
+        if (names.length() > 0) {
+            connection.send(numeric(connection, "353", "= " + channel + " :" + names));
+        }
+        connection.send(numeric(connection, "366", channel + " :End of /NAMES list."));
+    }
+
+    private void part(Connection connection, String channel) throws IOException {
+        String name = key(channel);
+        if (!connection.channels.remove(name)) {
+            connection.send(numeric(connection, "442", channel + " :You're not on that channel"));
+            return;
+        }
+        relay(name, ":" + mask(connection.nick, connection) + " PART " + channel, null);
+        Set<Connection> members = channels.get(name);
+        if (members != null) {
+            members.remove(connection);
+        }
+    }
+
+    private boolean privmsg(Connection connection, List<String> params) throws IOException {
+        if (params.size() < 2 || params.get(1).isEmpty()) {
+            connection.send(numeric(connection, "412", "No text to send"));
+            return true;
+        }
+        if (!connection.tryAcquire(chatPerSecond, chatBurst)) {
+            connection.send("ERROR :Closing Link: " + connection.socket.getInetAddress().getHostAddress()
+                    + " (Excess Flood)");
+            return false;
+        }
+        String target = params.get(0);
+        String line = ":" + mask(connection.nick, connection) + " PRIVMSG " + target + " :" + params.get(1);
+        if (target.startsWith("#")) {
+            String name = key(target);
+            if (!connection.channels.contains(name)) {
+                connection.send(numeric(connection, "404", target + " :Cannot send to channel"));
+                return true;
+            }
+            relay(name, line, connection);
+        } else {
+            Connection recipient = nicks.get(key(target));
+            if (recipient == null) {
+                connection.send(numeric(connection, "401", target + " :No such nick/channel"));
+            } else {
+                recipient.sendQuietly(line);
+            }
+        }
+        return true;
+    }
+
+    private void quit(Connection connection, String reason) {
+        String nick = connection.nick;
+        if (nick != null) {
+            nicks.remove(key(nick), connection);
+        }
+        if (!connection.registered) {
+            return;
+        }
+        String line = ":" + mask(nick, connection) + " QUIT :" + reason;
+        for (String channel : connection.channels) {
+            Set<Connection> members = channels.get(channel);
+            if (members != null) {
+                members.remove(connection);
+            }
+            relay(channel, line, connection);
+        }
+    }
+
+    private void relay(String channel, String line, Connection except) {
+        Set<Connection> members = channels.get(channel);
+        if (members == null) {
+            return;
+        }
+        byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+        for (Connection member : members) {
+            if (member != except) {
+                member.sendQuietly(bytes);
+            }
+        }
+    }
+
+    /**
+     * Splits an IRC line into its command and parameters, dropping any tags and source.
+     */
+    static String parse(String line, List<String> params) {
+        int i = 0;
+        int length = line.length();
+        if (i < length && line.charAt(i) == '@') {
+            i = skipWord(line, i);
+        }
+        if (i < length && line.charAt(i) == ':') {
+            i = skipWord(line, i);
+        }
+        if (i >= length) {
+            return null;
+        }
+        int end = line.indexOf(' ', i);
+        if (end < 0) {
+            return line.substring(i);
+        }
+        String command = line.substring(i, end);
+        i = end;
+        while (i < length) {
+            while (i < length && line.charAt(i) == ' ') {
+                i++;
+            }
+            if (i >= length) {
+                break;
+            }
+            if (line.charAt(i) == ':') {
+                params.add(line.substring(i + 1));
+                break;
+            }
+            end = line.indexOf(' ', i);
+            if (end < 0) {
+                end = length;
+            }
+            params.add(line.substring(i, end));
+            i = end;
+        }
+        return command;
+    }
+
+    private static int skipWord(String line, int i) {
+        int end = line.indexOf(' ', i);
+        if (end < 0) {
+            return line.length();
+        }
+        while (end < line.length() && line.charAt(end) == ' ') {
+            end++;
+        }
+        return end;
+    }
+
+    private static String numeric(Connection connection, String code, String text) {
+        String target = connection.nick == null ? "*" : connection.nick;
+        String body = text.indexOf(" :") >= 0 || text.startsWith(":") ? text : ":" + text;
+        return ":" + SERVER_NAME + " " + code + " " + target + " " + body;
+    }
+
+    private static String mask(String nick, Connection connection) {
+        return nick + "!" + connection.user + "@" + connection.socket.getInetAddress().getHostAddress();
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final Set<String> channels = ConcurrentHashMap.newKeySet();
+        volatile String nick;
+        volatile String user;
+        volatile boolean registered;
+        String pingToken;
+        private double tokens = -1;
+        private long refilledAt;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void send(String line) throws IOException {
+            send((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        synchronized void send(byte[] bytes) throws IOException {
+            out.write(bytes);
+            out.flush();
+        }
+
+        void sendQuietly(String line) {
+            sendQuietly((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void sendQuietly(byte[] bytes) {
+            try {
+                send(bytes);
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        }
+
+        /**
+         * Only touched from this connection's reader thread.
+         */
+        boolean tryAcquire(double perSecond, double burst) {
+            if (perSecond <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (tokens < 0) {
+                tokens = burst;
+            } else {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * perSecond / 1_000_000_000.0);
+            }
+            refilledAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        void closeQuietly() {
+            closeSocket(socket);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package vip.megumin.ircmod.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of microsecond latencies: exact below 64 µs, then 32 buckets per power of two (about 3%
+ * error). Recording is a single atomic increment, so every receiving thread can share one instance.
+ *
+ * @author haipi
+ */
+
+final class LatencyHistogram {
+    private static final int LINEAR = 64;
+    private static final int SUB_BUCKETS = 32;
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (MAX_EXPONENT - 5) * SUB_BUCKETS);
+
+    void recordNanos(long nanos) {
+        counts.incrementAndGet(index(Math.max(0L, nanos / 1_000L)));
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Lower bound of the bucket holding the {@code quantile} sample, in microseconds; {@code -1} when empty.
+     */
+    long percentileMicros(double quantile) {
+        long total = count();
+        if (total == 0) {
+            return -1L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(counts.length() - 1);
+    }
+
+    private static int index(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int shift = exponent - 5;
+        int mantissa = (int) Math.min(micros >>> shift, 2 * SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 6) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    private static long lowerBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+        int mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return (long) mantissa << (exponent - 5);
+    }
+}
@@ -0,0 +1,256 @@
+package vip.megumin.ircmod.loadtest;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntUnaryOperator;
+import vip.megumin.ircmod.socket.ChatTransport;
+import vip.megumin.ircmod.socket.SocketChatListener;
+import vip.megumin.ircmod.socket.SocketChatOptions;
+import vip.megumin.ircmod.socket.SocketReceivedPacketEvent;
+import vip.megumin.ircmod.socket.SocketRuntime;
+
+/**
+ * Drives many headless {@link ChatTransport} clients in one channel and reports sent and delivered messages per
+ * second, p50/p99 delivery latency and heap per connection. Without {@code --url} it starts a {@link StandInServer},
+ * or with {@code --protocol irc} an {@link IrcStandInServer}, in the same JVM. IRC servers do not echo a message to
+ * its sender, so there each message is delivered to one client fewer.
+ * <p>
+ * Every chat carries the sender's {@link System#nanoTime()}, and every client that receives it records the
+ * difference, so latency covers encode, server fan-out, decode and listener dispatch.
+ *
+ * @author haipi
+ */
+
+public final class LoadGenerator {
+    private static final String PROBE_PREFIX = "lt ";
+    private static final long TICK_MILLIS = 10;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendFailed = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder warnings = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile boolean measuring;
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Args options = Args.parse(args);
+        int clients = options.intValue("clients", 200);
+        double ratePerClient = options.doubleValue("rate", 0.5);
+        int warmupSeconds = options.intValue("warmup", 5);
+        int durationSeconds = options.intValue("duration", 30);
+        int dropEvery = options.intValue("drop-every", 0);
+        int dropCount = options.intValue("drop-count", Math.max(1, clients / 20));
+        String channel = options.string("channel", "loadtest");
+        String url = options.string("url", null);
+        boolean irc = "irc".equalsIgnoreCase(options.string("protocol", "hackchat"));
+        SocketRuntime.setVirtualThreads(Boolean.parseBoolean(options.string("virtual-threads", "false")));
+
+        Closeable server = null;
+        IntUnaryOperator dropper = null;
+        if (url == null) {
+            double serverRate = options.doubleValue("server-rate", 0);
+            int serverBurst = options.intValue("server-burst", 10);
+            if (irc) {
+                IrcStandInServer ircServer = new IrcStandInServer(0, serverRate, serverBurst, null);
+                ircServer.start();
+                url = ircServer.getUri();
+                server = ircServer;
+                dropper = ircServer::dropConnections;
+            } else {
+                StandInServer wsServer = new StandInServer(0, serverRate, serverBurst);
+                wsServer.start();
+                url = wsServer.getUri();
+                server = wsServer;
+                dropper = wsServer::dropConnections;
+            }
+        }
+        try {
+            new LoadGenerator().run(url, channel, clients, ratePerClient, warmupSeconds, durationSeconds,
+                    dropper, dropEvery, dropCount);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    private void run(String url, String channel, int clientCount, double ratePerClient, int warmupSeconds,
+                     int durationSeconds, IntUnaryOperator dropper, int dropEvery, int dropCount) throws Exception {
+        boolean local = dropper != null;
+        System.out.printf(Locale.ROOT, "%d clients -> %s #%s, %.2f msg/s each%s%n", clientCount, url, channel,
+                ratePerClient, local ? " (in-process stand-in)" : "");
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = settledHeap(memory);
+        int threadsBefore = Thread.activeCount();
+
+        SocketChatOptions chatOptions = new SocketChatOptions();
+        chatOptions.reconnectBaseDelayMillis = 200;
+        chatOptions.reconnectMaxDelayMillis = 5_000;
+        List<ChatTransport> clients = new ArrayList<>(clientCount);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            ChatTransport chat = ChatTransport.open(url, channel, "load_" + i, "", chatOptions);
+            chat.addListener(new ProbeListener());
+            clients.add(chat);
+            chat.connect();
+        }
+        int joined = awaitJoined(clients, clientCount, TimeUnit.SECONDS.toNanos(30));
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+        long heapAfter = settledHeap(memory);
+        int threadsAfter = Thread.activeCount();
+        System.out.printf(Locale.ROOT, "%d/%d joined in %d ms%n", joined, clientCount, connectMillis);
+
+        ScheduledExecutorService driver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "LoadGenerator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Sender sender = new Sender(clients, ratePerClient * clientCount);
+        driver.scheduleAtFixedRate(sender, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (local && dropEvery > 0) {
+            driver.scheduleAtFixedRate(() -> dropper.applyAsInt(dropCount), dropEvery, dropEvery, TimeUnit.SECONDS);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        long sentBase = sent.sum();
+        measuring = true;
+        long measureStart = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        long sentTotal = sent.sum() - sentBase;
+        long measuredNanos = System.nanoTime() - measureStart;
+        driver.shutdownNow();
+        // let frames already on the wire arrive before the delivery count is read
+        Thread.sleep(1_000);
+        measuring = false;
+
+        for (ChatTransport chat : clients) {
+            chat.disconnect();
+        }
+
+        double seconds = measuredNanos / 1e9;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "sent               %d (%.1f msg/s), %d rejected, %d rate limited%n",
+                sentTotal, sentTotal / seconds, sendFailed.sum(), rateLimited.sum());
+        System.out.printf(Locale.ROOT, "delivered          %d (%.1f msg/s)%n", delivered.sum(), delivered.sum() / seconds);
+        System.out.printf(Locale.ROOT, "latency            p50 %s, p99 %s, max %s (%d samples)%n",
+                millis(latency.percentileMicros(0.50)), millis(latency.percentileMicros(0.99)),
+                millis(latency.percentileMicros(1.0)), latency.count());
+        System.out.printf(Locale.ROOT, "heap / connection  %.1f KiB%s%n",
+                (heapAfter - heapBefore) / 1024.0 / Math.max(1, clientCount),
+                local ? " (client and stand-in side)" : "");
+        System.out.printf(Locale.ROOT, "threads            %d -> %d%n", threadsBefore, threadsAfter);
+        System.out.printf(Locale.ROOT, "warnings           %d, reconnects %d%n", warnings.sum(), reconnects.sum());
+    }
+
+    private static int awaitJoined(List<ChatTransport> clients, int expected, long timeoutNanos)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int joined = 0;
+        while (System.nanoTime() < deadline) {
+            joined = 0;
+            for (ChatTransport chat : clients) {
+                if (chat.getRoster().size() > 0) {
+                    joined++;
+                }
+            }
+            if (joined == expected) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        return joined;
+    }
+
+    private static long settledHeap(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String millis(long micros) {
+        return micros < 0 ? "n/a" : String.format(Locale.ROOT, "%.2f ms", micros / 1000.0);
+    }
+
+    /**
+     * Spreads the total send rate over the clients round robin, carrying fractional messages between ticks.
+     */
+    private final class Sender implements Runnable {
+        private final List<ChatTransport> clients;
+        private final double perTick;
+        private double budget;
+        private int next;
+
+        Sender(List<ChatTransport> clients, double totalPerSecond) {
+            this.clients = clients;
+            this.perTick = totalPerSecond * TICK_MILLIS / 1000.0;
+        }
+
+        @Override
+        public void run() {
+            budget += perTick;
+            for (int tried = 0; budget >= 1 && tried < clients.size(); tried++) {
+                ChatTransport chat = clients.get(next);
+                next = (next + 1) % clients.size();
+                if (!chat.isConnected()) {
+                    continue;
+                }
+                budget -= 1;
+                sent.increment();
+                chat.sendMessage(PROBE_PREFIX + System.nanoTime()).whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        sendFailed.increment();
+                    }
+                });
+            }
+            budget = Math.min(budget, perTick * 10);
+        }
+    }
+
+    private final class ProbeListener implements SocketChatListener {
+        @Override
+        public void onMessage(SocketReceivedPacketEvent event) {
+            String text = event.text();
+            if ("warn".equals(event.nick())) {
+                warnings.increment();
+                if (text != null && (text.startsWith("You are sending too much text")
+                        || text.contains("Excess Flood"))) {
+                    rateLimited.increment();
+                }
+                return;
+            }
+            if (text == null || !text.startsWith(PROBE_PREFIX)) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!measuring) {
+                return;
+            }
+            delivered.increment();
+            try {
+                latency.recordNanos(now - Long.parseLong(text, PROBE_PREFIX.length(), text.length(), 10));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        @Override
+        public void onReconnected(int attempts) {
+            reconnects.increment();
+        }
+    }
+}
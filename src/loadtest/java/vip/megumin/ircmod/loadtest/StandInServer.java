@@ -0,0 +1,518 @@
+package vip.megumin.ircmod.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for a hack.chat server: a minimal RFC 6455 WebSocket endpoint that speaks the {@code join},
+ * {@code chat}, {@code info}, {@code warn}, {@code onlineSet}, {@code onlineAdd} and {@code onlineRemove} commands
+ * the mod uses. Taken nicks get the same "Nickname taken" warning and chat is rate limited per connection with a
+ * token bucket, answering with hack.chat's "sending too much text" warning and dropping the message.
+ * <p>
+ * One blocking thread per connection; broadcasts encode the frame once and write it to every member.
+ *
+ * @author haipi
+ */
+
+public final class StandInServer implements Closeable {
+    static final String RATE_LIMIT_WARNING = "You are sending too much text. Wait a moment and try again.\n"
+            + "Press the up arrow key to restore your last message.";
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Pattern NICK_ALLOWED = Pattern.compile("^[A-Za-z0-9_]{1,24}$");
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private final ServerSocket serverSocket;
+    private final double chatPerSecond;
+    private final double chatBurst;
+    private final ExecutorService workers;
+    private final Map<String, Map<String, Connection>> channels = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * @param port          port to listen on, or {@code 0} for any free port
+     * @param chatPerSecond sustained chat messages each connection may send; {@code 0} disables the limit
+     * @param chatBurst     messages a connection may send back to back before the limit applies
+     */
+    public StandInServer(int port, double chatPerSecond, int chatBurst) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        this.chatPerSecond = chatPerSecond;
+        this.chatBurst = Math.max(1, chatBurst);
+        AtomicInteger ids = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "StandIn-" + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Args parsed = Args.parse(args);
+        try (StandInServer server = new StandInServer(parsed.intValue("port", 6060),
+                parsed.doubleValue("rate", 2.0), parsed.intValue("burst", 10))) {
+            server.start();
+            System.out.println("Stand-in hack.chat server on " + server.getUri());
+            Thread.currentThread().join();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getUri() {
+        return "ws://127.0.0.1:" + getPort() + "/chat-ws";
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public void start() {
+        workers.execute(this::acceptLoop);
+    }
+
+    /**
+     * Drops up to {@code count} random connections without a close frame, the way a crashed server or a dead NAT
+     * mapping would, so clients have to notice and reconnect.
+     */
+    public int dropConnections(int count) {
+        List<Connection> all = new ArrayList<>(connections);
+        int dropped = 0;
+        while (dropped < count && !all.isEmpty()) {
+            Connection victim = all.remove(ThreadLocalRandom.current().nextInt(all.size()));
+            victim.closeQuietly();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Connection connection : connections) {
+            connection.closeQuietly();
+        }
+        workers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                workers.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Stand-in accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Connection connection;
+        try {
+            connection = new Connection(socket);
+            if (!handshake(connection)) {
+                socket.close();
+                return;
+            }
+        } catch (IOException e) {
+            closeSocket(socket);
+            return;
+        }
+        connections.add(connection);
+        try {
+            readLoop(connection);
+        } catch (IOException ignored) {
+        } finally {
+            connections.remove(connection);
+            leave(connection);
+            connection.closeQuietly();
+        }
+    }
+
+    private static boolean handshake(Connection connection) throws IOException {
+        String requestLine = readHeaderLine(connection.in);
+        if (requestLine == null || !requestLine.startsWith("GET ")) {
+            return false;
+        }
+        String key = null;
+        boolean upgrade = false;
+        String line;
+        while ((line = readHeaderLine(connection.in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            if (name.equals("sec-websocket-key")) {
+                key = value;
+            } else if (name.equals("upgrade")) {
+                upgrade = value.equalsIgnoreCase("websocket");
+            }
+        }
+        if (key == null || !upgrade) {
+            connection.out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            connection.out.flush();
+            return false;
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        connection.out.write(response.getBytes(StandardCharsets.US_ASCII));
+        connection.out.flush();
+        return true;
+    }
+
+    private static String readHeaderLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int end = line.length();
+                return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+            }
+            if (line.length() > 8192) {
+                throw new IOException("Header line too long");
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void readLoop(Connection connection) throws IOException {
+        DataInputStream in = new DataInputStream(connection.in);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            int b0 = in.read();
+            if (b0 < 0) {
+                return;
+            }
+            int b1 = in.readUnsignedByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            if (length < 0 || length > MAX_FRAME_BYTES || message.size() + length > MAX_FRAME_BYTES) {
+                connection.sendClose(1009, "Message too big");
+                return;
+            }
+            byte[] mask = new byte[4];
+            boolean masked = (b1 & 0x80) != 0;
+            if (masked) {
+                in.readFully(mask);
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            if (masked) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+            }
+
+            switch (opcode) {
+                case OP_TEXT, OP_CONTINUATION -> {
+                    message.write(payload);
+                    if (fin) {
+                        String text = message.toString(StandardCharsets.UTF_8);
+                        message.reset();
+                        handleCommand(connection, text);
+                    }
+                }
+                case OP_PING -> connection.send(encodeFrame(OP_PONG, payload));
+                case OP_PONG -> {
+                }
+                case OP_CLOSE -> {
+                    int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1000;
+                    connection.sendClose(code, "");
+                    return;
+                }
+                default -> {
+                    connection.sendClose(1003, "Unsupported data");
+                    return;
+                }
+            }
+        }
+    }
+
+    private void handleCommand(Connection connection, String text) throws IOException {
+        JsonObject command;
+        try {
+            JsonElement parsed = JsonParser.parseString(text);
+            if (!parsed.isJsonObject()) {
+                return;
+            }
+            command = parsed.getAsJsonObject();
+        } catch (JsonParseException e) {
+            return;
+        }
+        String cmd = string(command, "cmd");
+        if ("join".equals(cmd)) {
+            join(connection, string(command, "channel"), string(command, "nick"));
+        } else if ("chat".equals(cmd)) {
+            chat(connection, string(command, "text"));
+        } else if ("ping".equals(cmd)) {
+            // hack.chat's application-level keepalive; nothing to answer
+        } else if (cmd != null) {
+            connection.send(warn("Unknown command: " + cmd));
+        }
+    }
+
+    private void join(Connection connection, String channel, String nick) throws IOException {
+        if (connection.channel != null) {
+            connection.send(warn("You have already joined a channel"));
+            return;
+        }
+        if (channel == null || channel.isBlank()) {
+            connection.send(warn("You must join a channel"));
+            return;
+        }
+        if (nick == null || !NICK_ALLOWED.matcher(nick).matches()) {
+            connection.send(warn("Nickname must consist of up to 24 letters, numbers, and underscores"));
+            return;
+        }
+        Map<String, Connection> members = channels.computeIfAbsent(channel, ignored -> new ConcurrentHashMap<>());
+        if (members.putIfAbsent(nick.toLowerCase(Locale.ROOT), connection) != null) {
+            connection.send(warn("Nickname taken"));
+            return;
+        }
+        connection.channel = channel;
+        connection.nick = nick;
+
+        JsonObject added = new JsonObject();
+        added.addProperty("cmd", "onlineAdd");
+        added.addProperty("nick", nick);
+        added.addProperty("time", System.currentTimeMillis());
+        broadcast(channel, added, connection);
+
+        JsonArray nicks = new JsonArray();
+        for (Connection member : members.values()) {
+            if (member.nick != null) {
+                nicks.add(member.nick);
+            }
+        }
+        JsonObject onlineSet = new JsonObject();
+        onlineSet.addProperty("cmd", "onlineSet");
+        onlineSet.add("nicks", nicks);
+        onlineSet.addProperty("time", System.currentTimeMillis());
+        connection.send(encodeText(onlineSet));
+    }
+
+    private void chat(Connection connection, String text) throws IOException {
+        if (connection.channel == null || text == null) {
+            return;
+        }
+        text = text.trim();
+        if (text.isEmpty()) {
+            return;
+        }
+        if (!connection.tryAcquire(chatPerSecond, chatBurst)) {
+            connection.send(warn(RATE_LIMIT_WARNING));
+            return;
+        }
+        JsonObject chat = new JsonObject();
+        chat.addProperty("cmd", "chat");
+        chat.addProperty("nick", connection.nick);
+        chat.addProperty("text", text);
+        chat.addProperty("time", System.currentTimeMillis());
+        broadcast(connection.channel, chat, null);
+    }
+
+    private void leave(Connection connection) {
+        String channel = connection.channel;
+        String nick = connection.nick;
+        if (channel == null || nick == null) {
+            return;
+        }
+        Map<String, Connection> members = channels.get(channel);
+        if (members == null || !members.remove(nick.toLowerCase(Locale.ROOT), connection)) {
+            return;
+        }
+        JsonObject removed = new JsonObject();
+        removed.addProperty("cmd", "onlineRemove");
+        removed.addProperty("nick", nick);
+        removed.addProperty("time", System.currentTimeMillis());
+        broadcast(channel, removed, null);
+    }
+
+    private void broadcast(String channel, JsonObject payload, Connection except) {
+        Map<String, Connection> members = channels.get(channel);
+        if (members == null) {
+            return;
+        }
+        byte[] frame = encodeText(payload);
+        for (Connection member : members.values()) {
+            if (member == except) {
+                continue;
+            }
+            try {
+                member.send(frame);
+            } catch (IOException e) {
+                member.closeQuietly();
+            }
+        }
+    }
+
+    private static byte[] warn(String text) {
+        JsonObject warn = new JsonObject();
+        warn.addProperty("cmd", "warn");
+        warn.addProperty("text", text);
+        warn.addProperty("time", System.currentTimeMillis());
+        return encodeText(warn);
+    }
+
+    private static String string(JsonObject object, String name) {
+        JsonElement value = object.get(name);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    private static byte[] encodeText(JsonObject payload) {
+        return encodeFrame(OP_TEXT, payload.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] encodeFrame(int opcode, byte[] payload) {
+        int header = payload.length < 126 ? 2 : payload.length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[header + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (header == 2) {
+            frame[1] = (byte) payload.length;
+        } else if (header == 4) {
+            frame[1] = 126;
+            frame[2] = (byte) (payload.length >>> 8);
+            frame[3] = (byte) payload.length;
+        } else {
+            frame[1] = 127;
+            long length = payload.length;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) (length >>> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, frame, header, payload.length);
+        return frame;
+    }
+
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        volatile String channel;
+        volatile String nick;
+        private double tokens = -1;
+        private long refilledAt;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        synchronized void send(byte[] frame) throws IOException {
+            out.write(frame);
+            out.flush();
+        }
+
+        void sendClose(int code, String reason) {
+            byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = new byte[2 + text.length];
+            payload[0] = (byte) (code >>> 8);
+            payload[1] = (byte) code;
+            System.arraycopy(text, 0, payload, 2, text.length);
+            try {
+                send(encodeFrame(OP_CLOSE, payload));
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Only touched from this connection's reader thread.
+         */
+        boolean tryAcquire(double perSecond, double burst) {
+            if (perSecond <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (tokens < 0) {
+                tokens = burst;
+            } else {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * perSecond / 1_000_000_000.0);
+            }
+            refilledAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        void closeQuietly() {
+            closeSocket(socket);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package vip.megumin.ircmod;
+
+import java.util.function.Consumer;
+import vip.megumin.ircmod.socket.ChatTransport;
+import vip.megumin.ircmod.socket.SocketChatListener;
+import vip.megumin.ircmod.socket.SocketReceivedPacketEvent;
+
+/**
+ * One joined channel: its socket, the tag shown in chat, its routing prefix and its own line buffer.
+ *
+ * @author haipi
+ */
+
+final class ChannelSession {
+    private final ChatTransport chat;
+    private final String tag;
+    private final String connectionKey;
+    private final String outboxKey;
+    private volatile String prefix;
+    private final ChatLineBuffer lines;
+    private final InboundFilter filter = new InboundFilter();
+    private final Consumer<SocketReceivedPacketEvent> show = event -> IRCClient.handleIncoming(this, event);
+    private volatile boolean historyReplayed;
+
+    ChannelSession(ChatTransport chat, String tag, String connectionKey, String outboxKey, String prefix,
+                   int bufferSize) {
+        this.chat = chat;
+        this.tag = tag;
+        this.connectionKey = connectionKey;
+        this.outboxKey = outboxKey;
+        setPrefix(prefix);
+        this.lines = new ChatLineBuffer(bufferSize);
+        chat.addListener(new SocketChatListener() {
+            @Override
+            public void onMessage(SocketReceivedPacketEvent event) {
+                filter.offer(event, System.nanoTime(), show);
+                if (lines.size() >= lines.capacity() * 3 / 4) {
+                    chat.pauseReading();
+                }
+            }
+
+            @Override
+            public void onConnected() {
+                post("Connected!");
+                if (!historyReplayed) {
+                    historyReplayed = true;
+                    IRCClient.replayHistory(ChannelSession.this);
+                }
+                IRCClient.drainOutbox(ChannelSession.this);
+            }
+
+            @Override
+            public void onDisconnected(int statusCode, String reason) {
+                post("Disconnected!");
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                post("IRC error: " + error.getMessage());
+            }
+
+            @Override
+            public void onReconnected(int attempts) {
+                post("Reconnected!");
+                IRCClient.drainOutbox(ChannelSession.this);
+            }
+        });
+    }
+
+    ChatTransport chat() {
+        return chat;
+    }
+
+    String tag() {
+        return tag;
+    }
+
+    /**
+     * Everything the socket was opened with. Sessions whose key is unchanged survive a config reload.
+     */
+    String connectionKey() {
+        return connectionKey;
+    }
+
+    /**
+     * Server and channel, which is what messages typed while offline are spooled under.
+     */
+    String outboxKey() {
+        return outboxKey;
+    }
+
+    String prefix() {
+        return prefix;
+    }
+
+    void setPrefix(String prefix) {
+        this.prefix = prefix == null ? "" : prefix.trim();
+    }
+
+    ChatLineBuffer lines() {
+        return lines;
+    }
+
+    void post(String message) {
+        lines.offer(IRCClient.formatSystem(tag, message));
+    }
+
+    /**
+     * Posts duplicate and flood summaries whose window has closed.
+     */
+    void expireFilter(long now) {
+        filter.expire(now, show);
+    }
+
+    void afterDrain() {
+        if (lines.size() <= lines.capacity() / 4) {
+            chat.resumeReading();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package vip.megumin.ircmod;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.components.EditBox;
+import net.minecraft.client.gui.screens.ChatScreen;
+import org.lwjgl.glfw.GLFW;
+
+/**
+ * Tab-completes nicks from the channel roster while typing an IRC line in the chat box.
+ * Repeated Tab presses cycle through the matches.
+ *
+ * @author haipi
+ */
+
+final class ChatNickCompleter implements InputHooks.KeyHandler {
+    private static final int MAX_CANDIDATES = 32;
+
+    private Field inputField;
+    private boolean inputFieldResolved;
+    private List<String> candidates = List.of();
+    private int index;
+    private String base;
+    private int wordStart;
+    private int wordEnd;
+    private String lastResult;
+
+    @Override
+    public boolean onKey(Minecraft client, int key, int scancode, int action, int mods) {
+        if (key != GLFW.GLFW_KEY_TAB || action != GLFW.GLFW_PRESS || mods != 0) {
+            return false;
+        }
+        if (!(client.screen instanceof ChatScreen screen)) {
+            return false;
+        }
+        EditBox input = findInput(screen);
+        if (input == null) {
+            return false;
+        }
+        String value = input.getValue();
+        if (value.equals(lastResult) && !candidates.isEmpty()) {
+            index = (index + 1) % candidates.size();
+        } else if (!startCompletion(value, input.getCursorPosition())) {
+            return false;
+        }
+        String nick = candidates.get(index);
+        String result = base.substring(0, wordStart) + nick + base.substring(wordEnd);
+        input.setValue(result);
+        input.setCursorPosition(wordStart + nick.length());
+        lastResult = result;
+        return true;
+    }
+
+    private boolean startCompletion(String value, int cursor) {
+        candidates = List.of();
+        lastResult = null;
+        IRCClient.Route route = IRCClient.route(value);
+        if (route == null || route.session() == null || cursor < route.textStart()) {
+            return false;
+        }
+        int start = cursor;
+        while (start > route.textStart() && !Character.isWhitespace(value.charAt(start - 1))) {
+            start--;
+        }
+        if (start == cursor) {
+            return false;
+        }
+        List<String> found = route.session().chat().getRoster().complete(value.substring(start, cursor), MAX_CANDIDATES);
+        if (found.isEmpty()) {
+            return false;
+        }
+        candidates = found;
+        index = 0;
+        base = value;
+        wordStart = start;
+        wordEnd = cursor;
+        return true;
+    }
+
+    private EditBox findInput(ChatScreen screen) {
+        if (!inputFieldResolved) {
+            inputFieldResolved = true;
+            for (Field field : ChatScreen.class.getDeclaredFields()) {
+                if (field.getType() == EditBox.class) {
+                    try {
+                        field.setAccessible(true);
+                        inputField = field;
+                    } catch (RuntimeException ignored) {
+                    }
+                    break;
+                }
+            }
+        }
+        if (inputField == null) {
+            return null;
+        }
+        try {
+            return (EditBox) inputField.get(screen);
+        } catch (IllegalAccessException ignored) {
+            return null;
+        }
+    }
+}
@@ -1,13 +1,34 @@
 package vip.megumin.ircmod;
 
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import net.minecraft.ChatFormatting;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.player.LocalPlayer;
 import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.MutableComponent;
 import vip.megumin.ircmod.config.IRCConfig;
 import vip.megumin.ircmod.config.IRCConfigManager;
-import vip.megumin.ircmod.socket.SocketChat;
-import vip.megumin.ircmod.socket.SocketChatListener;
+import vip.megumin.ircmod.history.HistoryLog;
+import vip.megumin.ircmod.history.HistoryRecord;
+import vip.megumin.ircmod.metrics.Counter;
+import vip.megumin.ircmod.metrics.Histogram;
+import vip.megumin.ircmod.metrics.Metrics;
+import vip.megumin.ircmod.socket.ChatTransport;
+import vip.megumin.ircmod.socket.SocketChatOptions;
 import vip.megumin.ircmod.socket.SocketReceivedPacketEvent;
+import vip.megumin.ircmod.socket.SocketRuntime;
 
 /**
  * @author haipi
@@ -15,9 +36,29 @@ import vip.megumin.ircmod.socket.SocketReceivedPacketEvent;
 
 public final class IRCClient {
     private static final Object LOCK = new Object();
-    private static SocketChat chat;
-    private static IRCConfig config;
-    private static boolean isFirstRun = false;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+    private static final ChatLineBuffer SYSTEM_LINES = new ChatLineBuffer(64);
+    private static final List<ChannelSession> SESSIONS = new CopyOnWriteArrayList<>();
+    private static final int MAX_EARLY_MESSAGES = 16;
+    private static final List<String> EARLY_MESSAGES = new ArrayList<>();
+    private static final CompletableFuture<Void> READY = new CompletableFuture<>();
+    static final Histogram DRAIN_NANOS = Metrics.histogram("client.drainNanos",
+            "Client-thread time spent moving IRC lines into chat, per tick that had lines, in nanoseconds");
+    static final Counter LINES_SHOWN = Metrics.counter("client.linesShown", "IRC lines added to the chat");
+    static final Histogram INIT_NANOS = Metrics.histogram("client.initNanos",
+            "Time the mod spent in onInitializeClient on the game's loading thread, in nanoseconds");
+    static final Histogram STARTUP_NANOS = Metrics.histogram("client.startupNanos",
+            "Background startup: config load, history, outbox and opening the sessions, in nanoseconds");
+    static final Histogram LAUNCH_NANOS = Metrics.histogram("client.launchNanos",
+            "JVM start to the title screen, in nanoseconds; compare with a launch without the mod");
+    private static volatile IRCConfig config;
+    private static volatile HistoryLog history;
+    private static volatile OutboxSpool outbox;
+    private static volatile boolean isFirstRun = false;
+    private static volatile boolean startRequested;
+    private static int queueNoticeTicks;
+    private static int filterExpiryTicks;
 
     private IRCClient() {
     }
@@ -26,26 +67,114 @@ public final class IRCClient {
         return isFirstRun;
     }
 
-    public static void init() {
-        IRCConfigManager.Result result = IRCConfigManager.load();
-        config = result.config();
-        isFirstRun = result.isNew();
-        if (config.autoConnect) {
-            connect();
+    /**
+     * Loads the config and opens the sessions on a background thread, so none of it, the TLS handshake included, holds
+     * up the game's loading. Called once the client has started; messages typed before it is done are kept by
+     * {@link #handleOutgoingMessage} and sent afterwards.
+     */
+    static void start() {
+        if (startRequested) {
+            return;
+        }
+        startRequested = true;
+        LAUNCH_NANOS.record(TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime()));
+        Thread thread = new Thread(IRCClient::init, "IRCMod-Startup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void init() {
+        long started = System.nanoTime();
+        try {
+            synchronized (LOCK) {
+                if (config == null) {
+                    IRCConfigManager.Result result = IRCConfigManager.load();
+                    config = result.config();
+                    isFirstRun = result.isNew();
+                    reportLoad(result);
+                }
+                IRCConfig cfg = config;
+                Minecraft.getInstance().execute(() -> IRCMod.setOpenShortcut(Shortcut.fromConfig(cfg)));
+                updateHistory(cfg);
+                updateOutbox(cfg);
+                InboundFilter.configure(cfg);
+                Exception jmxError = Metrics.registerMBean();
+                if (jmxError != null) {
+                    sendSystemMessage("IRC metrics are not available over JMX: " + describe(jmxError));
+                }
+                if (cfg.autoConnect) {
+                    connect();
+                }
+            }
+            IRCConfigManager.watch(
+                    cfg -> Minecraft.getInstance().execute(() -> reloadConfig(cfg)),
+                    err -> sendSystemMessage("Ignoring unreadable IRC config edit: " + describe(err)));
+            Runtime.getRuntime().addShutdownHook(new Thread(IRCClient::shutdown, "IRCMod-ShutdownHook"));
+        } catch (RuntimeException e) {
+            sendSystemMessage("IRC failed to start: " + describe(e));
+        } finally {
+            READY.complete(null);
+            STARTUP_NANOS.record(System.nanoTime() - started);
+            Minecraft.getInstance().execute(IRCClient::sendEarlyMessages);
+        }
+    }
+
+    /**
+     * Whether startup has loaded the config and opened the sessions. Until then {@link #getConfig()} is the defaults,
+     * which must not be routed by or saved.
+     */
+    static boolean isReady() {
+        return READY.isDone();
+    }
+
+    /**
+     * Runs {@code action} on the client thread once startup has loaded the config and opened the sessions; right
+     * away if it already has.
+     */
+    static void whenReady(Runnable action) {
+        if (READY.isDone()) {
+            action.run();
+        } else {
+            READY.thenRun(() -> Minecraft.getInstance().execute(action));
+        }
+    }
+
+    /**
+     * Chat typed before startup finished could not be routed then, so all of it was held. What turns out not to be
+     * for IRC goes to the server as it would have.
+     */
+    private static void sendEarlyMessages() {
+        List<String> early = new ArrayList<>(EARLY_MESSAGES);
+        EARLY_MESSAGES.clear();
+        LocalPlayer player = Minecraft.getInstance().player;
+        for (String message : early) {
+            if (!handleOutgoingMessage(message) && player != null) {
+                player.connection.sendChat(message);
+            }
         }
-        Runtime.getRuntime().addShutdownHook(new Thread(IRCClient::shutdown, "IRCMod-ShutdownHook"));
     }
 
     public static boolean handleOutgoingMessage(String message) {
         if (message == null) {
             return false;
         }
-        IRCConfig cfg = getConfig();
-        String prefix = (cfg.prefix == null || cfg.prefix.isBlank()) ? "@" : cfg.prefix;
-        if (!message.startsWith(prefix)) {
+        if ((startRequested && !READY.isDone()) || !EARLY_MESSAGES.isEmpty()) {
+            // the prefixes are not known until the config is loaded, so hold everything rather than guess
+            if (EARLY_MESSAGES.size() < MAX_EARLY_MESSAGES) {
+                EARLY_MESSAGES.add(message);
+                if (EARLY_MESSAGES.size() == 1) {
+                    sendSystemMessage("IRC is still starting; chat will be sent once it is up.");
+                }
+            } else {
+                sendSystemMessage("Message not sent: IRC is still starting.");
+            }
+            return true;
+        }
+        Route route = route(message);
+        if (route == null) {
             return false;
         }
-        String trimmed = message.substring(prefix.length());
+        String trimmed = message.substring(route.textStart());
         int maxLength = getMaxMessageLength();
         if (trimmed.length() >= maxLength) {
             sendSystemMessage("You cannot send more than " + maxLength + " characters.");
@@ -54,14 +183,114 @@ public final class IRCClient {
         if (trimmed.isBlank()) {
             return true;
         }
-        if (chat == null) {
+        ChannelSession session = route.session();
+        if (session == null) {
             sendSystemMessage("Not connected.");
             return true;
         }
-        chat.sendMessage(trimmed);
+        OutboxSpool spool = outbox;
+        if (spool != null && (!session.chat().isConnected() || spool.pending(session.outboxKey()) > 0)) {
+            spool(spool, session, trimmed);
+            return true;
+        }
+        send(session, trimmed);
         return true;
     }
 
+    private static CompletableFuture<Void> send(ChannelSession session, String text) {
+        CompletableFuture<Void> sent = session.chat().sendMessage(text);
+        sent.whenComplete((ignored, err) -> {
+            if (err != null) {
+                Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                session.post("Message not sent: " + cause.getMessage());
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * Keeps a message for a channel that is offline, or that still has older spooled messages to send first.
+     */
+    private static void spool(OutboxSpool spool, ChannelSession session, String text) {
+        switch (spool.offer(session.outboxKey(), text)) {
+            case SPOOLED -> {
+                if (session.chat().isConnected()) {
+                    drainOutbox(session);
+                } else {
+                    // sendMessage() would have opened the socket; without that, a session that gave up or does not
+                    // auto-reconnect never comes back to drain the spool
+                    if (!session.chat().isReconnecting()) {
+                        session.chat().connect();
+                    }
+                    int waiting = spool.pending(session.outboxKey());
+                    session.post("Offline; will send when reconnected (" + waiting
+                            + (waiting == 1 ? " message" : " messages") + " waiting).");
+                }
+            }
+            case DUPLICATE -> session.post("That message is already waiting to be sent.");
+            case FULL -> session.post("Message not sent: the offline outbox is full.");
+        }
+    }
+
+    /**
+     * Sends what was typed while {@code session} was offline. Called once it has joined its channel.
+     */
+    static void drainOutbox(ChannelSession session) {
+        OutboxSpool spool = outbox;
+        if (spool == null) {
+            return;
+        }
+        ChatTransport chat = session.chat();
+        spool.drain(session.outboxKey(), chat::getFreeCapacity, chat::sendMessage).thenAccept(expired -> {
+            if (expired > 0) {
+                session.post(expired + (expired == 1 ? " queued message was" : " queued messages were")
+                        + " older than " + getConfig().outboxTtlMinutes + " minutes and not sent.");
+            }
+        });
+    }
+
+    static Route route(String message) {
+        IRCConfig cfg = getConfig();
+        String prefix = (cfg.prefix == null || cfg.prefix.isBlank()) ? "@" : cfg.prefix;
+        ChannelSession target = null;
+        for (ChannelSession session : SESSIONS) {
+            String p = session.prefix();
+            if (!p.isEmpty() && message.startsWith(p) && (target == null || p.length() > target.prefix().length())) {
+                target = session;
+            }
+        }
+        if (target != null && (!message.startsWith(prefix) || target.prefix().length() >= prefix.length())) {
+            return new Route(target, target.prefix().length());
+        }
+        if (!message.startsWith(prefix)) {
+            return null;
+        }
+        int textStart = prefix.length();
+        target = SESSIONS.isEmpty() ? null : SESSIONS.get(0);
+        if (message.startsWith("#", textStart)) {
+            int space = message.indexOf(' ', textStart);
+            ChannelSession named = space > textStart + 1 ? findSession(message.substring(textStart + 1, space)) : null;
+            if (named != null) {
+                target = named;
+                textStart = space + 1;
+            }
+        }
+        return new Route(target, textStart);
+    }
+
+    public static boolean isOnline(String nick) {
+        for (ChannelSession session : SESSIONS) {
+            if (session.chat().getRoster().contains(nick)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static HistoryLog getHistory() {
+        return history;
+    }
+
     public static IRCConfig getConfig() {
         return config == null ? new IRCConfig() : config;
     }
@@ -71,78 +300,246 @@ public final class IRCClient {
             return;
         }
         synchronized (LOCK) {
-            config = newConfig;
-            IRCConfigManager.save(newConfig);
-            disconnect();
+            saveConfig(newConfig);
+            reconcile(newConfig);
+        }
+    }
+
+    /**
+     * Applies a config that was edited on disk. Must run on the client thread.
+     */
+    static void reloadConfig(IRCConfig newConfig) {
+        synchronized (LOCK) {
+            reconcile(newConfig);
+        }
+        sendSystemMessage("Reloaded IRC config from disk.");
+    }
+
+    /**
+     * Swaps in {@code newConfig} and applies the difference live. Only sessions whose server, channel, nick or
+     * password changed are reopened; prefixes, limits and the open key take effect immediately. Socket tuning
+     * (heartbeat, reconnect, queue sizes) applies to sessions opened from now on.
+     */
+    private static void reconcile(IRCConfig newConfig) {
+        IRCConfig old = config;
+        config = newConfig;
+        IRCMod.setOpenShortcut(Shortcut.fromConfig(newConfig));
+        InboundFilter.configure(newConfig);
+        if (old == null || old.historyEnabled != newConfig.historyEnabled) {
+            updateHistory(newConfig);
+        }
+        if (old == null || old.outboxEnabled != newConfig.outboxEnabled) {
+            updateOutbox(newConfig);
+        }
+        if (SESSIONS.isEmpty()) {
             if (newConfig.autoConnect) {
                 connect();
             }
+            return;
+        }
+
+        boolean reconnect = newConfig.autoConnect || isConnected();
+        List<ChannelSession> previous = new ArrayList<>(SESSIONS);
+        List<ChannelSession> next = new ArrayList<>();
+        List<ChannelSession> opened = new ArrayList<>();
+        for (SessionPlan plan : planSessions(newConfig)) {
+            ChannelSession reused = null;
+            for (ChannelSession session : previous) {
+                if (session.connectionKey().equals(plan.connectionKey())) {
+                    reused = session;
+                    break;
+                }
+            }
+            if (reused != null) {
+                previous.remove(reused);
+                reused.setPrefix(plan.prefix());
+                next.add(reused);
+            } else {
+                ChannelSession created = openSession(plan);
+                next.add(created);
+                opened.add(created);
+            }
+        }
+        for (ChannelSession session : previous) {
+            session.chat().disconnect();
+        }
+        SESSIONS.clear();
+        SESSIONS.addAll(next);
+        if (reconnect) {
+            for (ChannelSession session : opened) {
+                session.chat().connect();
+            }
+        }
+    }
+
+    private static void updateHistory(IRCConfig cfg) {
+        HistoryLog log = history;
+        if (cfg.historyEnabled && log == null) {
+            history = new HistoryLog(IRCConfigManager.getPath().getParent().resolve("history"),
+                    Math.max(64, cfg.historySegmentKB) * 1024L, cfg.historyMaxSegments, 4096);
+        } else if (!cfg.historyEnabled && log != null) {
+            history = null;
+            log.close();
         }
     }
 
+    private static void updateOutbox(IRCConfig cfg) {
+        OutboxSpool spool = outbox;
+        if (cfg.outboxEnabled && spool == null) {
+            outbox = new OutboxSpool(IRCConfigManager.getPath().getParent(), cfg.outboxMaxMessages,
+                    Math.max(1, cfg.outboxTtlMinutes) * 60_000L);
+        } else if (!cfg.outboxEnabled && spool != null) {
+            outbox = null;
+            spool.close();
+        }
+    }
+
+    static CompletableFuture<Void> saveConfig(IRCConfig cfg) {
+        return reportSaveFailure(IRCConfigManager.save(cfg));
+    }
+
+    private static void reportLoad(IRCConfigManager.Result result) {
+        if (result.loadError() != null) {
+            sendSystemMessage("IRC config was unreadable and has been reset (old file kept as config.json.broken): "
+                    + describe(result.loadError()));
+        }
+        reportSaveFailure(result.saved());
+    }
+
+    private static CompletableFuture<Void> reportSaveFailure(CompletableFuture<Void> saved) {
+        saved.whenComplete((ignored, err) -> {
+            if (err != null) {
+                sendSystemMessage("Failed to save IRC config: " + describe(err));
+            }
+        });
+        return saved;
+    }
+
+    private static String describe(Throwable err) {
+        Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+        return cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+    }
+
     public static void connect() {
         synchronized (LOCK) {
             if (config == null) {
                 IRCConfigManager.Result result = IRCConfigManager.load();
                 config = result.config();
                 isFirstRun = result.isNew();
+                reportLoad(result);
             }
-            if (chat != null && chat.isConnected()) {
+            if (!SESSIONS.isEmpty()) {
+                for (ChannelSession session : SESSIONS) {
+                    session.chat().connect();
+                }
                 return;
             }
-            String serverUrl = config.serverUrl == null ? "" : config.serverUrl.trim();
-            String channel = config.channel == null ? "" : config.channel.trim();
-            if (serverUrl.isBlank() || channel.isBlank()) {
+            List<SessionPlan> plans = planSessions(config);
+            if (plans.isEmpty()) {
                 sendSystemMessage("IRC config missing server URL or channel.");
                 return;
             }
-            Minecraft client = Minecraft.getInstance();
-            String nick = config.nick == null || config.nick.isBlank()
-                    ? client.getUser().getName()
-                    : config.nick.trim();
-            String password = config.password == null ? "" : config.password;
-            chat = new SocketChat(serverUrl, channel, nick, password);
-            chat.addListener(new SocketChatListener() {
-                @Override
-                public void onMessage(SocketReceivedPacketEvent event) {
-                    IRCClient.handleIncoming(event);
-                }
-
-                @Override
-                public void onConnected() {
-                    sendSystemMessage("Connected!");
-                }
-
-                @Override
-                public void onDisconnected(int statusCode, String reason) {
-                    sendSystemMessage("Disconnected!");
-                }
+            for (SessionPlan plan : plans) {
+                SESSIONS.add(openSession(plan));
+            }
 
-                @Override
-                public void onError(Throwable error) {
-                    sendSystemMessage("IRC error: " + error.getMessage());
-                }
-            });
             sendSystemMessage("Connecting To IRC Server...");
-            chat.connect();
+            for (ChannelSession session : SESSIONS) {
+                session.chat().connect();
+            }
         }
     }
 
     public static void disconnect() {
         synchronized (LOCK) {
-            if (chat != null) {
-                chat.disconnect();
+            for (ChannelSession session : SESSIONS) {
+                session.chat().disconnect();
             }
         }
     }
 
     public static boolean isConnected() {
         synchronized (LOCK) {
-            return chat != null && chat.isConnected();
+            for (ChannelSession session : SESSIONS) {
+                if (session.chat().isConnected()) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
-    private static void handleIncoming(SocketReceivedPacketEvent event) {
+    private static List<SessionPlan> planSessions(IRCConfig cfg) {
+        List<SessionPlan> plans = new ArrayList<>();
+        String serverUrl = cfg.serverUrl == null ? "" : cfg.serverUrl.trim();
+        String channel = cfg.channel == null ? "" : cfg.channel.trim();
+        if (serverUrl.isBlank() || channel.isBlank()) {
+            return plans;
+        }
+        String nick = cfg.nick == null || cfg.nick.isBlank()
+                ? Minecraft.getInstance().getUser().getName()
+                : cfg.nick.trim();
+        String password = cfg.password == null ? "" : cfg.password;
+        plans.add(new SessionPlan(serverUrl, channel, nick, password, "", "", Math.max(16, cfg.chatBufferSize)));
+
+        Set<String> seen = new HashSet<>();
+        seen.add(serverUrl + "|" + channel.toLowerCase(Locale.ROOT));
+        if (cfg.channels != null) {
+            for (IRCConfig.ChannelEntry entry : cfg.channels) {
+                if (entry == null || entry.channel == null || entry.channel.isBlank()) {
+                    continue;
+                }
+                String entryServer = entry.serverUrl == null || entry.serverUrl.isBlank()
+                        ? serverUrl
+                        : entry.serverUrl.trim();
+                String entryChannel = entry.channel.trim();
+                if (!seen.add(entryServer + "|" + entryChannel.toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+                String entryNick = entry.nick == null || entry.nick.isBlank() ? nick : entry.nick.trim();
+                String entryPassword = entry.password == null ? "" : entry.password;
+                plans.add(new SessionPlan(entryServer, entryChannel, entryNick, entryPassword,
+                        "#" + entryChannel, entry.prefix, Math.max(16, cfg.backgroundChatBufferSize)));
+            }
+        }
+        return plans;
+    }
+
+    private static ChannelSession openSession(SessionPlan plan) {
+        SocketRuntime.setVirtualThreads(config.virtualThreads);
+        ChatTransport chat = createChat(plan.serverUrl(), plan.channel(), plan.nick(), plan.password());
+        return new ChannelSession(chat, plan.tag(), plan.connectionKey(), plan.outboxKey(), plan.prefix(),
+                plan.bufferSize());
+    }
+
+    private static ChatTransport createChat(String serverUrl, String channel, String nick, String password) {
+        SocketChatOptions options = new SocketChatOptions();
+        options.maxPendingMessages = Math.max(1, config.maxPendingMessages);
+        options.sendRateCharsPerSecond = Math.max(0, config.sendRateCharsPerSecond);
+        options.sendBurstChars = Math.max(1, config.sendBurstChars);
+        options.reconnect = config.autoReconnect;
+        options.reconnectMaxDelayMillis = Math.max(1, config.reconnectMaxDelaySeconds) * 1000L;
+        options.heartbeatIntervalMillis = Math.max(0, config.heartbeatIntervalSeconds) * 1000L;
+        options.heartbeatMissedPongs = Math.max(1, config.heartbeatMissedPongs);
+        options.demandWindow = Math.max(1, config.socketDemandWindow);
+        options.listenerQueueCapacity = Math.max(0, config.listenerQueueSize);
+        options.maxMessageChars = Math.max(1, config.maxIncomingMessageKB) * 1024;
+        if (config.virtualThreads) {
+            options.dispatchExecutor = SocketRuntime.executor();
+        }
+        return ChatTransport.open(serverUrl, channel, nick, password, options);
+    }
+
+    private static ChannelSession findSession(String channel) {
+        for (ChannelSession session : SESSIONS) {
+            if (session.chat().getChannel().equalsIgnoreCase(channel)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    static void handleIncoming(ChannelSession session, SocketReceivedPacketEvent event) {
         if (event == null) {
             return;
         }
@@ -151,37 +548,160 @@ public final class IRCClient {
         if (text == null || text.isBlank()) {
             return;
         }
+        HistoryLog log = history;
+        if (log != null) {
+            log.append(new HistoryRecord(System.currentTimeMillis(), session.chat().getChannel(), nick, text));
+        }
+        ChatLineBuffer lines = session.lines();
         if ("info".equalsIgnoreCase(nick)) {
-            postText(Component.literal("[IRC] ").withStyle(ChatFormatting.DARK_AQUA)
+            lines.offer(header(session.tag())
                     .append(Component.literal(text).withStyle(ChatFormatting.GRAY)));
             return;
         }
         if ("warn".equalsIgnoreCase(nick)) {
-            postText(Component.literal("[IRC] ").withStyle(ChatFormatting.DARK_AQUA)
+            lines.offer(header(session.tag())
                     .append(Component.literal(text).withStyle(ChatFormatting.RED)));
             return;
         }
         String safeNick = nick == null || nick.isBlank() ? "?" : nick;
-        postText(Component.literal("[IRC] ").withStyle(ChatFormatting.DARK_AQUA)
+        lines.offer(header(session.tag())
                 .append(Component.literal("<" + safeNick + "> ").withStyle(ChatFormatting.GRAY))
                 .append(Component.literal(text).withStyle(ChatFormatting.WHITE)));
     }
 
+    static void replayHistory(ChannelSession session) {
+        HistoryLog log = history;
+        int limit = getConfig().historyReplayLines;
+        if (log == null || limit <= 0) {
+            return;
+        }
+        long joinedAt = System.currentTimeMillis();
+        log.readRecent(session.chat().getChannel(), limit + 8).thenAccept(page -> {
+            List<HistoryRecord> records = page.records();
+            int newest = 0;
+            while (newest < records.size() && records.get(newest).timestamp() >= joinedAt) {
+                newest++;
+            }
+            int oldest = Math.min(records.size(), newest + limit) - 1;
+            for (int i = oldest; i >= newest; i--) {
+                session.lines().offer(formatHistory(session.tag(), records.get(i)));
+            }
+            if (oldest >= newest) {
+                session.lines().offer(formatSystem(session.tag(), "--- end of history ---"));
+            }
+        });
+    }
+
+    static Component formatHistory(String tag, HistoryRecord record) {
+        String time = formatTime(record.timestamp());
+        String nick = record.nick() == null || record.nick().isBlank() ? "?" : record.nick();
+        return header(tag)
+                .append(Component.literal("[" + time + "] <" + nick + "> " + record.text()).withStyle(ChatFormatting.DARK_GRAY));
+    }
+
+    static String formatTime(long millis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
     public static void sendSystemMessage(String message) {
-        postText(Component.literal("[IRC] ").withStyle(ChatFormatting.DARK_AQUA)
-                .append(Component.literal(message).withStyle(ChatFormatting.GRAY)));
+        SYSTEM_LINES.offer(formatSystem("", message));
+    }
+
+    static Component formatSystem(String tag, String message) {
+        return header(tag).append(Component.literal(message).withStyle(ChatFormatting.GRAY));
     }
 
-    private static void postText(Component text) {
-        Minecraft client = Minecraft.getInstance();
+    private static MutableComponent header(String tag) {
+        String label = tag == null || tag.isEmpty() ? "[IRC] " : "[IRC " + tag + "] ";
+        return Component.literal(label).withStyle(ChatFormatting.DARK_AQUA);
+    }
+
+    static void tick(Minecraft client) {
         if (client == null || client.gui == null) {
             return;
         }
-        client.execute(() -> client.gui.getChat().addMessage(text));
+        IRCConfig cfg = getConfig();
+        int maxLines = Math.max(1, cfg.maxChatLinesPerTick);
+        int budget = maxLines;
+        long started = System.nanoTime();
+        long deadline = started + Math.max(1, cfg.chatDrainBudgetMillis) * 1_000_000L;
+        budget -= drain(client, SYSTEM_LINES, budget, deadline);
+        boolean progressed = true;
+        while (budget > 0 && progressed && System.nanoTime() < deadline) {
+            progressed = false;
+            for (ChannelSession session : SESSIONS) {
+                if (budget <= 0) {
+                    break;
+                }
+                int drained = drain(client, session.lines(), 1, deadline);
+                budget -= drained;
+                progressed |= drained > 0;
+            }
+        }
+        for (ChannelSession session : SESSIONS) {
+            session.afterDrain();
+        }
+        if (budget < maxLines) {
+            DRAIN_NANOS.record(System.nanoTime() - started);
+            LINES_SHOWN.add(maxLines - budget);
+        }
+        showSendQueue(client);
+        if (++filterExpiryTicks >= 20) {
+            filterExpiryTicks = 0;
+            long now = System.nanoTime();
+            for (ChannelSession session : SESSIONS) {
+                session.expireFilter(now);
+            }
+        }
+    }
+
+    /**
+     * Keeps the number of paced messages still waiting to go out in the action bar until the queue is empty.
+     */
+    private static void showSendQueue(Minecraft client) {
+        if (++queueNoticeTicks < 10) {
+            return;
+        }
+        queueNoticeTicks = 0;
+        OutboxSpool spool = outbox;
+        int pending = spool == null ? 0 : spool.size();
+        for (ChannelSession session : SESSIONS) {
+            pending += session.chat().getPendingCount();
+        }
+        if (pending > 0 && !MetricsOverlay.isEnabled()) {
+            String text = "IRC: " + pending + (pending == 1 ? " message" : " messages") + " waiting to send";
+            client.gui.setOverlayMessage(Component.literal(text).withStyle(ChatFormatting.GRAY), false);
+        }
+    }
+
+    private static int drain(Minecraft client, ChatLineBuffer buffer, int maxLines, long deadline) {
+        int drained = 0;
+        while (drained < maxLines) {
+            Component line = buffer.poll();
+            if (line == null) {
+                break;
+            }
+            client.gui.getChat().addMessage(line);
+            drained++;
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        return drained;
     }
 
     private static void shutdown() {
+        IRCConfigManager.stopWatching();
+        OutboxSpool spool = outbox;
+        if (spool != null) {
+            spool.close();
+        }
         disconnect();
+        IRCConfigManager.flush();
+        HistoryLog log = history;
+        if (log != null) {
+            log.close();
+        }
     }
 
     private static int getMaxMessageLength() {
@@ -190,4 +710,21 @@ public final class IRCClient {
         }
         return Math.max(1, config.maxMessageLength);
     }
+
+    record Route(ChannelSession session, int textStart) {
+    }
+
+    private record SessionPlan(String serverUrl, String channel, String nick, String password, String tag,
+                               String prefix, int bufferSize) {
+        String connectionKey() {
+            return serverUrl + "|" + channel + "|" + nick + "|" + password + "|" + tag;
+        }
+
+        /**
+         * Which spooled messages belong to this session: the same server and channel, whatever the nick.
+         */
+        String outboxKey() {
+            return serverUrl + "|" + channel.toLowerCase(Locale.ROOT);
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package vip.megumin.ircmod;
+
+import com.mojang.brigadier.arguments.StringArgumentType;
+import java.util.List;
+import net.fabricmc.fabric.api.client.command.v2.ClientCommandManager;
+import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
+import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
+import net.minecraft.network.chat.Component;
+import vip.megumin.ircmod.config.IRCConfig;
+import vip.megumin.ircmod.config.IRCConfigManager;
+
+/**
+ * Client-side {@code /irc} commands.
+ *
+ * @author haipi
+ */
+
+final class IRCCommands {
+    private IRCCommands() {
+    }
+
+    static void register() {
+        ClientCommandRegistrationCallback.EVENT.register((dispatcher, registryAccess) -> dispatcher.register(
+                ClientCommandManager.literal("irc")
+                        .then(ClientCommandManager.literal("compat")
+                                .executes(context -> {
+                                    for (String line : MinecraftCompat.report()) {
+                                        context.getSource().sendFeedback(Component.literal(line));
+                                    }
+                                    return 1;
+                                }))
+                        .then(ClientCommandManager.literal("stats")
+                                .executes(context -> {
+                                    for (String line : MetricsOverlay.report()) {
+                                        context.getSource().sendFeedback(Component.literal(line));
+                                    }
+                                    return 1;
+                                })
+                                .then(ClientCommandManager.literal("overlay")
+                                        .executes(context -> {
+                                            boolean shown = MetricsOverlay.toggle();
+                                            context.getSource().sendFeedback(Component.literal(
+                                                    "IRC stats overlay " + (shown ? "on" : "off")));
+                                            return 1;
+                                        })))
+                        .then(ClientCommandManager.literal("ignore")
+                                .executes(context -> listIgnored(context.getSource()))
+                                .then(ClientCommandManager.argument("nick", StringArgumentType.word())
+                                        .executes(context -> setIgnored(context.getSource(),
+                                                StringArgumentType.getString(context, "nick"), true))))
+                        .then(ClientCommandManager.literal("unignore")
+                                .then(ClientCommandManager.argument("nick", StringArgumentType.word())
+                                        .executes(context -> setIgnored(context.getSource(),
+                                                StringArgumentType.getString(context, "nick"), false))))
+                        .then(ClientCommandManager.literal("search")
+                                .executes(context -> openSearch(""))
+                                .then(ClientCommandManager.argument("query", StringArgumentType.greedyString())
+                                        .executes(context -> openSearch(StringArgumentType.getString(context, "query")))))));
+    }
+
+    private static int listIgnored(FabricClientCommandSource source) {
+        if (!IRCClient.isReady()) {
+            source.sendFeedback(Component.literal("IRC is still starting; try again in a moment."));
+            return 0;
+        }
+        List<String> ignored = IRCClient.getConfig().ignoredNicks;
+        source.sendFeedback(Component.literal(ignored == null || ignored.isEmpty()
+                ? "Nobody is ignored."
+                : "Ignored: " + String.join(", ", ignored)));
+        return 1;
+    }
+
+    private static int setIgnored(FabricClientCommandSource source, String nick, boolean ignore) {
+        if (!IRCClient.isReady()) {
+            source.sendFeedback(Component.literal("IRC is still starting; try again in a moment."));
+            return 0;
+        }
+        IRCConfig updated = IRCConfigManager.copy(IRCClient.getConfig());
+        boolean changed = ignore
+                ? !InboundFilter.isIgnored(nick) && updated.ignoredNicks.add(nick)
+                : updated.ignoredNicks.removeIf(entry -> entry.equalsIgnoreCase(nick));
+        if (changed) {
+            IRCClient.applyConfig(updated);
+        }
+        source.sendFeedback(Component.literal(ignore
+                ? (changed ? "Ignoring " + nick + "." : nick + " is already ignored.")
+                : (changed ? "No longer ignoring " + nick + "." : nick + " was not ignored.")));
+        return 1;
+    }
+
+    private static int openSearch(String query) {
+        // the chat screen closes itself after running a command, so open on the next tick
+        IRCMod.openScreenLater(new IRCSearchScreen(null, query));
+        return 1;
+    }
+}
@@ -1,12 +1,10 @@
 package vip.megumin.ircmod;
 
-import java.lang.reflect.Method;
 import net.minecraft.client.gui.GuiGraphics;
 import net.minecraft.client.gui.components.Button;
 import net.minecraft.client.gui.components.EditBox;
 import net.minecraft.client.gui.screens.Screen;
 import net.minecraft.network.chat.Component;
-import org.lwjgl.glfw.GLFW;
 import vip.megumin.ircmod.config.IRCConfig;
 import vip.megumin.ircmod.config.IRCConfigManager;
 
@@ -27,8 +25,7 @@ public final class IRCConfigScreen extends Screen {
     private Button connectButton;
 
     private boolean autoConnect;
-    private boolean rebindingOpenKey;
-    private int openKeyCode;
+    private Shortcut openShortcut;
 
     public IRCConfigScreen(Screen parent) {
         super(Component.nullToEmpty("IRC Config"));
@@ -37,9 +34,13 @@ public final class IRCConfigScreen extends Screen {
 
     @Override
     protected void init() {
+        if (!IRCClient.isReady()) {
+            initLoading();
+            return;
+        }
         IRCConfig config = IRCClient.getConfig();
         autoConnect = config.autoConnect;
-        openKeyCode = config.openConfigKeyCode > 0 ? config.openConfigKeyCode : IRCMod.getOpenConfigKeyCode();
+        openShortcut = Shortcut.fromConfig(config);
 
         int centerX = this.width / 2;
         int y = 40;
@@ -78,8 +79,8 @@ public final class IRCConfigScreen extends Screen {
         y += spacing;
 
         rebindOpenKeyButton = Button.builder(openKeyLabel(), button -> {
-            rebindingOpenKey = true;
-            button.setMessage(Component.nullToEmpty("Press a key... (ESC to cancel)"));
+            button.setMessage(Component.nullToEmpty("Press a key or mouse button... (ESC to cancel)"));
+            InputHooks.captureNext(this::onOpenKeyCaptured);
         }).bounds(centerX - fieldWidth / 2, y, fieldWidth, 20).build();
         addRenderableWidget(rebindOpenKeyButton);
         y += spacing;
@@ -103,7 +104,7 @@ public final class IRCConfigScreen extends Screen {
         y += spacing + 4;
 
         addRenderableWidget(Button.builder(Component.nullToEmpty("Save"), button -> {
-            IRCConfig updated = new IRCConfig();
+            IRCConfig updated = IRCConfigManager.copy(config);
             updated.serverUrl = serverField.getValue().trim();
             updated.channel = channelField.getValue().trim();
             updated.nick = nickField.getValue().trim();
@@ -111,7 +112,7 @@ public final class IRCConfigScreen extends Screen {
             updated.prefix = sanitizePrefix(prefixField.getValue(), config.prefix);
             updated.autoConnect = autoConnect;
             updated.maxMessageLength = parseMaxLength(maxLengthField.getValue(), config.maxMessageLength);
-            updated.openConfigKeyCode = openKeyCode;
+            openShortcut.store(updated);
             IRCClient.applyConfig(updated);
             onClose();
         }).bounds(centerX - fieldWidth / 2, y, (fieldWidth - 10) / 2, 20).build());
@@ -123,9 +124,30 @@ public final class IRCConfigScreen extends Screen {
         super.init();
     }
 
+    /**
+     * Shown while startup is still loading the config: the fields would hold defaults, and saving them would replace
+     * the user's file. Reopens itself with the real config once it is there.
+     */
+    private void initLoading() {
+        addRenderableWidget(Button.builder(Component.nullToEmpty("Cancel"), button -> onClose())
+                .bounds(this.width / 2 - 60, this.height / 2 + 10, 120, 20)
+                .build());
+        IRCClient.whenReady(() -> {
+            if (minecraft != null && minecraft.screen == this) {
+                minecraft.setScreen(new IRCConfigScreen(parent));
+            }
+        });
+        super.init();
+    }
+
     @Override
     public void render(GuiGraphics context, int mouseX, int mouseY, float delta) {
-        renderBackgroundCompat(context, mouseX, mouseY, delta);
+        MinecraftCompat.renderBackground(this, context, mouseX, mouseY, delta);
+        if (serverField == null) {
+            context.drawCenteredString(font, "Loading IRC config...", this.width / 2, this.height / 2 - 10, 0xFFFFFF);
+            super.render(context, mouseX, mouseY, delta);
+            return;
+        }
         context.drawString(font, "Server URL", serverField.getX(), serverField.getY() - 10, 0xFFFFFF);
         context.drawString(font, "Channel", channelField.getX(), channelField.getY() - 10, 0xFFFFFF);
         context.drawString(font, "Nick (blank = session)", nickField.getX(), nickField.getY() - 10, 0xFFFFFF);
@@ -135,43 +157,27 @@ public final class IRCConfigScreen extends Screen {
         super.render(context, mouseX, mouseY, delta);
     }
 
-    @Override
-    public void tick() {
-        super.tick();
-        if (!rebindingOpenKey || minecraft == null || minecraft.getWindow() == null) {
-            return;
-        }
-
-        long window = IRCMod.getWindowHandle(minecraft.getWindow());
-        if (window == 0L) {
-            return;
+    private void onOpenKeyCaptured(Shortcut shortcut) {
+        if (shortcut != null) {
+            openShortcut = shortcut;
+            IRCMod.setOpenShortcut(shortcut);
+            // until startup has loaded the config, getConfig() is the defaults; saving those would replace the file
+            IRCClient.whenReady(() -> {
+                IRCConfig cfg = IRCClient.getConfig();
+                shortcut.store(cfg);
+                IRCClient.saveConfig(cfg);
+                IRCMod.setOpenShortcut(shortcut);
+            });
         }
-
-        if (GLFW.glfwGetKey(window, GLFW.GLFW_KEY_ESCAPE) == GLFW.GLFW_PRESS) {
-            rebindingOpenKey = false;
-            if (rebindOpenKeyButton != null) {
-                rebindOpenKeyButton.setMessage(openKeyLabel());
-            }
-            return;
+        if (rebindOpenKeyButton != null) {
+            rebindOpenKeyButton.setMessage(openKeyLabel());
         }
+    }
 
-        for (int key = GLFW.GLFW_KEY_SPACE; key <= GLFW.GLFW_KEY_LAST; key++) {
-            if (GLFW.glfwGetKey(window, key) != GLFW.GLFW_PRESS) {
-                continue;
-            }
-
-            openKeyCode = key;
-            rebindingOpenKey = false;
-            if (rebindOpenKeyButton != null) {
-                rebindOpenKeyButton.setMessage(openKeyLabel());
-            }
-
-            IRCConfig cfg = IRCClient.getConfig();
-            cfg.openConfigKeyCode = openKeyCode;
-            IRCConfigManager.save(cfg);
-            IRCMod.setOpenConfigKeyCode(openKeyCode);
-            return;
-        }
+    @Override
+    public void removed() {
+        InputHooks.cancelCapture();
+        super.removed();
     }
 
     @Override
@@ -188,9 +194,7 @@ public final class IRCConfigScreen extends Screen {
     }
 
     private Component openKeyLabel() {
-        String name = GLFW.glfwGetKeyName(openKeyCode, 0);
-        String shown = name == null || name.isBlank() ? Integer.toString(openKeyCode) : name.toUpperCase();
-        return Component.nullToEmpty("Open Config Key: " + shown);
+        return Component.nullToEmpty("Open Config Key: " + openShortcut.label());
     }
 
     private int parseMaxLength(String input, int fallback) {
@@ -212,19 +216,4 @@ public final class IRCConfigScreen extends Screen {
         }
         return s;
     }
-
-    private void renderBackgroundCompat(GuiGraphics context, int mouseX, int mouseY, float delta) {
-        try {
-            Method modern = Screen.class.getMethod("renderBackground", GuiGraphics.class, int.class, int.class, float.class);
-            modern.invoke(this, context, mouseX, mouseY, delta);
-            return;
-        } catch (Throwable ignored) {
-        }
-
-        try {
-            Method legacy = Screen.class.getMethod("renderBackground", GuiGraphics.class);
-            legacy.invoke(this, context);
-        } catch (Throwable ignored) {
-        }
-    }
 }
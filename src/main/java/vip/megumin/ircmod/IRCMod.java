@@ -1,16 +1,15 @@
 package vip.megumin.ircmod;
 
 import com.mojang.blaze3d.platform.InputConstants;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 import net.fabricmc.api.ClientModInitializer;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.keybinding.v1.KeyBindingHelper;
 import net.fabricmc.fabric.api.client.message.v1.ClientSendMessageEvents;
 import net.minecraft.client.KeyMapping;
 import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.screens.Screen;
 import org.lwjgl.glfw.GLFW;
-import vip.megumin.ircmod.config.IRCConfig;
 
 /**
  * @author haipi
@@ -21,214 +20,101 @@ public class IRCMod implements ClientModInitializer {
     private static final String CATEGORY_KEY = "key.category.ircmod.main";
 
     private static KeyMapping openConfigKey;
-    private static int openConfigKeyCode = GLFW.GLFW_KEY_J;
-    private static boolean openConfigKeyWasDown = false;
+    private static volatile Shortcut openShortcut = new Shortcut(false, GLFW.GLFW_KEY_J, 0);
     private static boolean firstRunMessageSent = false;
+    private static volatile Screen pendingScreen;
 
     @Override
     public void onInitializeClient() {
-        IRCClient.init();
-
-        IRCConfig cfg = IRCClient.getConfig();
-        if (cfg != null && cfg.openConfigKeyCode > 0) {
-            openConfigKeyCode = cfg.openConfigKeyCode;
-        }
-
-        openConfigKey = KeyBindingHelper.registerKeyBinding(createKeyBinding(
+        long started = System.nanoTime();
+        openConfigKey = KeyBindingHelper.registerKeyBinding(MinecraftCompat.createKeyMapping(
                 "key.ircmod.open_config",
-                openConfigKeyCode
+                GLFW.GLFW_KEY_J,
+                "ircmod",
+                "main",
+                CATEGORY_KEY
         ));
 
         ClientTickEvents.END_CLIENT_TICK.register(client -> {
+            IRCClient.tick(client);
+            MetricsOverlay.tick(client);
+            Screen screen = pendingScreen;
+            if (screen != null) {
+                pendingScreen = null;
+                client.setScreen(screen);
+            }
             if (!firstRunMessageSent && IRCClient.isFirstRun() && client.player != null) {
-                IRCClient.sendSystemMessage("Press J to Settings UI");
+                IRCClient.sendSystemMessage("Press " + openShortcut.label() + " to Settings UI");
                 firstRunMessageSent = true;
             }
-            boolean opened = false;
             while (openConfigKey.consumeClick()) {
-                opened = true;
                 client.setScreen(new IRCConfigScreen(client.screen));
             }
-            if (!opened) {
-                handleDirectOpenKey(client);
-            }
         });
 
+        InputHooks.addKeyHandler(new ChatNickCompleter());
+        InputHooks.addKeyHandler((client, key, scancode, action, mods) ->
+                action == GLFW.GLFW_PRESS && openShortcut.matchesKey(key, mods) && openConfigScreen(client));
+        InputHooks.addMouseHandler((client, button, action, mods) ->
+                action == GLFW.GLFW_PRESS && openShortcut.matchesMouse(button, mods) && openConfigScreen(client));
+        ClientLifecycleEvents.CLIENT_STARTED.register(client -> {
+            InputHooks.install(client);
+            // options.txt has been applied by now; make the vanilla mapping agree with the configured shortcut
+            tryUpdateKeyBinding(openConfigKey, openShortcut);
+            IRCClient.start();
+        });
+        IRCCommands.register();
+
         ClientSendMessageEvents.ALLOW_CHAT.register((message) -> !IRCClient.handleOutgoingMessage(message));
+        IRCClient.INIT_NANOS.record(System.nanoTime() - started);
     }
 
-    static int getOpenConfigKeyCode() {
-        return openConfigKeyCode;
+    static void openScreenLater(Screen screen) {
+        pendingScreen = screen;
     }
 
-    static void setOpenConfigKeyCode(int keyCode) {
-        if (keyCode <= 0) {
-            return;
-        }
-        openConfigKeyCode = keyCode;
-        tryUpdateKeyBinding(openConfigKey, keyCode);
+    static Shortcut getOpenShortcut() {
+        return openShortcut;
     }
 
-    private static void handleDirectOpenKey(Minecraft client) {
-        if (client == null || client.getWindow() == null) {
+    static void setOpenShortcut(Shortcut shortcut) {
+        if (shortcut == null || shortcut.equals(openShortcut)) {
             return;
         }
+        openShortcut = shortcut;
+        tryUpdateKeyBinding(openConfigKey, shortcut);
+    }
+
+    /**
+     * Opens the config screen when no other screen is up. Runs from the GLFW callback, so the key never reaches
+     * the world or the vanilla key mapping.
+     */
+    private static boolean openConfigScreen(Minecraft client) {
         if (client.screen != null) {
-            openConfigKeyWasDown = false;
-            return;
+            return false;
         }
-        long handle = getWindowHandle(client.getWindow());
-        if (handle == 0L) {
-            return;
-        }
-        boolean down = GLFW.glfwGetKey(handle, openConfigKeyCode) == GLFW.GLFW_PRESS;
-        if (down && !openConfigKeyWasDown) {
-            client.setScreen(new IRCConfigScreen(client.screen));
-        }
-        openConfigKeyWasDown = down;
+        client.setScreen(new IRCConfigScreen(null));
+        return true;
     }
 
-    private static void tryUpdateKeyBinding(KeyMapping keyBinding, int keyCode) {
+    /**
+     * Mirrors the shortcut onto the vanilla key mapping so it shows in Controls. A key mapping cannot require
+     * modifiers, so a combo leaves it unbound rather than letting the bare key open the screen.
+     */
+    private static void tryUpdateKeyBinding(KeyMapping keyBinding, Shortcut shortcut) {
         if (keyBinding == null) {
             return;
         }
         try {
-            keyBinding.setKey(InputConstants.Type.KEYSYM.getOrCreate(keyCode));
-            KeyMapping.resetMapping();
-        } catch (Throwable ignored) {
-        }
-    }
-
-    private static KeyMapping createKeyBinding(String translationKey, int keyCode) {
-        InputConstants.Type type = InputConstants.Type.KEYSYM;
-        Object categoryId = createCategoryId("ircmod", "main");
-
-        for (Constructor<?> ctor : KeyMapping.class.getConstructors()) {
-            Class<?>[] p = ctor.getParameterTypes();
-            try {
-                if (p.length == 5
-                        && p[0] == String.class
-                        && p[1] == InputConstants.Type.class
-                        && p[2] == int.class
-                        && p[4] == int.class) {
-                    Object categoryArg = createCategoryArg(p[3], categoryId);
-                    if (categoryArg != null) {
-                        return (KeyMapping) ctor.newInstance(translationKey, type, keyCode, categoryArg, 0);
-                    }
-                }
-
-                if (p.length == 4
-                        && p[0] == String.class
-                        && p[1] == InputConstants.Type.class
-                        && p[2] == int.class) {
-                    Object categoryArg = createCategoryArg(p[3], categoryId);
-                    if (categoryArg != null) {
-                        return (KeyMapping) ctor.newInstance(translationKey, type, keyCode, categoryArg);
-                    }
-                }
-
-                if (p.length == 3
-                        && p[0] == String.class
-                        && p[1] == int.class) {
-                    Object categoryArg = createCategoryArg(p[2], categoryId);
-                    if (categoryArg != null) {
-                        return (KeyMapping) ctor.newInstance(translationKey, keyCode, categoryArg);
-                    }
-                }
-            } catch (ReflectiveOperationException ignored) {
+            if (shortcut.modifiers() != 0) {
+                keyBinding.setKey(InputConstants.UNKNOWN);
+            } else if (shortcut.mouse()) {
+                keyBinding.setKey(InputConstants.Type.MOUSE.getOrCreate(shortcut.code()));
+            } else {
+                keyBinding.setKey(InputConstants.Type.KEYSYM.getOrCreate(shortcut.code()));
             }
-        }
-
-        throw new IllegalStateException("No compatible KeyBinding constructor found for this Minecraft version");
-    }
-
-    private static Object createCategoryArg(Class<?> categoryParamType, Object id) {
-        if (categoryParamType == String.class) {
-            return CATEGORY_KEY;
-        }
-        if (id == null) {
-            return null;
-        }
-
-        try {
-            Constructor<?> ctor = categoryParamType.getDeclaredConstructor(id.getClass());
-            ctor.setAccessible(true);
-            return ctor.newInstance(id);
-        } catch (Throwable ignored) {
-        }
-
-        try {
-            for (Method m : categoryParamType.getMethods()) {
-                if (!java.lang.reflect.Modifier.isStatic(m.getModifiers())) {
-                    continue;
-                }
-                if (m.getParameterCount() != 1 || !m.getParameterTypes()[0].isAssignableFrom(id.getClass())) {
-                    continue;
-                }
-                if (!categoryParamType.isAssignableFrom(m.getReturnType())) {
-                    continue;
-                }
-                return m.invoke(null, id);
-            }
-        } catch (Throwable ignored) {
-        }
-
-        return null;
-    }
-
-    private static Object createCategoryId(String namespace, String path) {
-        try {
-            Class<?> resourceLocationClass = Class.forName("net.minecraft.resources.ResourceLocation");
-
-            try {
-                Method factory = resourceLocationClass.getMethod("fromNamespaceAndPath", String.class, String.class);
-                return factory.invoke(null, namespace, path);
-            } catch (NoSuchMethodException ignored) {
-            }
-
-            Constructor<?> ctor = resourceLocationClass.getDeclaredConstructor(String.class, String.class);
-            ctor.setAccessible(true);
-            return ctor.newInstance(namespace, path);
-        } catch (Throwable ignored) {
-        }
-
-        try {
-            Class<?> identifierClass = Class.forName("net.minecraft.resources.Identifier");
-
-            try {
-                Method factory = identifierClass.getMethod("fromNamespaceAndPath", String.class, String.class);
-                return factory.invoke(null, namespace, path);
-            } catch (NoSuchMethodException ignored) {
-            }
-
-            Constructor<?> ctor = identifierClass.getDeclaredConstructor(String.class, String.class);
-            ctor.setAccessible(true);
-            return ctor.newInstance(namespace, path);
+            KeyMapping.resetMapping();
         } catch (Throwable ignored) {
         }
-
-        return null;
-    }
-
-    static long getWindowHandle(Object window) {
-        if (window == null) {
-            return 0L;
-        }
-
-        for (String methodName : new String[]{"getWindow", "handle", "getHandle"}) {
-            try {
-                Method method = window.getClass().getMethod(methodName);
-                Object value = method.invoke(window);
-                if (value instanceof Long l) {
-                    return l;
-                }
-                if (value instanceof Number n) {
-                    return n.longValue();
-                }
-            } catch (Throwable ignored) {
-            }
-        }
-
-        return 0L;
     }
 }
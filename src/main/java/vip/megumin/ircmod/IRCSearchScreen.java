@@ -0,0 +1,194 @@
+package vip.megumin.ircmod;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.minecraft.client.gui.GuiGraphics;
+import net.minecraft.client.gui.components.Button;
+import net.minecraft.client.gui.components.EditBox;
+import net.minecraft.client.gui.screens.Screen;
+import net.minecraft.network.chat.Component;
+import vip.megumin.ircmod.history.HistoryLog;
+import vip.megumin.ircmod.history.HistoryPage;
+import vip.megumin.ircmod.history.HistoryRecord;
+import vip.megumin.ircmod.history.SearchQuery;
+
+/**
+ * Paged history search. Queries run on the history thread; results are swapped in when they arrive, so typing and
+ * paging never wait on disk.
+ *
+ * @author haipi
+ */
+
+public final class IRCSearchScreen extends Screen {
+    private static final int LINE_HEIGHT = 11;
+    private static final int RESULTS_TOP = 64;
+    private static final int SEARCH_DELAY_TICKS = 6;
+
+    private final Screen parent;
+    private final String initialQuery;
+    private final List<HistoryPage.Cursor> pageStarts = new ArrayList<>();
+    private EditBox queryField;
+    private Button prevButton;
+    private Button nextButton;
+
+    private SearchQuery query;
+    private int pageSize;
+    private volatile int generation;
+    private int ticksUntilSearch = -1;
+    private volatile Result result;
+    private Result shown;
+    private int shownWidth;
+    private List<String> shownLines = List.of();
+
+    public IRCSearchScreen(Screen parent, String initialQuery) {
+        super(Component.nullToEmpty("IRC Search"));
+        this.parent = parent;
+        this.initialQuery = initialQuery == null ? "" : initialQuery;
+    }
+
+    @Override
+    protected void init() {
+        int centerX = this.width / 2;
+        int fieldWidth = Math.min(360, this.width - 40);
+        String previous = queryField == null ? initialQuery : queryField.getValue();
+
+        queryField = new EditBox(font, centerX - fieldWidth / 2, 30, fieldWidth, 20, Component.nullToEmpty("Query"));
+        queryField.setMaxLength(256);
+        queryField.setValue(previous);
+        queryField.setResponder(value -> ticksUntilSearch = SEARCH_DELAY_TICKS);
+        addRenderableWidget(queryField);
+
+        int buttonY = this.height - 28;
+        int buttonWidth = (fieldWidth - 20) / 3;
+        prevButton = addRenderableWidget(Button.builder(Component.nullToEmpty("< Newer"), button -> showPrevious())
+                .bounds(centerX - fieldWidth / 2, buttonY, buttonWidth, 20).build());
+        nextButton = addRenderableWidget(Button.builder(Component.nullToEmpty("Older >"), button -> showNext())
+                .bounds(centerX - buttonWidth / 2, buttonY, buttonWidth, 20).build());
+        addRenderableWidget(Button.builder(Component.nullToEmpty("Close"), button -> onClose())
+                .bounds(centerX + fieldWidth / 2 - buttonWidth, buttonY, buttonWidth, 20).build());
+
+        pageSize = Math.max(1, (buttonY - 6 - RESULTS_TOP) / LINE_HEIGHT);
+        super.init();
+        search();
+    }
+
+    @Override
+    public void tick() {
+        super.tick();
+        if (ticksUntilSearch > 0 && --ticksUntilSearch == 0) {
+            search();
+        }
+        Result current = result;
+        prevButton.active = pageStarts.size() > 1;
+        nextButton.active = current != null && current.page != null && current.page.next() != null;
+    }
+
+    @Override
+    public void render(GuiGraphics context, int mouseX, int mouseY, float delta) {
+        MinecraftCompat.renderBackground(this, context, mouseX, mouseY, delta);
+        context.drawString(font, "Search (nick:, channel:, since:7d, until:1h)",
+                queryField.getX(), queryField.getY() - 10, 0xFFFFFFFF);
+
+        int left = queryField.getX();
+        int maxWidth = this.width - left * 2;
+        int y = RESULTS_TOP;
+        Result current = result;
+        if (IRCClient.getHistory() == null) {
+            context.drawString(font, "History is disabled in the config.", left, y, 0xFFAAAAAA);
+        } else if (current == null) {
+            context.drawString(font, "Searching...", left, y, 0xFFAAAAAA);
+        } else if (current.error != null) {
+            context.drawString(font, "Search failed: " + current.error, left, y, 0xFFFF5555);
+        } else if (current.page.records().isEmpty()) {
+            context.drawString(font, pageStarts.size() > 1 ? "No older results." : "No results.", left, y, 0xFFAAAAAA);
+        } else {
+            if (current != shown || maxWidth != shownWidth) {
+                List<String> lines = new ArrayList<>();
+                for (HistoryRecord record : current.page.records()) {
+                    lines.add(fit(describe(record), maxWidth));
+                }
+                shown = current;
+                shownWidth = maxWidth;
+                shownLines = lines;
+            }
+            for (String line : shownLines) {
+                context.drawString(font, line, left, y, 0xFFFFFFFF);
+                y += LINE_HEIGHT;
+            }
+            context.drawString(font, "Page " + pageStarts.size(), left, RESULTS_TOP - 12, 0xFFAAAAAA);
+        }
+        super.render(context, mouseX, mouseY, delta);
+    }
+
+    @Override
+    public void onClose() {
+        minecraft.setScreen(parent);
+    }
+
+    private void search() {
+        ticksUntilSearch = -1;
+        query = SearchQuery.parse(queryField.getValue(), System.currentTimeMillis());
+        pageStarts.clear();
+        pageStarts.add(null);
+        load();
+    }
+
+    private void showNext() {
+        Result current = result;
+        if (current == null || current.page == null || current.page.next() == null) {
+            return;
+        }
+        pageStarts.add(current.page.next());
+        load();
+    }
+
+    private void showPrevious() {
+        if (pageStarts.size() <= 1) {
+            return;
+        }
+        pageStarts.remove(pageStarts.size() - 1);
+        load();
+    }
+
+    private void load() {
+        int requested = ++generation;
+        result = null;
+        HistoryLog log = IRCClient.getHistory();
+        if (log == null) {
+            return;
+        }
+        log.search(query, pageStarts.get(pageStarts.size() - 1), pageSize).whenComplete((page, err) -> {
+            if (requested != generation) {
+                return;
+            }
+            result = err == null
+                    ? new Result(page, null)
+                    : new Result(null, err.getCause() != null ? err.getCause().getMessage() : err.getMessage());
+        });
+    }
+
+    private String fit(String line, int maxWidth) {
+        if (font.width(line) <= maxWidth) {
+            return line;
+        }
+        int lo = 0;
+        int hi = line.length();
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (font.width(line.substring(0, mid) + "...") <= maxWidth) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return line.substring(0, lo) + "...";
+    }
+
+    private static String describe(HistoryRecord record) {
+        String nick = record.nick() == null || record.nick().isBlank() ? "?" : record.nick();
+        return "[" + IRCClient.formatTime(record.timestamp()) + "] #" + record.channel() + " <" + nick + "> " + record.text();
+    }
+
+    private record Result(HistoryPage page, String error) {
+    }
+}
@@ -0,0 +1,183 @@
+package vip.megumin.ircmod;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import vip.megumin.ircmod.config.IRCConfig;
+import vip.megumin.ircmod.socket.SocketReceivedPacketEvent;
+
+/**
+ * Screens one channel's chat before anything is formatted. Runs on the socket's dispatch thread, so a flood costs
+ * a map lookup per line instead of a chat line on the client thread.
+ * <ul>
+ *     <li>Nicks on the ignore list are dropped.</li>
+ *     <li>The same text from the same nick within the duplicate window is shown once; when the window ends, or the
+ *     nick says something else, one {@code "text (xN)"} line stands in for the repeats.</li>
+ *     <li>Each nick gets a token bucket. Lines over it are hidden and later reported as a count.</li>
+ * </ul>
+ * At most {@link #MAX_TRACKED_NICKS} nicks are tracked; the least recently heard is flushed and forgotten first.
+ *
+ * @author haipi
+ */
+
+final class InboundFilter {
+    static final int MAX_TRACKED_NICKS = 256;
+
+    private static volatile Settings settings = new Settings(new IRCConfig());
+
+    private final LinkedHashMap<String, NickState> nicks = new LinkedHashMap<>(64, 0.75f, true);
+
+    static void configure(IRCConfig cfg) {
+        settings = new Settings(cfg);
+    }
+
+    static boolean isIgnored(String nick) {
+        return nick != null && settings.ignored.contains(nick.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Passes {@code event} to {@code out} if it should be shown, preceded by any summary it closes.
+     */
+    synchronized void offer(SocketReceivedPacketEvent event, long now, Consumer<SocketReceivedPacketEvent> out) {
+        String nick = event.nick();
+        if (nick == null || event.text() == null || "info".equalsIgnoreCase(nick) || "warn".equalsIgnoreCase(nick)) {
+            out.accept(event);
+            return;
+        }
+        Settings current = settings;
+        String key = nick.toLowerCase(Locale.ROOT);
+        if (current.ignored.contains(key)) {
+            return;
+        }
+        NickState state = nicks.get(key);
+        if (state == null) {
+            if (nicks.size() >= MAX_TRACKED_NICKS) {
+                Iterator<NickState> eldest = nicks.values().iterator();
+                flush(eldest.next(), out);
+                eldest.remove();
+            }
+            state = new NickState(nick, current.burst, now);
+            nicks.put(key, state);
+        }
+
+        String text = event.text();
+        if (current.duplicateWindowNanos > 0 && text.equals(state.lastText)
+                && now - state.lastShownAt < current.duplicateWindowNanos) {
+            state.repeats++;
+            return;
+        }
+        flushRepeats(state, out);
+        if (!state.tryAcquire(current, now)) {
+            state.hidden++;
+            return;
+        }
+        flushHidden(state, out);
+        state.lastText = text;
+        state.lastShownAt = now;
+        out.accept(event);
+    }
+
+    /**
+     * Emits summaries whose window has ended. Called periodically from the client tick.
+     */
+    synchronized void expire(long now, Consumer<SocketReceivedPacketEvent> out) {
+        Settings current = settings;
+        for (NickState state : nicks.values()) {
+            if (state.repeats > 0 && now - state.lastShownAt >= current.duplicateWindowNanos) {
+                flushRepeats(state, out);
+                state.lastText = null;
+            }
+            if (state.hidden > 0 && state.hasToken(current, now)) {
+                flushHidden(state, out);
+            }
+        }
+    }
+
+    private static void flush(NickState state, Consumer<SocketReceivedPacketEvent> out) {
+        flushRepeats(state, out);
+        flushHidden(state, out);
+    }
+
+    private static void flushRepeats(NickState state, Consumer<SocketReceivedPacketEvent> out) {
+        if (state.repeats > 0) {
+            out.accept(new SocketReceivedPacketEvent(state.nick, state.lastText + " (x" + (state.repeats + 1) + ")"));
+            state.repeats = 0;
+        }
+    }
+
+    private static void flushHidden(NickState state, Consumer<SocketReceivedPacketEvent> out) {
+        if (state.hidden > 0) {
+            out.accept(new SocketReceivedPacketEvent("info", state.nick + ": " + state.hidden
+                    + (state.hidden == 1 ? " message" : " messages") + " hidden (flooding)"));
+            state.hidden = 0;
+        }
+    }
+
+    private static final class Settings {
+        final double burst;
+        final double perNano;
+        final long duplicateWindowNanos;
+        final Set<String> ignored;
+
+        Settings(IRCConfig cfg) {
+            this.burst = Math.max(1, cfg.floodBurst);
+            this.perNano = Math.max(0, cfg.floodMessagesPerMinute) / (double) TimeUnit.MINUTES.toNanos(1);
+            this.duplicateWindowNanos = TimeUnit.SECONDS.toNanos(Math.max(0, cfg.duplicateWindowSeconds));
+            Set<String> nicks = new HashSet<>();
+            if (cfg.ignoredNicks != null) {
+                for (String nick : cfg.ignoredNicks) {
+                    if (nick != null && !nick.isBlank()) {
+                        nicks.add(nick.trim().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            this.ignored = Collections.unmodifiableSet(nicks);
+        }
+    }
+
+    private static final class NickState {
+        final String nick;
+        double tokens;
+        long refilledAt;
+        String lastText;
+        long lastShownAt;
+        int repeats;
+        int hidden;
+
+        NickState(String nick, double burst, long now) {
+            this.nick = nick;
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+
+        boolean tryAcquire(Settings settings, long now) {
+            if (settings.perNano <= 0) {
+                return true;
+            }
+            refill(settings, now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        boolean hasToken(Settings settings, long now) {
+            if (settings.perNano <= 0) {
+                return true;
+            }
+            refill(settings, now);
+            return tokens >= 1;
+        }
+
+        private void refill(Settings settings, long now) {
+            tokens = Math.min(settings.burst, tokens + (now - refilledAt) * settings.perNano);
+            refilledAt = now;
+        }
+    }
+}
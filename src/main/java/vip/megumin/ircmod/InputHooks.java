@@ -0,0 +1,106 @@
+package vip.megumin.ircmod;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import net.minecraft.client.Minecraft;
+import org.lwjgl.glfw.GLFW;
+import org.lwjgl.glfw.GLFWKeyCallback;
+import org.lwjgl.glfw.GLFWMouseButtonCallback;
+
+/**
+ * Chains in front of Minecraft's GLFW key and mouse button callbacks so handlers see input as it happens instead of
+ * polling. A handler returning {@code true} consumes the event. {@link #captureNext} grabs the next press for
+ * rebinding before any handler sees it.
+ *
+ * @author haipi
+ */
+
+final class InputHooks {
+    interface KeyHandler {
+        boolean onKey(Minecraft client, int key, int scancode, int action, int mods);
+    }
+
+    interface MouseHandler {
+        boolean onMouseButton(Minecraft client, int button, int action, int mods);
+    }
+
+    private static final CopyOnWriteArrayList<KeyHandler> KEY_HANDLERS = new CopyOnWriteArrayList<>();
+    private static final CopyOnWriteArrayList<MouseHandler> MOUSE_HANDLERS = new CopyOnWriteArrayList<>();
+    private static GLFWKeyCallback previousKeyCallback;
+    private static GLFWMouseButtonCallback previousMouseCallback;
+    private static Consumer<Shortcut> capture;
+    private static boolean installed;
+
+    private InputHooks() {
+    }
+
+    static void addKeyHandler(KeyHandler handler) {
+        KEY_HANDLERS.add(handler);
+    }
+
+    static void addMouseHandler(MouseHandler handler) {
+        MOUSE_HANDLERS.add(handler);
+    }
+
+    /**
+     * Hands the next key press, or press of a mouse button other than left/right, to {@code target} together with
+     * the modifiers held. Modifier keys alone are not captured. Escape cancels and delivers {@code null}.
+     * Called and delivered on the client thread.
+     */
+    static void captureNext(Consumer<Shortcut> target) {
+        capture = target;
+    }
+
+    static void cancelCapture() {
+        capture = null;
+    }
+
+    static void install(Minecraft client) {
+        if (installed || client == null || client.getWindow() == null) {
+            return;
+        }
+        long window = MinecraftCompat.windowHandle(client.getWindow());
+        if (window == 0L) {
+            return;
+        }
+        installed = true;
+        previousKeyCallback = GLFW.glfwSetKeyCallback(window, (handle, key, scancode, action, mods) -> {
+            if (capture != null && action == GLFW.GLFW_PRESS) {
+                if (key == GLFW.GLFW_KEY_ESCAPE) {
+                    deliverCapture(null);
+                } else if (!Shortcut.isModifierKey(key)) {
+                    deliverCapture(new Shortcut(false, key, mods));
+                }
+                return;
+            }
+            for (KeyHandler handler : KEY_HANDLERS) {
+                if (handler.onKey(client, key, scancode, action, mods)) {
+                    return;
+                }
+            }
+            if (previousKeyCallback != null) {
+                previousKeyCallback.invoke(handle, key, scancode, action, mods);
+            }
+        });
+        previousMouseCallback = GLFW.glfwSetMouseButtonCallback(window, (handle, button, action, mods) -> {
+            if (capture != null && action == GLFW.GLFW_PRESS && button >= GLFW.GLFW_MOUSE_BUTTON_MIDDLE) {
+                deliverCapture(new Shortcut(true, button, mods));
+                return;
+            }
+            for (MouseHandler handler : MOUSE_HANDLERS) {
+                if (handler.onMouseButton(client, button, action, mods)) {
+                    return;
+                }
+            }
+            if (previousMouseCallback != null) {
+                previousMouseCallback.invoke(handle, button, action, mods);
+            }
+        });
+    }
+
+    private static void deliverCapture(Shortcut shortcut) {
+        Consumer<Shortcut> target = capture;
+        capture = null;
+        target.accept(shortcut);
+    }
+}
@@ -0,0 +1,141 @@
+package vip.megumin.ircmod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import net.minecraft.ChatFormatting;
+import net.minecraft.client.Minecraft;
+import net.minecraft.network.chat.Component;
+import vip.megumin.ircmod.metrics.Histogram;
+import vip.megumin.ircmod.socket.SocketMetrics;
+
+/**
+ * Connection diagnostics shown in the action bar once a second while toggled on with {@code /irc stats overlay}.
+ * Rates and percentiles cover the last second only; {@link #report()} gives the totals since launch.
+ *
+ * @author haipi
+ */
+
+final class MetricsOverlay {
+    private static final int REFRESH_TICKS = 20;
+
+    private static volatile boolean enabled;
+    private static int ticks;
+    private static long sampledAt;
+    private static long framesIn;
+    private static long bytesIn;
+    private static long framesOut;
+    private static long bytesOut;
+    private static final long[] PARSE_PREVIOUS = new long[Histogram.bucketCount()];
+    private static final long[] PARSE_CURRENT = new long[Histogram.bucketCount()];
+    private static final long[] DRAIN_PREVIOUS = new long[Histogram.bucketCount()];
+    private static final long[] DRAIN_CURRENT = new long[Histogram.bucketCount()];
+
+    private MetricsOverlay() {
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static boolean toggle() {
+        enabled = !enabled;
+        ticks = REFRESH_TICKS;
+        sample(System.nanoTime());
+        return enabled;
+    }
+
+    /**
+     * Called every client tick.
+     */
+    static void tick(Minecraft client) {
+        if (!enabled || client.gui == null || ++ticks < REFRESH_TICKS) {
+            return;
+        }
+        ticks = 0;
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - sampledAt) / 1e9);
+        long inFrames = SocketMetrics.FRAMES_IN.get() - framesIn;
+        long inBytes = SocketMetrics.BYTES_IN.get() - bytesIn;
+        long outFrames = SocketMetrics.FRAMES_OUT.get() - framesOut;
+        long outBytes = SocketMetrics.BYTES_OUT.get() - bytesOut;
+        long parseP99 = windowPercentile(SocketMetrics.PARSE_NANOS, PARSE_PREVIOUS, PARSE_CURRENT, 0.99);
+        long drainP99 = windowPercentile(IRCClient.DRAIN_NANOS, DRAIN_PREVIOUS, DRAIN_CURRENT, 0.99);
+        sample(now);
+
+        String line = String.format(Locale.ROOT,
+                "IRC in %.0f/s %s/s | out %.0f/s %s/s | queue %d | parse p99 %s | drain p99 %s | rc %d | nick %d",
+                inFrames / seconds, bytes(inBytes / seconds), outFrames / seconds, bytes(outBytes / seconds),
+                SocketMetrics.OUTBOUND_QUEUED.get(), nanos(parseP99), nanos(drainP99),
+                SocketMetrics.RECONNECTS.get(), SocketMetrics.NICK_RETRIES.get());
+        client.gui.setOverlayMessage(Component.literal(line).withStyle(ChatFormatting.AQUA), false);
+    }
+
+    static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "in: %d messages, %s", SocketMetrics.FRAMES_IN.get(),
+                bytes(SocketMetrics.BYTES_IN.get())));
+        lines.add(String.format(Locale.ROOT, "out: %d messages, %s", SocketMetrics.FRAMES_OUT.get(),
+                bytes(SocketMetrics.BYTES_OUT.get())));
+        lines.add(String.format(Locale.ROOT, "outbound queue: %d (max %d)", SocketMetrics.OUTBOUND_QUEUED.get(),
+                SocketMetrics.OUTBOUND_QUEUED.max()));
+        lines.add("parse: " + summary(SocketMetrics.PARSE_NANOS));
+        lines.add("chat drain per tick: " + summary(IRCClient.DRAIN_NANOS) + ", "
+                + IRCClient.LINES_SHOWN.get() + " lines");
+        lines.add(String.format(Locale.ROOT, "listener queues: %d lagged, %d dropped",
+                SocketMetrics.LISTENER_LAGGED.get(), SocketMetrics.LISTENER_DROPPED.get()));
+        lines.add("startup: " + nanos(IRCClient.INIT_NANOS.max()) + " on the loading thread, "
+                + nanos(IRCClient.STARTUP_NANOS.max()) + " in the background, title screen after "
+                + nanos(IRCClient.LAUNCH_NANOS.max()));
+        lines.add(String.format(Locale.ROOT, "reconnects: %d (%d attempts), nick retries: %d",
+                SocketMetrics.RECONNECTS.get(), SocketMetrics.RECONNECT_ATTEMPTS.get(),
+                SocketMetrics.NICK_RETRIES.get()));
+        return lines;
+    }
+
+    private static void sample(long now) {
+        sampledAt = now;
+        framesIn = SocketMetrics.FRAMES_IN.get();
+        bytesIn = SocketMetrics.BYTES_IN.get();
+        framesOut = SocketMetrics.FRAMES_OUT.get();
+        bytesOut = SocketMetrics.BYTES_OUT.get();
+        SocketMetrics.PARSE_NANOS.copyBuckets(PARSE_PREVIOUS);
+        IRCClient.DRAIN_NANOS.copyBuckets(DRAIN_PREVIOUS);
+    }
+
+    private static long windowPercentile(Histogram histogram, long[] previous, long[] current, double quantile) {
+        histogram.copyBuckets(current);
+        for (int i = 0; i < current.length; i++) {
+            current[i] -= previous[i];
+        }
+        return Histogram.percentile(current, quantile);
+    }
+
+    private static String summary(Histogram histogram) {
+        if (histogram.count() == 0) {
+            return "no samples";
+        }
+        return "p50 " + nanos(histogram.percentile(0.50)) + ", p99 " + nanos(histogram.percentile(0.99))
+                + ", max " + nanos(histogram.max()) + " (" + histogram.count() + " samples)";
+    }
+
+    private static String nanos(long nanos) {
+        if (nanos < 0) {
+            return "-";
+        }
+        if (nanos < 1_000_000L) {
+            return String.format(Locale.ROOT, "%.1fus", nanos / 1e3);
+        }
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    private static String bytes(double bytes) {
+        if (bytes < 1024) {
+            return String.format(Locale.ROOT, "%.0fB", bytes);
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1fKB", bytes / 1024);
+        }
+        return String.format(Locale.ROOT, "%.1fMB", bytes / (1024 * 1024));
+    }
+}
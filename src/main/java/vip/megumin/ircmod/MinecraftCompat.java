@@ -0,0 +1,264 @@
+package vip.megumin.ircmod;
+
+import com.mojang.blaze3d.platform.InputConstants;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.client.KeyMapping;
+import net.minecraft.client.gui.GuiGraphics;
+import net.minecraft.client.gui.screens.Screen;
+
+/**
+ * Members whose shape changes between the supported Minecraft versions. Each one is looked up a single time and
+ * kept as a {@link MethodHandle}; later calls go straight through the handle. {@link #report()} lists what was
+ * picked.
+ *
+ * @author haipi
+ */
+
+final class MinecraftCompat {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+    private static final MethodType RENDER_BACKGROUND_TYPE =
+            MethodType.methodType(void.class, Screen.class, GuiGraphics.class, int.class, int.class, float.class);
+    private static final MethodHandle NO_WINDOW_HANDLE =
+            MethodHandles.dropArguments(MethodHandles.constant(long.class, 0L), 0, Object.class);
+
+    private static final MethodHandle RENDER_BACKGROUND;
+    private static final String RENDER_BACKGROUND_VARIANT;
+
+    private static volatile Class<?> windowClass;
+    private static volatile MethodHandle windowHandle;
+    private static volatile String windowVariant = "not resolved yet";
+    private static volatile String keyMappingVariant = "not resolved yet";
+    private static volatile String categoryIdVariant = "not resolved yet";
+
+    static {
+        MethodHandle handle = null;
+        String variant = "none (background skipped)";
+        try {
+            handle = LOOKUP.findVirtual(Screen.class, "renderBackground",
+                    MethodType.methodType(void.class, GuiGraphics.class, int.class, int.class, float.class));
+            variant = "renderBackground(GuiGraphics, int, int, float)";
+        } catch (ReflectiveOperationException ignored) {
+        }
+        if (handle == null) {
+            try {
+                MethodHandle legacy = LOOKUP.findVirtual(Screen.class, "renderBackground",
+                        MethodType.methodType(void.class, GuiGraphics.class));
+                handle = MethodHandles.dropArguments(legacy, 2, int.class, int.class, float.class);
+                variant = "renderBackground(GuiGraphics)";
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+        RENDER_BACKGROUND = handle != null ? handle : MethodHandles.empty(RENDER_BACKGROUND_TYPE);
+        RENDER_BACKGROUND_VARIANT = variant;
+    }
+
+    private MinecraftCompat() {
+    }
+
+    static void renderBackground(Screen screen, GuiGraphics context, int mouseX, int mouseY, float delta) {
+        try {
+            RENDER_BACKGROUND.invokeExact(screen, context, mouseX, mouseY, delta);
+        } catch (Throwable ignored) {
+        }
+    }
+
+    static long windowHandle(Object window) {
+        if (window == null) {
+            return 0L;
+        }
+        MethodHandle handle = windowHandle;
+        if (handle == null || windowClass != window.getClass()) {
+            handle = resolveWindowHandle(window.getClass());
+        }
+        try {
+            return (long) handle.invokeExact(window);
+        } catch (Throwable ignored) {
+            return 0L;
+        }
+    }
+
+    private static synchronized MethodHandle resolveWindowHandle(Class<?> type) {
+        if (windowClass == type && windowHandle != null) {
+            return windowHandle;
+        }
+        MethodHandle resolved = NO_WINDOW_HANDLE;
+        String variant = "none";
+        for (String methodName : new String[]{"getWindow", "handle", "getHandle"}) {
+            try {
+                Method method = type.getMethod(methodName);
+                Class<?> returns = method.getReturnType();
+                if (returns != long.class && !Number.class.isAssignableFrom(returns)) {
+                    continue;
+                }
+                MethodHandle getter = LOOKUP.unreflect(method);
+                if (returns != long.class) {
+                    MethodHandle toLong = LOOKUP.findVirtual(Number.class, "longValue", MethodType.methodType(long.class));
+                    getter = MethodHandles.filterReturnValue(getter.asType(getter.type().changeReturnType(Number.class)), toLong);
+                }
+                resolved = getter.asType(MethodType.methodType(long.class, Object.class));
+                variant = type.getSimpleName() + "." + methodName + "()";
+                break;
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+        windowHandle = resolved;
+        windowClass = type;
+        windowVariant = variant;
+        return resolved;
+    }
+
+    /**
+     * Builds a key mapping with whichever constructor this version has: a category object (1.21.9+), a category
+     * string, with or without an explicit key type.
+     */
+    static KeyMapping createKeyMapping(String translationKey, int keyCode, String namespace, String path,
+                                       String legacyCategoryKey) {
+        InputConstants.Type type = InputConstants.Type.KEYSYM;
+        Object categoryId = createCategoryId(namespace, path);
+
+        for (Constructor<?> ctor : KeyMapping.class.getConstructors()) {
+            Class<?>[] p = ctor.getParameterTypes();
+            try {
+                if (p.length == 5
+                        && p[0] == String.class
+                        && p[1] == InputConstants.Type.class
+                        && p[2] == int.class
+                        && p[4] == int.class) {
+                    Object categoryArg = createCategoryArg(p[3], categoryId, legacyCategoryKey);
+                    if (categoryArg != null) {
+                        KeyMapping mapping = (KeyMapping) LOOKUP.unreflectConstructor(ctor)
+                                .invoke(translationKey, type, keyCode, categoryArg, 0);
+                        keyMappingVariant = describe(ctor);
+                        return mapping;
+                    }
+                }
+
+                if (p.length == 4
+                        && p[0] == String.class
+                        && p[1] == InputConstants.Type.class
+                        && p[2] == int.class) {
+                    Object categoryArg = createCategoryArg(p[3], categoryId, legacyCategoryKey);
+                    if (categoryArg != null) {
+                        KeyMapping mapping = (KeyMapping) LOOKUP.unreflectConstructor(ctor)
+                                .invoke(translationKey, type, keyCode, categoryArg);
+                        keyMappingVariant = describe(ctor);
+                        return mapping;
+                    }
+                }
+
+                if (p.length == 3
+                        && p[0] == String.class
+                        && p[1] == int.class) {
+                    Object categoryArg = createCategoryArg(p[2], categoryId, legacyCategoryKey);
+                    if (categoryArg != null) {
+                        KeyMapping mapping = (KeyMapping) LOOKUP.unreflectConstructor(ctor)
+                                .invoke(translationKey, keyCode, categoryArg);
+                        keyMappingVariant = describe(ctor);
+                        return mapping;
+                    }
+                }
+            } catch (Throwable ignored) {
+            }
+        }
+
+        keyMappingVariant = "none";
+        throw new IllegalStateException("No compatible KeyBinding constructor found for this Minecraft version");
+    }
+
+    private static Object createCategoryArg(Class<?> categoryParamType, Object id, String legacyCategoryKey) {
+        if (categoryParamType == String.class) {
+            return legacyCategoryKey;
+        }
+        if (id == null) {
+            return null;
+        }
+
+        try {
+            Constructor<?> ctor = categoryParamType.getDeclaredConstructor(id.getClass());
+            ctor.setAccessible(true);
+            return ctor.newInstance(id);
+        } catch (Throwable ignored) {
+        }
+
+        try {
+            for (Method m : categoryParamType.getMethods()) {
+                if (!Modifier.isStatic(m.getModifiers())) {
+                    continue;
+                }
+                if (m.getParameterCount() != 1 || !m.getParameterTypes()[0].isAssignableFrom(id.getClass())) {
+                    continue;
+                }
+                if (!categoryParamType.isAssignableFrom(m.getReturnType())) {
+                    continue;
+                }
+                return m.invoke(null, id);
+            }
+        } catch (Throwable ignored) {
+        }
+
+        return null;
+    }
+
+    private static Object createCategoryId(String namespace, String path) {
+        for (String className : new String[]{"net.minecraft.resources.ResourceLocation", "net.minecraft.resources.Identifier"}) {
+            Class<?> idClass;
+            try {
+                idClass = Class.forName(className);
+            } catch (Throwable e) {
+                continue;
+            }
+            String simpleName = idClass.getSimpleName();
+
+            try {
+                MethodHandle factory = LOOKUP.findStatic(idClass, "fromNamespaceAndPath",
+                        MethodType.methodType(idClass, String.class, String.class));
+                Object id = factory.invoke(namespace, path);
+                categoryIdVariant = simpleName + ".fromNamespaceAndPath";
+                return id;
+            } catch (Throwable ignored) {
+            }
+
+            try {
+                Constructor<?> ctor = idClass.getDeclaredConstructor(String.class, String.class);
+                ctor.setAccessible(true);
+                Object id = ctor.newInstance(namespace, path);
+                categoryIdVariant = "new " + simpleName + "(String, String)";
+                return id;
+            } catch (Throwable ignored) {
+            }
+        }
+
+        categoryIdVariant = "none (string category)";
+        return null;
+    }
+
+    private static String describe(Constructor<?> ctor) {
+        StringBuilder out = new StringBuilder("KeyMapping(");
+        Class<?>[] p = ctor.getParameterTypes();
+        for (int i = 0; i < p.length; i++) {
+            out.append(i == 0 ? "" : ", ").append(p[i].getSimpleName());
+        }
+        return out.append(')').toString();
+    }
+
+    static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        String version = FabricLoader.getInstance().getModContainer("minecraft")
+                .map(container -> container.getMetadata().getVersion().getFriendlyString())
+                .orElse("unknown");
+        lines.add("Minecraft " + version);
+        lines.add("window handle: " + windowVariant);
+        lines.add("background: " + RENDER_BACKGROUND_VARIANT);
+        lines.add("key mapping: " + keyMappingVariant);
+        lines.add("category id: " + categoryIdVariant);
+        return lines;
+    }
+}
@@ -0,0 +1,519 @@
+package vip.megumin.ircmod;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+import vip.megumin.ircmod.metrics.Gauge;
+import vip.megumin.ircmod.metrics.Metrics;
+
+/**
+ * Messages typed while a channel is offline, kept in {@code config/irc/outbox.log} until they have been sent, so a
+ * crash, a closed game or a full send queue does not lose them. The file is an append-only log of checksummed
+ * {@code ADD}/{@code ACK} records; a torn tail is cut off when it is read back, and the log is rewritten with only the
+ * live messages once acks outnumber them. Every file access happens on one background thread, so {@link #offer} costs
+ * a map lookup on the chat input path.
+ * <p>
+ * The spool holds at most {@code capacity} messages. A message older than the TTL is dropped instead of sent, and
+ * the same text queued twice for the same channel is kept once.
+ *
+ * @author haipi
+ */
+
+final class OutboxSpool {
+    static final Gauge PENDING = Metrics.gauge("client.outboxPending",
+            "Messages typed while offline that are waiting in the outbox");
+
+    private static final String FILE_NAME = "outbox.log";
+    private static final byte ADD = 1;
+    private static final byte ACK = 2;
+    private static final int MAX_RECORD_BYTES = 1 << 16;
+
+    enum Result {
+        SPOOLED,
+        DUPLICATE,
+        FULL
+    }
+
+    private final Path file;
+    private final int capacity;
+    private final long ttlMillis;
+    private final ExecutorService writer;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ConcurrentLinkedQueue<Object> writes = new ConcurrentLinkedQueue<>();
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<Long, Entry> live = new LinkedHashMap<>();
+    private final Set<String> draining = new HashSet<>();
+    private long nextId = 1;
+    private boolean closed;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private FileChannel channel;
+    private int fileRecords;
+
+    OutboxSpool(Path dir, int capacity, long ttlMillis) {
+        this.file = dir.resolve(FILE_NAME);
+        this.capacity = Math.max(1, capacity);
+        this.ttlMillis = Math.max(1000L, ttlMillis);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "IRCMod-Outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.execute(this::load);
+    }
+
+    /**
+     * Queues {@code text} for the channel identified by {@code key}. It is sent by the next {@link #drain} for that
+     * key, after everything queued before it.
+     */
+    Result offer(String key, String text) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (lock) {
+            if (closed) {
+                return Result.FULL;
+            }
+            for (Entry queued : live.values()) {
+                if (!queued.inFlight && queued.key.equals(key) && queued.text.equals(text)) {
+                    return Result.DUPLICATE;
+                }
+            }
+            if (live.size() >= capacity) {
+                expire(now, null);
+                if (live.size() >= capacity) {
+                    return Result.FULL;
+                }
+            }
+            entry = new Entry(nextId++, key, now, text);
+            live.put(entry.id, entry);
+            writes.add(entry);
+        }
+        PENDING.add(1);
+        scheduleFlush();
+        return Result.SPOOLED;
+    }
+
+    /**
+     * Messages for {@code key} that have not been handed to the socket yet, or have been handed over but not sent.
+     * While this is non-zero, new messages for the channel must go through the spool so they stay in order.
+     */
+    int pending(String key) {
+        synchronized (lock) {
+            int count = 0;
+            for (Entry entry : live.values()) {
+                if (entry.key.equals(key)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    int size() {
+        synchronized (lock) {
+            return live.size();
+        }
+    }
+
+    /**
+     * Hands the queued messages for {@code key} to {@code send}, oldest first, on the spool's thread. They go in
+     * batches no larger than {@code room} reports, each one after the previous batch has been sent. A message leaves
+     * the spool only once its send succeeds; after a failure the rest stay queued for the next drain.
+     *
+     * @return how many messages had outlived the TTL and were dropped instead of sent
+     */
+    CompletableFuture<Integer> drain(String key, IntSupplier room, Function<String, CompletableFuture<?>> send) {
+        try {
+            return CompletableFuture.supplyAsync(() -> handOver(key, room, send), writer);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(0);
+        }
+    }
+
+    private int handOver(String key, IntSupplier room, Function<String, CompletableFuture<?>> send) {
+        int expired;
+        synchronized (lock) {
+            if (closed) {
+                return 0;
+            }
+            expired = expire(System.currentTimeMillis(), key);
+            if (!draining.add(key)) {
+                // the running drain picks up whatever was queued since its last batch
+                return expired;
+            }
+        }
+        sendBatch(key, room, send);
+        return expired;
+    }
+
+    private void sendBatch(String key, IntSupplier room, Function<String, CompletableFuture<?>> send) {
+        int max = Math.max(1, room.getAsInt());
+        List<Entry> batch = new ArrayList<>();
+        synchronized (lock) {
+            if (!closed) {
+                for (Entry entry : live.values()) {
+                    if (batch.size() >= max) {
+                        break;
+                    }
+                    if (!entry.inFlight && entry.key.equals(key)) {
+                        entry.inFlight = true;
+                        batch.add(entry);
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                draining.remove(key);
+                return;
+            }
+        }
+        CompletableFuture<?>[] sends = new CompletableFuture<?>[batch.size()];
+        for (int i = 0; i < sends.length; i++) {
+            Entry entry = batch.get(i);
+            CompletableFuture<?> sent;
+            try {
+                sent = send.apply(entry.text);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sends[i] = sent.whenComplete((ignored, err) -> {
+                if (err == null) {
+                    remove(entry);
+                } else {
+                    release(entry);
+                }
+            });
+        }
+        CompletableFuture.allOf(sends).whenComplete((ignored, err) -> {
+            if (err != null) {
+                synchronized (lock) {
+                    draining.remove(key);
+                }
+                return;
+            }
+            try {
+                writer.execute(() -> sendBatch(key, room, send));
+            } catch (RejectedExecutionException e) {
+                synchronized (lock) {
+                    draining.remove(key);
+                }
+            }
+        });
+    }
+
+    void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        try {
+            writer.execute(() -> {
+                flushPending();
+                closeChannel();
+            });
+            writer.shutdown();
+            writer.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (RuntimeException | InterruptedException ignored) {
+        }
+        PENDING.add(-size());
+    }
+
+    private void release(Entry entry) {
+        synchronized (lock) {
+            entry.inFlight = false;
+        }
+    }
+
+    private void remove(Entry entry) {
+        synchronized (lock) {
+            if (closed || live.remove(entry.id) == null) {
+                return;
+            }
+            writes.add(entry.id);
+        }
+        PENDING.add(-1);
+        scheduleFlush();
+    }
+
+    /**
+     * Drops messages older than the TTL that are not already with the socket. Must hold {@link #lock}.
+     */
+    private int expire(long now, String key) {
+        int expired = 0;
+        Iterator<Entry> it = live.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.inFlight && now - entry.createdAt > ttlMillis && (key == null || entry.key.equals(key))) {
+                it.remove();
+                writes.add(entry.id);
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            PENDING.add(-expired);
+            scheduleFlush();
+        }
+        return expired;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::flushPending);
+            } catch (RuntimeException e) {
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    private void flushPending() {
+        flushScheduled.set(false);
+        if (channel == null) {
+            return;
+        }
+        buffer.clear();
+        Object write;
+        int added = 0;
+        while ((write = writes.poll()) != null) {
+            if (write instanceof Entry entry) {
+                encodeAdd(entry);
+            } else {
+                encodeAck((Long) write);
+            }
+            added++;
+        }
+        if (added == 0) {
+            return;
+        }
+        try {
+            writeBuffer();
+            channel.force(false);
+            fileRecords += added;
+            if (fileRecords > 2 * size() + 64) {
+                compact();
+            }
+        } catch (IOException e) {
+            closeChannel();
+        }
+    }
+
+    private void load() {
+        Map<Long, Entry> stored = new LinkedHashMap<>();
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long good = read(stored);
+            channel.truncate(good);
+        } catch (IOException e) {
+            closeChannel();
+        }
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            LinkedHashMap<Long, Entry> merged = new LinkedHashMap<>();
+            for (Entry entry : stored.values()) {
+                if (now - entry.createdAt <= ttlMillis && merged.size() < capacity) {
+                    Entry renumbered = new Entry(nextId++, entry.key, entry.createdAt, entry.text);
+                    merged.put(renumbered.id, renumbered);
+                }
+            }
+            PENDING.add(merged.size());
+            merged.putAll(live);
+            live.clear();
+            live.putAll(merged);
+        }
+        if (channel != null) {
+            try {
+                compact();
+            } catch (IOException e) {
+                closeChannel();
+            }
+        }
+        flushPending();
+    }
+
+    /**
+     * Reads every intact record into {@code stored}.
+     *
+     * @return the offset just past the last intact record
+     */
+    private long read(Map<Long, Entry> stored) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        while (data.hasRemaining()) {
+            if (channel.read(data, data.position()) <= 0) {
+                break;
+            }
+        }
+        data.flip();
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= 2 * Integer.BYTES) {
+            int start = data.position();
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES || length > data.remaining()) {
+                data.position(start);
+                break;
+            }
+            ByteBuffer payload = data.slice(data.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                data.position(start);
+                break;
+            }
+            data.position(data.position() + length);
+            byte type = payload.get();
+            long id = payload.getLong();
+            if (type == ACK) {
+                stored.remove(id);
+            } else if (type == ADD) {
+                long createdAt = payload.getLong();
+                String key = string(payload);
+                String text = string(payload);
+                stored.put(id, new Entry(id, key, createdAt, text));
+            }
+        }
+        return data.position();
+    }
+
+    /**
+     * Rewrites the log with only the live messages, through a temp file so a crash leaves either log intact.
+     */
+    private void compact() throws IOException {
+        List<Entry> snapshot;
+        synchronized (lock) {
+            snapshot = new ArrayList<>(live.values());
+        }
+        buffer.clear();
+        for (Entry entry : snapshot) {
+            encodeAdd(entry);
+        }
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        buffer.flip();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        closeChannel();
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileRecords = snapshot.size();
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void encodeAdd(Entry entry) {
+        byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 * Long.BYTES + 2 * Integer.BYTES + key.length + text.length;
+        if (length > MAX_RECORD_BYTES) {
+            return;
+        }
+        int start = begin(length);
+        buffer.put(ADD).putLong(entry.id).putLong(entry.createdAt);
+        buffer.putInt(key.length).put(key);
+        buffer.putInt(text.length).put(text);
+        end(start, length);
+    }
+
+    private void encodeAck(long id) {
+        int length = 1 + Long.BYTES;
+        int start = begin(length);
+        buffer.put(ACK).putLong(id);
+        end(start, length);
+    }
+
+    private int begin(int length) {
+        int needed = 2 * Integer.BYTES + length;
+        if (buffer.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        buffer.putInt(length).putInt(0);
+        return buffer.position();
+    }
+
+    private void end(int start, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(start, length));
+        buffer.putInt(start - Integer.BYTES, (int) crc.getValue());
+    }
+
+    private static String string(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            return "";
+        }
+        String value = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    private static final class Entry {
+        final long id;
+        final String key;
+        final long createdAt;
+        final String text;
+        boolean inFlight;
+
+        Entry(long id, String key, long createdAt, String text) {
+            this.id = id;
+            this.key = key;
+            this.createdAt = createdAt;
+            this.text = text;
+        }
+    }
+}
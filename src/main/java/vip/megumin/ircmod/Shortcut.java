@@ -0,0 +1,63 @@
+package vip.megumin.ircmod;
+
+import java.util.Locale;
+import org.lwjgl.glfw.GLFW;
+import vip.megumin.ircmod.config.IRCConfig;
+
+/**
+ * A key or mouse button plus the exact set of modifiers (Shift, Ctrl, Alt, Super) that must be held with it.
+ *
+ * @author haipi
+ */
+
+record Shortcut(boolean mouse, int code, int modifiers) {
+    static final int MODIFIER_MASK = GLFW.GLFW_MOD_SHIFT | GLFW.GLFW_MOD_CONTROL | GLFW.GLFW_MOD_ALT | GLFW.GLFW_MOD_SUPER;
+
+    Shortcut {
+        modifiers &= MODIFIER_MASK;
+    }
+
+    static Shortcut fromConfig(IRCConfig config) {
+        int code = config.openConfigKeyCode > 0 ? config.openConfigKeyCode : GLFW.GLFW_KEY_J;
+        return new Shortcut(config.openConfigMouse, code, config.openConfigModifiers);
+    }
+
+    void store(IRCConfig config) {
+        config.openConfigKeyCode = code;
+        config.openConfigModifiers = modifiers;
+        config.openConfigMouse = mouse;
+    }
+
+    boolean matchesKey(int key, int mods) {
+        return !mouse && key == code && (mods & MODIFIER_MASK) == modifiers;
+    }
+
+    boolean matchesMouse(int button, int mods) {
+        return mouse && button == code && (mods & MODIFIER_MASK) == modifiers;
+    }
+
+    static boolean isModifierKey(int key) {
+        return key >= GLFW.GLFW_KEY_LEFT_SHIFT && key <= GLFW.GLFW_KEY_RIGHT_SUPER;
+    }
+
+    String label() {
+        StringBuilder out = new StringBuilder();
+        if ((modifiers & GLFW.GLFW_MOD_CONTROL) != 0) {
+            out.append("Ctrl+");
+        }
+        if ((modifiers & GLFW.GLFW_MOD_SHIFT) != 0) {
+            out.append("Shift+");
+        }
+        if ((modifiers & GLFW.GLFW_MOD_ALT) != 0) {
+            out.append("Alt+");
+        }
+        if ((modifiers & GLFW.GLFW_MOD_SUPER) != 0) {
+            out.append("Super+");
+        }
+        if (mouse) {
+            return out.append("Mouse ").append(code + 1).toString();
+        }
+        String name = GLFW.glfwGetKeyName(code, 0);
+        return out.append(name == null || name.isBlank() ? Integer.toString(code) : name.toUpperCase(Locale.ROOT)).toString();
+    }
+}
@@ -1,5 +1,8 @@
 package vip.megumin.ircmod.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author haipi
  */
@@ -11,6 +14,43 @@ public final class IRCConfig {
     public String password = "";
     public String prefix = "@";
     public boolean autoConnect = true;
+    public boolean autoReconnect = true;
+    public int reconnectMaxDelaySeconds = 60;
+    public int heartbeatIntervalSeconds = 20;
+    public int heartbeatMissedPongs = 2;
+    public boolean virtualThreads = false;
+    public int socketDemandWindow = 16;
+    public int listenerQueueSize = 0;
+    public int maxIncomingMessageKB = 128;
     public int maxMessageLength = 150;
     public int openConfigKeyCode = 74;
+    public int openConfigModifiers = 0;
+    public boolean openConfigMouse = false;
+    public int maxPendingMessages = 64;
+    public int sendRateCharsPerSecond = 150;
+    public int sendBurstChars = 4000;
+    public int chatBufferSize = 512;
+    public int maxChatLinesPerTick = 20;
+    public int chatDrainBudgetMillis = 2;
+    public int backgroundChatBufferSize = 128;
+    public int floodBurst = 5;
+    public int floodMessagesPerMinute = 20;
+    public int duplicateWindowSeconds = 30;
+    public List<String> ignoredNicks = new ArrayList<>();
+    public boolean historyEnabled = true;
+    public int historyReplayLines = 10;
+    public int historySegmentKB = 1024;
+    public int historyMaxSegments = 32;
+    public boolean outboxEnabled = true;
+    public int outboxMaxMessages = 100;
+    public int outboxTtlMinutes = 60;
+    public List<ChannelEntry> channels = new ArrayList<>();
+
+    public static final class ChannelEntry {
+        public String serverUrl = "";
+        public String channel = "";
+        public String nick = "";
+        public String password = "";
+        public String prefix = "";
+    }
 }
@@ -2,14 +2,39 @@ package vip.megumin.ircmod.config;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import net.fabricmc.loader.api.FabricLoader;
 
 /**
+ * Loads and saves {@code config/irc/config.json}. Saves are debounced onto a background thread: edits that land
+ * within {@link #SAVE_DELAY_MILLIS} of each other become one write, and every caller of that batch gets the same
+ * future. Writes go to a temp file that is then moved over the old one, so a crash never leaves a truncated config.
+ * {@link #watch} reports edits made to the file by anything other than this class.
+ *
  * @author haipi
  */
 
@@ -17,6 +42,17 @@ public final class IRCConfigManager {
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
     private static final String DIR_NAME = "irc";
     private static final String FILE_NAME = "config.json";
+    private static final long SAVE_DELAY_MILLIS = 250;
+    private static final long WATCH_SETTLE_MILLIS = 200;
+    private static final long FLUSH_TIMEOUT_MILLIS = 2000;
+
+    private static final Object SAVE_LOCK = new Object();
+    private static final ScheduledExecutorService WRITER = createWriter();
+    private static String pendingJson;
+    private static CompletableFuture<Void> pendingSave;
+    private static ScheduledFuture<?> pendingTask;
+    private static volatile String lastKnownJson;
+    private static WatchService watcher;
 
     private IRCConfigManager() {
     }
@@ -29,39 +65,240 @@ public final class IRCConfigManager {
         Path path = getPath();
         ensureDir(path);
         boolean isNew = !Files.exists(path);
+        Exception error = null;
         if (!isNew) {
-            try (Reader reader = Files.newBufferedReader(path)) {
-                IRCConfig config = GSON.fromJson(reader, IRCConfig.class);
+            try {
+                String json = Files.readString(path, StandardCharsets.UTF_8);
+                IRCConfig config = GSON.fromJson(json, IRCConfig.class);
                 if (config != null) {
-                    if (config.prefix == null || config.prefix.isBlank()) {
-                        config.prefix = "@";
-                    }
-                    if (config.openConfigKeyCode <= 0) {
-                        config.openConfigKeyCode = 74;
-                    }
-                    return new Result(config, false);
+                    lastKnownJson = json;
+                    return new Result(normalize(config), false, null, CompletableFuture.completedFuture(null));
                 }
-            } catch (IOException ignored) {
+                error = new IOException(FILE_NAME + " is empty");
+            } catch (IOException | JsonParseException e) {
+                error = e;
             }
         }
         IRCConfig config = new IRCConfig();
-        save(config);
-        return new Result(config, true);
+        if (error != null) {
+            backupUnreadable(path);
+        }
+        CompletableFuture<Void> saved = save(config);
+        return new Result(config, isNew, error, saved);
     }
 
-    public record Result(IRCConfig config, boolean isNew) {
+    /**
+     * @param loadError why an existing file could not be used, in which case it was moved aside to
+     *                  {@code config.json.broken} and defaults were loaded; {@code null} otherwise
+     * @param saved     the write of the defaults, if any were written
+     */
+    public record Result(IRCConfig config, boolean isNew, Exception loadError, CompletableFuture<Void> saved) {
     }
 
+    /**
+     * Snapshots {@code config} now and writes it after a short delay. Completes once the snapshot, or a later one
+     * that replaced it, is on disk; completes exceptionally with the {@link IOException} if the write failed.
+     */
+    public static CompletableFuture<Void> save(IRCConfig config) {
+        String json = GSON.toJson(config);
+        synchronized (SAVE_LOCK) {
+            pendingJson = json;
+            if (pendingSave == null) {
+                pendingSave = new CompletableFuture<>();
+                pendingTask = WRITER.schedule(IRCConfigManager::writePending, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return pendingSave;
+        }
+    }
 
-    public static void save(IRCConfig config) {
+    /**
+     * Starts a daemon thread that watches the config directory and passes every externally edited
+     * {@code config.json} to {@code onChange}. Writes made by {@link #save} are recognised and skipped. A file that
+     * does not parse goes to {@code onError} and is otherwise ignored until it is edited again.
+     */
+    public static void watch(Consumer<IRCConfig> onChange, Consumer<Exception> onError) {
         Path path = getPath();
-        ensureDir(path);
-        try (Writer writer = Files.newBufferedWriter(path)) {
-            GSON.toJson(config, writer);
+        WatchService service;
+        synchronized (SAVE_LOCK) {
+            if (watcher != null) {
+                return;
+            }
+            try {
+                ensureDir(path);
+                service = path.getFileSystem().newWatchService();
+                path.getParent().register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                onError.accept(e);
+                return;
+            }
+            watcher = service;
+        }
+        Thread thread = new Thread(() -> watchLoop(service, path, onChange, onError), "IRCMod-ConfigWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void stopWatching() {
+        synchronized (SAVE_LOCK) {
+            if (watcher == null) {
+                return;
+            }
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+            watcher = null;
+        }
+    }
+
+    private static void watchLoop(WatchService service, Path path, Consumer<IRCConfig> onChange,
+                                  Consumer<Exception> onError) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean touched = false;
+                // editors often save in several steps; wait for the directory to go quiet before reading
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || FILE_NAME.equals(String.valueOf(event.context()))) {
+                            touched = true;
+                        }
+                    }
+                    if (!key.reset()) {
+                        return;
+                    }
+                    key = service.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (touched) {
+                    reloadExternal(path, onChange, onError);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    private static void reloadExternal(Path path, Consumer<IRCConfig> onChange, Consumer<Exception> onError) {
+        String json;
+        try {
+            json = Files.readString(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return;
+        }
+        if (json.equals(lastKnownJson)) {
+            return;
+        }
+        IRCConfig config;
+        try {
+            config = GSON.fromJson(json, IRCConfig.class);
+        } catch (JsonParseException e) {
+            onError.accept(e);
+            return;
+        }
+        if (config == null) {
+            return;
+        }
+        lastKnownJson = json;
+        onChange.accept(normalize(config));
+    }
+
+    private static IRCConfig normalize(IRCConfig config) {
+        if (config.prefix == null || config.prefix.isBlank()) {
+            config.prefix = "@";
+        }
+        if (config.openConfigKeyCode <= 0) {
+            config.openConfigKeyCode = 74;
+        }
+        if (config.channels == null) {
+            config.channels = new ArrayList<>();
+        }
+        if (config.ignoredNicks == null) {
+            config.ignoredNicks = new ArrayList<>();
+        }
+        return config;
+    }
+
+    /**
+     * Writes any pending save now instead of after the debounce, and waits for it. Used on shutdown. The write still
+     * runs on the writer thread, behind any save already in progress, so an older snapshot can never land on top.
+     */
+    public static void flush() {
+        synchronized (SAVE_LOCK) {
+            if (pendingTask != null) {
+                pendingTask.cancel(false);
+            }
+        }
+        try {
+            WRITER.submit(IRCConfigManager::writePending).get(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException ignored) {
+        }
+    }
+
+    private static void writePending() {
+        String json;
+        CompletableFuture<Void> done;
+        synchronized (SAVE_LOCK) {
+            json = pendingJson;
+            done = pendingSave;
+            pendingJson = null;
+            pendingSave = null;
+            pendingTask = null;
+        }
+        if (done == null) {
+            return;
+        }
+        try {
+            writeAtomically(getPath(), json);
+            done.complete(null);
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    private static void writeAtomically(Path path, String json) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(FILE_NAME + ".tmp");
+        lastKnownJson = json;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void backupUnreadable(Path path) {
+        try {
+            Files.move(path, path.resolveSibling(FILE_NAME + ".broken"), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException ignored) {
         }
     }
 
+    private static ScheduledExecutorService createWriter() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "IRCMod-Config");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    public static IRCConfig copy(IRCConfig config) {
+        IRCConfig copy = GSON.fromJson(GSON.toJson(config), IRCConfig.class);
+        return copy == null ? new IRCConfig() : copy;
+    }
+
     private static void ensureDir(Path path) {
         try {
             Files.createDirectories(path.getParent());
@@ -0,0 +1,549 @@
+package vip.megumin.ircmod.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only chat history split into numbered segments. Each {@code history-N.log} holds length-prefixed records
+ * and its {@code history-N.idx} holds one 4-byte offset per record, so pages can be read backwards without scanning.
+ * Every segment also gets a {@code history-N.terms} inverted index (see {@link SearchIndex}) for {@link #search}.
+ * All file access happens on one background thread; {@link #append} only enqueues.
+ *
+ * @author haipi
+ */
+
+public final class HistoryLog {
+    private static final String PREFIX = "history-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final int maxSegments;
+    private final ArrayBlockingQueue<HistoryRecord> pending;
+    private final ExecutorService writer;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong();
+    private final SearchIndex search;
+
+    private final List<HistoryRecord> batch = new ArrayList<>();
+    private ByteBuffer logBuffer = ByteBuffer.allocate(8192);
+    private ByteBuffer indexBuffer = ByteBuffer.allocate(MAX_BATCH * Integer.BYTES);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(256);
+    private boolean opened;
+    private long activeSegment;
+    private FileChannel activeLog;
+    private FileChannel activeIndex;
+    private long activeSize;
+    private int activeCount;
+
+    public HistoryLog(Path dir, long maxSegmentBytes, int maxSegments, int queueCapacity) {
+        this.dir = dir;
+        this.maxSegmentBytes = Math.max(4096L, Math.min(maxSegmentBytes, Integer.MAX_VALUE));
+        this.maxSegments = Math.max(1, maxSegments);
+        this.pending = new ArrayBlockingQueue<>(Math.max(16, queueCapacity));
+        this.search = new SearchIndex(dir, PREFIX);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "IRCMod-History");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public void append(HistoryRecord record) {
+        if (record == null) {
+            return;
+        }
+        if (!pending.offer(record)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::flushPending);
+            } catch (RuntimeException e) {
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public CompletableFuture<HistoryPage> readRecent(String channel, int limit) {
+        return readBefore(null, channel, limit);
+    }
+
+    public CompletableFuture<HistoryPage> readBefore(HistoryPage.Cursor cursor, String channel, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            flushPending();
+            try {
+                return scanBackward(cursor, channel, limit);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read chat history", e);
+            }
+        }, writer);
+    }
+
+    public CompletableFuture<HistoryPage> search(SearchQuery query, HistoryPage.Cursor cursor, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            flushPending();
+            try {
+                return searchBackward(query, cursor, limit);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to search chat history", e);
+            }
+        }, writer);
+    }
+
+    public void close() {
+        try {
+            writer.execute(() -> {
+                flushPending();
+                closeActive();
+            });
+            writer.shutdown();
+            writer.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (RuntimeException | InterruptedException ignored) {
+        }
+    }
+
+    private void flushPending() {
+        flushScheduled.set(false);
+        while (pending.drainTo(batch, MAX_BATCH) > 0) {
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                dropped.addAndGet(batch.size());
+                closeActive();
+                opened = false;
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<HistoryRecord> records) throws IOException {
+        ensureOpen();
+        logBuffer.clear();
+        indexBuffer.clear();
+        for (HistoryRecord record : records) {
+            if (activeSize + logBuffer.position() >= maxSegmentBytes) {
+                writeBuffers();
+                roll();
+            }
+            int offset = (int) (activeSize + logBuffer.position());
+            if (!encode(record)) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            indexBuffer.putInt(offset);
+            search.add(activeCount, record);
+            activeCount++;
+        }
+        writeBuffers();
+    }
+
+    private void writeBuffers() throws IOException {
+        logBuffer.flip();
+        indexBuffer.flip();
+        while (logBuffer.hasRemaining()) {
+            activeSize += activeLog.write(logBuffer);
+        }
+        while (indexBuffer.hasRemaining()) {
+            activeIndex.write(indexBuffer);
+        }
+        logBuffer.clear();
+        indexBuffer.clear();
+    }
+
+    private boolean encode(HistoryRecord record) {
+        byte[] channel = bytes(record.channel());
+        byte[] nick = bytes(record.nick());
+        byte[] text = bytes(record.text());
+        int payload = Long.BYTES + 3 * Integer.BYTES + channel.length + nick.length + text.length;
+        if (payload > MAX_RECORD_BYTES) {
+            return false;
+        }
+        ensureLogCapacity(Integer.BYTES + payload);
+        logBuffer.putInt(payload);
+        logBuffer.putLong(record.timestamp());
+        logBuffer.putInt(channel.length).put(channel);
+        logBuffer.putInt(nick.length).put(nick);
+        logBuffer.putInt(text.length).put(text);
+        return true;
+    }
+
+    private void ensureLogCapacity(int extra) {
+        if (logBuffer.remaining() >= extra) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(logBuffer.capacity() * 2, logBuffer.position() + extra));
+        logBuffer.flip();
+        grown.put(logBuffer);
+        logBuffer = grown;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (opened) {
+            return;
+        }
+        Files.createDirectories(dir);
+        List<Long> segments = listSegments();
+        activeSegment = segments.isEmpty() ? 1L : segments.get(segments.size() - 1);
+        openActive(true);
+        opened = true;
+        for (long segment : segments) {
+            if (segment != activeSegment && !search.hasTerms(segment)) {
+                buildTerms(segment);
+            }
+        }
+    }
+
+    private void buildTerms(long segment) throws IOException {
+        SearchIndex.TermsBuilder builder = new SearchIndex.TermsBuilder();
+        ByteBuffer offsetBuffer = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        try (FileChannel log = FileChannel.open(logPath(segment), StandardOpenOption.READ);
+             FileChannel index = FileChannel.open(indexPath(segment), StandardOpenOption.READ)) {
+            int count = (int) (index.size() / Integer.BYTES);
+            for (int i = 0; i < count; i++) {
+                HistoryRecord record = readRecord(log, index, i, offsetBuffer, header);
+                if (record != null) {
+                    builder.add(i, record);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        search.write(segment, builder);
+    }
+
+    private void roll() throws IOException {
+        search.seal(activeSegment);
+        closeActive();
+        activeSegment++;
+        openActive(false);
+        List<Long> segments = listSegments();
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(logPath(segments.get(i)));
+            Files.deleteIfExists(indexPath(segments.get(i)));
+            search.delete(segments.get(i));
+        }
+    }
+
+    private void openActive(boolean recover) throws IOException {
+        activeLog = FileChannel.open(logPath(activeSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeIndex = FileChannel.open(indexPath(activeSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = 0;
+        activeCount = 0;
+        search.resetActive();
+        if (recover) {
+            rebuildIndex();
+        } else {
+            activeLog.truncate(0);
+            activeIndex.truncate(0);
+        }
+        activeLog.position(activeSize);
+        activeIndex.position((long) activeCount * Integer.BYTES);
+    }
+
+    private void rebuildIndex() throws IOException {
+        long size = activeLog.size();
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer body = ByteBuffer.allocate(256);
+        indexBuffer.clear();
+        activeIndex.truncate(0);
+        long pos = 0;
+        while (pos + Integer.BYTES <= size) {
+            header.clear();
+            activeLog.read(header, pos);
+            int length = header.getInt(0);
+            if (length <= 0 || length > MAX_RECORD_BYTES || pos + Integer.BYTES + length > size) {
+                break;
+            }
+            if (!indexBuffer.hasRemaining()) {
+                indexBuffer.flip();
+                while (indexBuffer.hasRemaining()) {
+                    activeIndex.write(indexBuffer);
+                }
+                indexBuffer.clear();
+            }
+            indexBuffer.putInt((int) pos);
+            if (body.capacity() < length) {
+                body = ByteBuffer.allocate(Math.max(body.capacity() * 2, length));
+            }
+            body.clear().limit(length);
+            activeLog.read(body, pos + Integer.BYTES);
+            body.flip();
+            HistoryRecord record = decode(body);
+            if (record != null) {
+                search.add(activeCount, record);
+            }
+            activeCount++;
+            pos += Integer.BYTES + length;
+        }
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            activeIndex.write(indexBuffer);
+        }
+        indexBuffer.clear();
+        activeLog.truncate(pos);
+        activeSize = pos;
+    }
+
+    private void closeActive() {
+        for (FileChannel channel : new FileChannel[]{activeLog, activeIndex}) {
+            if (channel == null) {
+                continue;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        activeLog = null;
+        activeIndex = null;
+    }
+
+    private HistoryPage scanBackward(HistoryPage.Cursor cursor, String channel, int limit) throws IOException {
+        List<HistoryRecord> out = new ArrayList<>();
+        if (limit <= 0 || !Files.isDirectory(dir)) {
+            return new HistoryPage(out, null);
+        }
+        ensureOpen();
+        // a channel's records are found through its postings, so a quiet channel does not cost a read of every segment
+        List<String> terms = channel == null ? List.of() : List.of(Tokenizer.channelTerm(channel));
+        List<Long> segments = listSegments();
+        ByteBuffer offsetBuffer = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            long segment = segments.get(s);
+            if (cursor != null && segment > cursor.segment()) {
+                continue;
+            }
+            int[] hits = candidates(segment, segment == activeSegment, terms);
+            if (hits != null && hits.length == 0) {
+                continue;
+            }
+            try (FileChannel log = FileChannel.open(logPath(segment), StandardOpenOption.READ);
+                 FileChannel index = FileChannel.open(indexPath(segment), StandardOpenOption.READ)) {
+                int count = (int) (index.size() / Integer.BYTES);
+                int start = cursor != null && segment == cursor.segment() ? Math.min(cursor.index(), count) : count;
+                int n = hits == null ? start : hits.length;
+                for (int k = n - 1; k >= 0; k--) {
+                    int i = hits == null ? k : hits[k];
+                    if (i >= start) {
+                        continue;
+                    }
+                    HistoryRecord record = readRecord(log, index, i, offsetBuffer, header);
+                    if (record == null || (channel != null && !channel.equalsIgnoreCase(record.channel()))) {
+                        continue;
+                    }
+                    out.add(record);
+                    if (out.size() >= limit) {
+                        return new HistoryPage(out, new HistoryPage.Cursor(segment, i));
+                    }
+                }
+            } catch (NoSuchFileException ignored) {
+            }
+        }
+        return new HistoryPage(out, null);
+    }
+
+    private HistoryPage searchBackward(SearchQuery query, HistoryPage.Cursor cursor, int limit) throws IOException {
+        List<HistoryRecord> out = new ArrayList<>();
+        if (limit <= 0 || query == null || !Files.isDirectory(dir)) {
+            return new HistoryPage(out, null);
+        }
+        ensureOpen();
+        Set<String> words = Tokenizer.terms(query.text());
+        List<String> terms = new ArrayList<>(words);
+        if (query.nick() != null) {
+            terms.add(Tokenizer.nickTerm(query.nick()));
+        }
+        if (query.channel() != null) {
+            terms.add(Tokenizer.channelTerm(query.channel()));
+        }
+        List<Long> segments = listSegments();
+        ByteBuffer offsetBuffer = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            long segment = segments.get(s);
+            if (cursor != null && segment > cursor.segment()) {
+                continue;
+            }
+            boolean isActive = segment == activeSegment;
+            if (!search.overlaps(segment, isActive, query.fromMillis(), query.toMillis())) {
+                continue;
+            }
+            int[] hits = candidates(segment, isActive, terms);
+            try (FileChannel log = FileChannel.open(logPath(segment), StandardOpenOption.READ);
+                 FileChannel index = FileChannel.open(indexPath(segment), StandardOpenOption.READ)) {
+                int count = (int) (index.size() / Integer.BYTES);
+                int start = cursor != null && segment == cursor.segment() ? Math.min(cursor.index(), count) : count;
+                int n = hits == null ? start : hits.length;
+                for (int k = n - 1; k >= 0; k--) {
+                    int i = hits == null ? k : hits[k];
+                    if (i >= start) {
+                        continue;
+                    }
+                    HistoryRecord record = readRecord(log, index, i, offsetBuffer, header);
+                    if (record == null || !query.matches(record)
+                            || (hits == null && !Tokenizer.terms(record.text()).containsAll(words))) {
+                        continue;
+                    }
+                    out.add(record);
+                    if (out.size() >= limit) {
+                        return new HistoryPage(out, new HistoryPage.Cursor(segment, i));
+                    }
+                }
+            } catch (NoSuchFileException ignored) {
+            }
+        }
+        return new HistoryPage(out, null);
+    }
+
+    /**
+     * Record numbers in {@code segment} carrying every term, ascending, or {@code null} when the segment has to be
+     * scanned instead (no terms to look up, or its terms file is missing).
+     */
+    private int[] candidates(long segment, boolean isActive, List<String> terms) throws IOException {
+        if (terms.isEmpty()) {
+            return null;
+        }
+        List<int[]> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            int[] postings = search.postings(segment, isActive, term);
+            if (postings == null) {
+                return null;
+            }
+            if (postings.length == 0) {
+                return postings;
+            }
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        int[] result = lists.get(0);
+        for (int l = 1; l < lists.size() && result.length > 0; l++) {
+            result = intersect(result, lists.get(l));
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private HistoryRecord readRecord(FileChannel log, FileChannel index, int i,
+                                     ByteBuffer offsetBuffer, ByteBuffer header) throws IOException {
+        offsetBuffer.clear();
+        index.read(offsetBuffer, (long) i * Integer.BYTES);
+        long offset = offsetBuffer.getInt(0) & 0xFFFFFFFFL;
+        header.clear();
+        log.read(header, offset);
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+            return null;
+        }
+        if (readBuffer.capacity() < length) {
+            readBuffer = ByteBuffer.allocate(Math.max(readBuffer.capacity() * 2, length));
+        }
+        ByteBuffer body = readBuffer;
+        body.clear().limit(length);
+        log.read(body, offset + Integer.BYTES);
+        body.flip();
+        return decode(body);
+    }
+
+    private static HistoryRecord decode(ByteBuffer body) {
+        try {
+            long timestamp = body.getLong();
+            String channel = readString(body);
+            String nick = readString(body);
+            String text = readString(body);
+            return new HistoryRecord(timestamp, channel, nick, text);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getInt();
+        String value = new String(body.array(), body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return value;
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return ids;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private Path logPath(long segment) {
+        return dir.resolve(PREFIX + segment + LOG_SUFFIX);
+    }
+
+    private Path indexPath(long segment) {
+        return dir.resolve(PREFIX + segment + INDEX_SUFFIX);
+    }
+}
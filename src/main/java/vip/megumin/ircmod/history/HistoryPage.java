@@ -0,0 +1,15 @@
+package vip.megumin.ircmod.history;
+
+import java.util.List;
+
+/**
+ * Records newest first, plus the cursor to pass back in for the next older page. A {@code null} cursor means the
+ * start of the log was reached.
+ *
+ * @author haipi
+ */
+
+public record HistoryPage(List<HistoryRecord> records, Cursor next) {
+    public record Cursor(long segment, int index) {
+    }
+}
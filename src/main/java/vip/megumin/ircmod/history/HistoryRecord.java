@@ -0,0 +1,8 @@
+package vip.megumin.ircmod.history;
+
+/**
+ * @author haipi
+ */
+
+public record HistoryRecord(long timestamp, String channel, String nick, String text) {
+}
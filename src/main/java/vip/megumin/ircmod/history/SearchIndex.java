@@ -0,0 +1,274 @@
+package vip.megumin.ircmod.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over history records, one {@code history-N.terms} file per sealed segment plus an in-memory table
+ * for the segment being written. Postings are record numbers within the segment, so a hit is resolved through the
+ * segment's offset index. Only used from the history writer thread.
+ * <p>
+ * Terms file: magic, min/max timestamp, term count, a table of entry offsets sorted by term bytes, then entries of
+ * {@code [u16 length][term][u32 count][varint deltas]}.
+ *
+ * @author haipi
+ */
+
+final class SearchIndex {
+    static final String SUFFIX = ".terms";
+    // changes whenever the terms a record is indexed under change, so older files are rebuilt
+    private static final int MAGIC = 0x49524355;
+    private static final int HEADER_BYTES = Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+    private static final int CACHED_SEGMENTS = 4;
+
+    private final Path dir;
+    private final String prefix;
+    private TermsBuilder active = new TermsBuilder();
+    private final Map<Long, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+            return size() > CACHED_SEGMENTS;
+        }
+    };
+
+    SearchIndex(Path dir, String prefix) {
+        this.dir = dir;
+        this.prefix = prefix;
+    }
+
+    void add(int recordIndex, HistoryRecord record) {
+        active.add(recordIndex, record);
+    }
+
+    void resetActive() {
+        active = new TermsBuilder();
+    }
+
+    void seal(long segment) throws IOException {
+        write(segment, active);
+        active = new TermsBuilder();
+    }
+
+    void write(long segment, TermsBuilder builder) throws IOException {
+        cache.remove(segment);
+        builder.write(path(segment));
+    }
+
+    boolean hasTerms(long segment) {
+        try (FileChannel file = FileChannel.open(path(segment), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            return file.read(magic, 0) == Integer.BYTES && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void delete(long segment) throws IOException {
+        cache.remove(segment);
+        Files.deleteIfExists(path(segment));
+    }
+
+    boolean overlaps(long segment, boolean isActive, long from, long to) throws IOException {
+        if (isActive) {
+            return active.count > 0 && active.maxTs >= from && active.minTs <= to;
+        }
+        ByteBuffer terms = load(segment);
+        if (terms == null) {
+            return true;
+        }
+        return terms.getLong(Integer.BYTES + Long.BYTES) >= from && terms.getLong(Integer.BYTES) <= to;
+    }
+
+    int[] postings(long segment, boolean isActive, String term) throws IOException {
+        if (isActive) {
+            Postings postings = active.terms.get(term);
+            return postings == null ? new int[0] : Arrays.copyOf(postings.ids, postings.size);
+        }
+        ByteBuffer terms = load(segment);
+        if (terms == null) {
+            return null;
+        }
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int count = terms.getInt(HEADER_BYTES - Integer.BYTES);
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entry = terms.getInt(HEADER_BYTES + mid * Integer.BYTES);
+            int cmp = compare(terms, entry, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return readPostings(terms, entry);
+            }
+        }
+        return new int[0];
+    }
+
+    private ByteBuffer load(long segment) throws IOException {
+        ByteBuffer cached = cache.get(segment);
+        if (cached != null) {
+            return cached;
+        }
+        Path path = path(segment);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer terms = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (terms.capacity() < HEADER_BYTES || terms.getInt(0) != MAGIC) {
+            return null;
+        }
+        cache.put(segment, terms);
+        return terms;
+    }
+
+    private static int compare(ByteBuffer terms, int entry, byte[] key) {
+        int length = terms.getShort(entry) & 0xFFFF;
+        int base = entry + Short.BYTES;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (terms.get(base + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int[] readPostings(ByteBuffer terms, int entry) {
+        ByteBuffer in = terms.duplicate();
+        in.position(entry + Short.BYTES + (terms.getShort(entry) & 0xFFFF));
+        int count = in.getInt();
+        int[] ids = new int[count];
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            previous += readVarint(in);
+            ids[i] = previous;
+        }
+        return ids;
+    }
+
+    private Path path(long segment) {
+        return dir.resolve(prefix + segment + SUFFIX);
+    }
+
+    static final class TermsBuilder {
+        private final Map<String, Postings> terms = new HashMap<>();
+        private long minTs = Long.MAX_VALUE;
+        private long maxTs = Long.MIN_VALUE;
+        private int count;
+
+        void add(int recordIndex, HistoryRecord record) {
+            count++;
+            minTs = Math.min(minTs, record.timestamp());
+            maxTs = Math.max(maxTs, record.timestamp());
+            for (String term : Tokenizer.terms(record.text())) {
+                post(term, recordIndex);
+            }
+            post(Tokenizer.nickTerm(record.nick()), recordIndex);
+            post(Tokenizer.channelTerm(record.channel()), recordIndex);
+        }
+
+        private void post(String term, int recordIndex) {
+            terms.computeIfAbsent(term, k -> new Postings()).add(recordIndex);
+        }
+
+        void write(Path path) throws IOException {
+            List<byte[]> keys = new ArrayList<>(terms.size());
+            Map<byte[], Postings> byKey = new HashMap<>();
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (key.length > 0xFFFF) {
+                    continue;
+                }
+                keys.add(key);
+                byKey.put(key, entry.getValue());
+            }
+            keys.sort(Arrays::compareUnsigned);
+
+            ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + keys.size() * Integer.BYTES + 1024);
+            out.putInt(MAGIC);
+            out.putLong(count == 0 ? 0L : minTs);
+            out.putLong(count == 0 ? 0L : maxTs);
+            out.putInt(keys.size());
+            out.position(HEADER_BYTES + keys.size() * Integer.BYTES);
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                Postings postings = byKey.get(key);
+                out = ensure(out, Short.BYTES + key.length + Integer.BYTES + postings.size * 5);
+                out.putInt(HEADER_BYTES + i * Integer.BYTES, out.position());
+                out.putShort((short) key.length);
+                out.put(key);
+                out.putInt(postings.size);
+                int previous = -1;
+                for (int p = 0; p < postings.size; p++) {
+                    writeVarint(out, postings.ids[p] - previous);
+                    previous = postings.ids[p];
+                }
+            }
+            out.flip();
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tmp, Arrays.copyOf(out.array(), out.limit()));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static ByteBuffer ensure(ByteBuffer out, int extra) {
+            if (out.remaining() >= extra) {
+                return out;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + extra));
+            out.flip();
+            grown.put(out);
+            return grown;
+        }
+    }
+
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
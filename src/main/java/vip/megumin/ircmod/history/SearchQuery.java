@@ -0,0 +1,69 @@
+package vip.megumin.ircmod.history;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Free text plus optional filters. {@link #parse} understands {@code nick:}, {@code channel:}, {@code since:} and
+ * {@code until:} (durations like {@code 30m}, {@code 12h}, {@code 7d}); every other word is text to match.
+ *
+ * @author haipi
+ */
+
+public record SearchQuery(String text, String nick, String channel, long fromMillis, long toMillis) {
+    public static SearchQuery parse(String input, long now) {
+        StringBuilder text = new StringBuilder();
+        String nick = null;
+        String channel = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (String word : (input == null ? "" : input.trim()).split("\\s+")) {
+            String lower = word.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("nick:") && word.length() > 5) {
+                nick = word.substring(5);
+            } else if (lower.startsWith("channel:") && word.length() > 8) {
+                channel = word.substring(8).replaceFirst("^#", "");
+            } else if (lower.startsWith("since:") && parseAgo(lower.substring(6)) >= 0) {
+                from = now - parseAgo(lower.substring(6));
+            } else if (lower.startsWith("until:") && parseAgo(lower.substring(6)) >= 0) {
+                to = now - parseAgo(lower.substring(6));
+            } else if (!word.isEmpty()) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(word);
+            }
+        }
+        return new SearchQuery(text.toString(), nick, channel, from, to);
+    }
+
+    public boolean isEmpty() {
+        return text.isBlank() && nick == null && channel == null;
+    }
+
+    boolean matches(HistoryRecord record) {
+        return record.timestamp() >= fromMillis
+                && record.timestamp() <= toMillis
+                && (nick == null || nick.equalsIgnoreCase(record.nick()))
+                && (channel == null || channel.equalsIgnoreCase(record.channel()));
+    }
+
+    private static long parseAgo(String value) {
+        if (value.length() < 2) {
+            return -1;
+        }
+        long amount;
+        try {
+            amount = Long.parseLong(value.substring(0, value.length() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return switch (value.charAt(value.length() - 1)) {
+            case 'm' -> Duration.ofMinutes(amount).toMillis();
+            case 'h' -> Duration.ofHours(amount).toMillis();
+            case 'd' -> Duration.ofDays(amount).toMillis();
+            case 'w' -> Duration.ofDays(amount * 7).toMillis();
+            default -> -1;
+        };
+    }
+}
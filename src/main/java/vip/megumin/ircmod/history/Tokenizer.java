@@ -0,0 +1,84 @@
+package vip.megumin.ircmod.history;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits chat text into lower-cased search terms. Letters and digits form words; runs of CJK characters, which are
+ * written without spaces, are indexed as single characters plus overlapping bigrams instead, so a one-character query
+ * matches inside a longer run.
+ *
+ * @author haipi
+ */
+
+final class Tokenizer {
+    static final String NICK_PREFIX = "n:";
+    static final String CHANNEL_PREFIX = "c:";
+    private static final int MAX_TERM_LENGTH = 32;
+
+    private Tokenizer() {
+    }
+
+    static Set<String> terms(String text) {
+        Set<String> out = new LinkedHashSet<>();
+        if (text == null) {
+            return out;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int length = lower.length();
+        int i = 0;
+        while (i < length) {
+            int cp = lower.codePointAt(i);
+            if (isCjk(cp)) {
+                int start = i;
+                while (i < length && isCjk(lower.codePointAt(i))) {
+                    i += Character.charCount(lower.codePointAt(i));
+                }
+                addCjkRun(lower.substring(start, i), out);
+            } else if (Character.isLetterOrDigit(cp)) {
+                int start = i;
+                while (i < length) {
+                    int c = lower.codePointAt(i);
+                    if (!Character.isLetterOrDigit(c) || isCjk(c)) {
+                        break;
+                    }
+                    i += Character.charCount(c);
+                }
+                String word = lower.substring(start, i);
+                out.add(word.length() > MAX_TERM_LENGTH ? word.substring(0, MAX_TERM_LENGTH) : word);
+            } else {
+                i += Character.charCount(cp);
+            }
+        }
+        return out;
+    }
+
+    static String nickTerm(String nick) {
+        return NICK_PREFIX + (nick == null ? "" : nick.toLowerCase(Locale.ROOT));
+    }
+
+    static String channelTerm(String channel) {
+        return CHANNEL_PREFIX + (channel == null ? "" : channel.toLowerCase(Locale.ROOT));
+    }
+
+    private static void addCjkRun(String run, Set<String> out) {
+        int first = 0;
+        while (first < run.length()) {
+            int second = run.offsetByCodePoints(first, 1);
+            out.add(run.substring(first, second));
+            if (second < run.length()) {
+                out.add(run.substring(first, run.offsetByCodePoints(second, 1)));
+            }
+            first = second;
+        }
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
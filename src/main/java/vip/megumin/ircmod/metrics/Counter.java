@@ -0,0 +1,48 @@
+package vip.megumin.ircmod.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A monotonically increasing count.
+ *
+ * @author haipi
+ */
+
+public final class Counter implements Metric {
+    private final String name;
+    private final String description;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String description() {
+        return description;
+    }
+
+    @Override
+    public void collect(ObjLongConsumer<String> out) {
+        out.accept(name, get());
+    }
+}
@@ -0,0 +1,54 @@
+package vip.megumin.ircmod.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A level that moves both ways, such as a queue depth, with its high-water mark.
+ *
+ * @author haipi
+ */
+
+public final class Gauge implements Metric {
+    private final String name;
+    private final String description;
+    private final AtomicLong value = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Gauge(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public void add(long delta) {
+        long now = value.addAndGet(delta);
+        long seen;
+        while (now > (seen = max.get()) && !max.compareAndSet(seen, now)) {
+            // another thread raised it first; retry against the new mark
+        }
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String description() {
+        return description;
+    }
+
+    @Override
+    public void collect(ObjLongConsumer<String> out) {
+        out.accept(name, get());
+        out.accept(name + ".max", max());
+    }
+}
@@ -0,0 +1,139 @@
+package vip.megumin.ircmod.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Distribution of non-negative values in log-linear buckets: four per power of two, so a percentile is off by at
+ * most 25%. Recording is a few atomic adds into preallocated arrays.
+ *
+ * @author haipi
+ */
+
+public final class Histogram implements Metric {
+    private static final int SUB_BUCKETS = 4;
+    static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final String name;
+    private final String description;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public void record(long value) {
+        long v = Math.max(0L, value);
+        buckets.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+        long seen;
+        while (v > (seen = max.get()) && !max.compareAndSet(seen, v)) {
+            // another thread raised it first; retry against the new maximum
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public long mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Upper bound of the bucket holding the {@code quantile} value over everything recorded so far.
+     */
+    public long percentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        copyBuckets(counts);
+        return Math.min(percentile(counts, quantile), max());
+    }
+
+    /**
+     * Copies the bucket counts into {@code into}, which must hold {@link #bucketCount()} entries. Two copies taken
+     * a while apart give the distribution of just that window when subtracted.
+     */
+    public void copyBuckets(long[] into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = buckets.get(i);
+        }
+    }
+
+    public static int bucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Percentile of a bucket array from {@link #copyBuckets}; {@code -1} when it is empty.
+     */
+    public static long percentile(long[] counts, double quantile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return -1L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return exponent * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (exponent >= 61) {
+            return Long.MAX_VALUE;
+        }
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String description() {
+        return description;
+    }
+
+    @Override
+    public void collect(ObjLongConsumer<String> out) {
+        out.accept(name + ".count", count());
+        out.accept(name + ".mean", mean());
+        out.accept(name + ".p50", percentile(0.50));
+        out.accept(name + ".p99", percentile(0.99));
+        out.accept(name + ".max", max());
+    }
+}
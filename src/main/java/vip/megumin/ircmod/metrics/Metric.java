@@ -0,0 +1,21 @@
+package vip.megumin.ircmod.metrics;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Something in the {@link Metrics} registry. Recording is lock- and allocation-free; reading is not meant for hot
+ * paths.
+ *
+ * @author haipi
+ */
+
+public interface Metric {
+    String name();
+
+    String description();
+
+    /**
+     * Reports every value this metric exposes as {@code name} or {@code name.suffix}.
+     */
+    void collect(ObjLongConsumer<String> out);
+}
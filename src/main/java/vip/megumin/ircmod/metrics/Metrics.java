@@ -0,0 +1,93 @@
+package vip.megumin.ircmod.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide registry of the mod's counters, gauges and histograms. Metrics are created once, usually into a
+ * {@code static final} field, and recorded into directly; nothing on the recording path looks anything up.
+ * {@link #registerMBean()} publishes every metric as a read-only JMX attribute under {@link #OBJECT_NAME}.
+ *
+ * @author haipi
+ */
+
+public final class Metrics {
+    public static final String OBJECT_NAME = "vip.megumin.ircmod:type=Metrics";
+
+    private static final Map<String, Metric> METRICS = new LinkedHashMap<>();
+    private static boolean registered;
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String description) {
+        return register(new Counter(name, description));
+    }
+
+    public static Gauge gauge(String name, String description) {
+        return register(new Gauge(name, description));
+    }
+
+    public static Histogram histogram(String name, String description) {
+        return register(new Histogram(name, description));
+    }
+
+    public static List<Metric> all() {
+        synchronized (METRICS) {
+            return new ArrayList<>(METRICS.values());
+        }
+    }
+
+    /**
+     * Every exposed value by attribute name, in registration order.
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Metric metric : all()) {
+            metric.collect(values::put);
+        }
+        return values;
+    }
+
+    /**
+     * Makes the registry visible to JConsole, VisualVM and other JMX clients. Safe to call more than once; a
+     * failure is returned rather than thrown so it never stops the mod from loading.
+     */
+    public static synchronized JMException registerMBean() {
+        if (registered) {
+            return null;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+            registered = true;
+            return null;
+        } catch (JMException e) {
+            return e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Metric> T register(T metric) {
+        synchronized (METRICS) {
+            Metric existing = METRICS.putIfAbsent(metric.name(), metric);
+            if (existing != null) {
+                if (existing.getClass() != metric.getClass()) {
+                    throw new IllegalArgumentException("Metric " + metric.name() + " is already a "
+                            + existing.getClass().getSimpleName());
+                }
+                return (T) existing;
+            }
+            return metric;
+        }
+    }
+}
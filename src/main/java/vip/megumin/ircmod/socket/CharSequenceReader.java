@@ -0,0 +1,49 @@
+package vip.megumin.ircmod.socket;
+
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Reads a {@link CharSequence} in place, so a frame handed over by {@link java.net.http.WebSocket} can be parsed
+ * without first being copied into a {@link String}. The sequence must not change while it is read.
+ *
+ * @author haipi
+ */
+
+final class CharSequenceReader extends Reader {
+    private final CharSequence text;
+    private int position;
+
+    CharSequenceReader(CharSequence text) {
+        this.text = text;
+    }
+
+    @Override
+    public int read() {
+        return position < text.length() ? text.charAt(position++) : -1;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        int remaining = text.length() - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int count = Math.min(length, remaining);
+        if (text instanceof String s) {
+            s.getChars(position, position + count, buffer, offset);
+        } else if (text instanceof CharBuffer chars) {
+            chars.get(chars.position() + position, buffer, offset, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = text.charAt(position + i);
+            }
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+}
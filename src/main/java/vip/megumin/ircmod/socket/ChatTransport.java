@@ -0,0 +1,59 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One channel on one chat server, whatever the wire protocol. {@link SocketChat} speaks hack.chat over a WebSocket,
+ * {@link IrcChat} speaks IRC; {@link #open} picks one from the server URL.
+ *
+ * @author haipi
+ */
+
+public interface ChatTransport {
+    void addListener(SocketChatListener listener);
+
+    String getChannel();
+
+    Roster getRoster();
+
+    boolean isConnected();
+
+    /**
+     * Whether the connection dropped and a reconnect with backoff is scheduled or under way.
+     */
+    boolean isReconnecting();
+
+    void connect();
+
+    void disconnect();
+
+    /**
+     * Stops taking new messages off the connection until {@link #resumeReading()}; ones already read are still
+     * delivered.
+     */
+    void pauseReading();
+
+    void resumeReading();
+
+    /**
+     * Chat messages queued but not yet written.
+     */
+    int getPendingCount();
+
+    /**
+     * How many more chat messages can be queued before {@link #sendMessage} starts rejecting them.
+     */
+    int getFreeCapacity();
+
+    CompletableFuture<Void> sendMessage(String text);
+
+    /**
+     * {@code irc://} and {@code ircs://} URLs get an {@link IrcChat}, anything else a {@link SocketChat}.
+     */
+    static ChatTransport open(String uri, String channel, String nick, String password, SocketChatOptions options) {
+        if (IrcChat.handles(uri)) {
+            return new IrcChat(uri, channel, nick, password, options);
+        }
+        return new SocketChat(uri, channel, nick, password, options);
+    }
+}
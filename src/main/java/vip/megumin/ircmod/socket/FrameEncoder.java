@@ -0,0 +1,87 @@
+package vip.megumin.ircmod.socket;
+
+/**
+ * Writes the fixed-shape outbound frames into one reused buffer.
+ * Output matches {@code JsonObject.toString()} for the same fields, including Gson's string escaping.
+ *
+ * @author haipi
+ */
+
+final class FrameEncoder {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    synchronized String chat(String text) {
+        buffer.setLength(0);
+        buffer.append("{\"cmd\":\"chat\",\"text\":");
+        appendString(text);
+        return finish();
+    }
+
+    synchronized String join(String channel, String nick, String password) {
+        buffer.setLength(0);
+        buffer.append("{\"cmd\":\"join\",\"channel\":");
+        appendString(channel);
+        buffer.append(",\"nick\":");
+        appendString(nick);
+        if (password != null && !password.isEmpty()) {
+            buffer.append(",\"password\":");
+            appendString(password);
+        }
+        return finish();
+    }
+
+    private String finish() {
+        buffer.append('}');
+        String frame = buffer.toString();
+        if (buffer.capacity() > 16 * 1024) {
+            buffer.setLength(0);
+            buffer.trimToSize();
+        }
+        return frame;
+    }
+
+    private void appendString(String value) {
+        buffer.append('"');
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < 0x20) {
+                replacement = switch (c) {
+                    case '\t' -> "\\t";
+                    case '\b' -> "\\b";
+                    case '\n' -> "\\n";
+                    case '\r' -> "\\r";
+                    case '\f' -> "\\f";
+                    default -> null;
+                };
+                if (replacement == null) {
+                    buffer.append(value, last, i);
+                    appendUnicodeEscape(c);
+                    last = i + 1;
+                    continue;
+                }
+            } else if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c == 0x2028) {
+                replacement = "\\u2028";
+            } else if (c == 0x2029) {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+            buffer.append(value, last, i).append(replacement);
+            last = i + 1;
+        }
+        buffer.append(value, last, length).append('"');
+    }
+
+    private void appendUnicodeEscape(char c) {
+        buffer.append("\\u00").append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+    }
+}
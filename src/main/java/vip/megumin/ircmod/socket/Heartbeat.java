@@ -0,0 +1,63 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Pings one connection on the shared scheduler and declares it dead after too many unanswered pings. Each ping
+ * carries its {@link System#nanoTime()} so the matching pong gives a round-trip sample.
+ *
+ * @author haipi
+ */
+
+final class Heartbeat {
+    private final LongConsumer pinger;
+    private final long intervalMillis;
+    private final int missedLimit;
+    private final LongConsumer rttSink;
+    private final Runnable onDead;
+    private final AtomicInteger missed = new AtomicInteger();
+    private volatile ScheduledFuture<?> task;
+
+    Heartbeat(LongConsumer pinger, long intervalMillis, int missedLimit, LongConsumer rttSink, Runnable onDead) {
+        this.pinger = pinger;
+        this.intervalMillis = intervalMillis;
+        this.missedLimit = Math.max(1, missedLimit);
+        this.rttSink = rttSink;
+        this.onDead = onDead;
+    }
+
+    void start() {
+        task = SocketScheduler.get().scheduleAtFixedRate(this::beat, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        ScheduledFuture<?> t = task;
+        if (t != null) {
+            t.cancel(false);
+        }
+    }
+
+    void onActivity() {
+        missed.set(0);
+    }
+
+    void onPong(long sentAt) {
+        missed.set(0);
+        rttSink.accept(System.nanoTime() - sentAt);
+    }
+
+    private void beat() {
+        if (missed.getAndIncrement() >= missedLimit) {
+            stop();
+            onDead.run();
+            return;
+        }
+        try {
+            pinger.accept(System.nanoTime());
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
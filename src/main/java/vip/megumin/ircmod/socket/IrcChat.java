@@ -0,0 +1,711 @@
+package vip.megumin.ircmod.socket;
+
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+
+/**
+ * One channel on an IRC server (RFC 1459/2812), over a non-blocking socket on the shared {@link IrcSelector}
+ * thread, with TLS for {@code ircs://}. Registers with {@code NICK} and {@code USER} ({@code PASS} first when a
+ * password is set), joins once welcomed, and maps what it hears onto the same events as {@link SocketChat}: channel
+ * chat as messages, joins, parts and nick changes as {@code info}, error numerics as {@code warn}. Reconnects,
+ * heartbeat, send pacing and listener dispatch follow the same {@link SocketChatOptions}.
+ * <p>
+ * Server {@code PING}s are answered at once, ahead of queued chat. Chat waits for the join, so nothing is sent into
+ * a channel we are not in yet.
+ *
+ * @author haipi
+ */
+
+public final class IrcChat implements ChatTransport {
+    private static final int DEFAULT_PORT = 6667;
+    private static final int DEFAULT_TLS_PORT = 6697;
+    private static final long CONNECT_TIMEOUT_MILLIS = 10_000L;
+    private static final long QUIT_GRACE_MILLIS = 2_000L;
+    private static final int NORMAL_CLOSURE = 1000;
+    private static final int ABNORMAL_CLOSURE = 1006;
+    private static final int MAX_NICK_RETRIES = 20;
+    /**
+     * Text bytes per PRIVMSG. A line is at most 512 bytes including the source the server puts in front when it
+     * relays it, which we cannot see, so this leaves room for a long host mask.
+     */
+    private static final int MAX_TEXT_BYTES = 400;
+
+    private static final int RPL_WELCOME = 1;
+    private static final int RPL_TOPIC = 332;
+    private static final int RPL_NAMREPLY = 353;
+    private static final int RPL_ENDOFNAMES = 366;
+    private static final int ERR_ERRONEUSNICKNAME = 432;
+    private static final int ERR_NICKNAMEINUSE = 433;
+    private static final int ERR_NICKCOLLISION = 436;
+    private static final int ERR_UNAVAILRESOURCE = 437;
+
+    private static final OutboundPipeline.Sender<IrcConnection> SENDER = new OutboundPipeline.Sender<>() {
+        @Override
+        public CompletableFuture<?> send(IrcConnection target, String payload) {
+            return target.write(payload);
+        }
+
+        @Override
+        public boolean isClosed(IrcConnection target) {
+            return target.isClosed();
+        }
+    };
+
+    private final String host;
+    private final int port;
+    private final boolean tls;
+    private final String channel;
+    private final String target;
+    private final String baseNick;
+    private final String password;
+    private final SocketChatOptions options;
+    private final ListenerFanOut fanOut;
+    private final OutboundPipeline<IrcConnection> outbound;
+    private final Roster roster = new Roster();
+    private final AtomicBoolean connecting = new AtomicBoolean(false);
+    private final AtomicBoolean readingWithheld = new AtomicBoolean(false);
+    private volatile boolean readPaused;
+    private volatile IrcConnection connection;
+    private volatile boolean connected;
+    private volatile Heartbeat heartbeat;
+    private volatile long smoothedRttNanos = -1L;
+    private volatile String currentNick;
+    private final IrcConnection.Handler connectionHandler = new IrcConnection.Handler() {
+        @Override
+        public void onOpen(IrcConnection conn) {
+            IrcChat.this.onOpen(conn);
+        }
+
+        @Override
+        public void onLine(IrcConnection conn, byte[] data, int start, int end) {
+            IrcChat.this.onLine(conn, data, start, end);
+        }
+
+        @Override
+        public void onClosed(IrcConnection conn, Throwable error) {
+            IrcChat.this.onClosed(conn, error);
+        }
+    };
+
+    // only touched on the selector thread
+    private final IrcMessage message = new IrcMessage();
+    private final List<String> names = new ArrayList<>();
+    private boolean registered;
+    private int nickRetryCount;
+    private volatile String closeReason;
+
+    private final Object reconnectLock = new Object();
+    private volatile boolean closeRequested;
+    private volatile boolean outage;
+    private int reconnectAttempts;
+    private ScheduledFuture<?> reconnectTask;
+
+    public IrcChat(String uri, String channel, String nick, String password, SocketChatOptions options) {
+        SocketChatOptions opts = options == null ? new SocketChatOptions() : options;
+        URI parsed = URI.create(Objects.requireNonNull(uri, "uri"));
+        if (!handles(uri) || parsed.getHost() == null) {
+            throw new IllegalArgumentException("Not an irc:// or ircs:// URL: " + uri);
+        }
+        this.tls = "ircs".equalsIgnoreCase(parsed.getScheme());
+        this.host = parsed.getHost();
+        this.port = parsed.getPort() > 0 ? parsed.getPort() : tls ? DEFAULT_TLS_PORT : DEFAULT_PORT;
+        String name = Objects.requireNonNull(channel, "channel").trim();
+        this.channel = name.startsWith("#") ? name.substring(1) : name;
+        this.target = name.isEmpty() || "#&+!".indexOf(name.charAt(0)) < 0 ? "#" + name : name;
+        String raw = Objects.requireNonNull(nick, "nick").trim();
+        if (raw.isEmpty()) {
+            throw new IllegalArgumentException("nick must not be blank");
+        }
+        this.baseNick = SocketChat.sanitizeNick(raw);
+        this.currentNick = ircNick(baseNick, 0);
+        this.password = password == null ? "" : password;
+        this.options = opts;
+        SendPacer pacer = opts.sendRateCharsPerSecond > 0
+                ? new SendPacer(opts.sendRateCharsPerSecond, opts.sendBurstChars, System.nanoTime())
+                : null;
+        this.outbound = new OutboundPipeline<>(opts.maxPendingMessages, opts.overflowPolicy, pacer, SENDER);
+        this.fanOut = new ListenerFanOut(opts, this::releaseWithheldReading);
+    }
+
+    /**
+     * Whether {@code uri} is an {@code irc://} or {@code ircs://} URL.
+     */
+    public static boolean handles(String uri) {
+        if (uri == null) {
+            return false;
+        }
+        String lower = uri.trim().toLowerCase(Locale.ROOT);
+        return lower.startsWith("irc://") || lower.startsWith("ircs://");
+    }
+
+    @Override
+    public void addListener(SocketChatListener listener) {
+        fanOut.add(listener);
+    }
+
+    /**
+     * @see SocketChat#addListener(SocketChatListener, int, ListenerQueue.Overflow)
+     */
+    public ListenerQueue addListener(SocketChatListener listener, int capacity, ListenerQueue.Overflow overflow) {
+        return fanOut.add(listener, capacity, overflow);
+    }
+
+    public List<ListenerQueue> getListenerQueues() {
+        return fanOut.queues();
+    }
+
+    /**
+     * The channel name without its leading {@code #}, as for {@link SocketChat}.
+     */
+    @Override
+    public String getChannel() {
+        return channel;
+    }
+
+    @Override
+    public Roster getRoster() {
+        return roster;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean isReconnecting() {
+        return outage;
+    }
+
+    public String getNick() {
+        return currentNick;
+    }
+
+    @Override
+    public void connect() {
+        closeRequested = false;
+        openConnection();
+    }
+
+    @Override
+    public void disconnect() {
+        closeRequested = true;
+        cancelReconnect();
+        IrcConnection conn = this.connection;
+        if (conn == null) {
+            return;
+        }
+        conn.write("QUIT :bye\r\n").whenComplete((ignored, err) -> conn.close());
+        SocketScheduler.get().schedule(conn::close, QUIT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void pauseReading() {
+        readPaused = true;
+    }
+
+    @Override
+    public void resumeReading() {
+        readPaused = false;
+        releaseWithheldReading();
+    }
+
+    public long getRoundTripMillis() {
+        long rtt = smoothedRttNanos;
+        return rtt < 0 ? -1L : TimeUnit.NANOSECONDS.toMillis(rtt);
+    }
+
+    @Override
+    public int getPendingCount() {
+        return outbound.size();
+    }
+
+    @Override
+    public int getFreeCapacity() {
+        return outbound.remaining();
+    }
+
+    /**
+     * @see SocketChat#getSendRate()
+     */
+    public double getSendRate() {
+        return outbound.pacedRatePerSecond();
+    }
+
+    /**
+     * Sends {@code text} to the channel, split into as many lines as it takes. Servers do not echo a client's own
+     * {@code PRIVMSG}, so each line is shown to the listeners once it has been written, as hack.chat would echo it.
+     */
+    @Override
+    public CompletableFuture<Void> sendMessage(String text) {
+        if (text == null || text.isBlank()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<String> lines = buildPrivmsgLines(target, text);
+        CompletableFuture<Void> sent;
+        if (lines.size() == 1) {
+            sent = sendLine(lines.get(0));
+        } else {
+            CompletableFuture<?>[] parts = new CompletableFuture<?>[lines.size()];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = sendLine(lines.get(i));
+            }
+            sent = CompletableFuture.allOf(parts);
+        }
+        if (!connected && !outage) {
+            connect();
+        }
+        return sent;
+    }
+
+    private CompletableFuture<Void> sendLine(String line) {
+        CompletableFuture<Void> sent = outbound.enqueue(line);
+        int textStart = "PRIVMSG ".length() + target.length() + 2;
+        String echo = displayText(line.substring(textStart, line.length() - 2));
+        if (echo != null) {
+            sent.thenRun(() -> fanOut.fireMessage(new SocketReceivedPacketEvent(currentNick, echo)));
+        }
+        return sent;
+    }
+
+    private void openConnection() {
+        if (connected || connecting.getAndSet(true)) {
+            return;
+        }
+        SSLContext context = null;
+        if (tls) {
+            try {
+                context = options.sslContext != null ? options.sslContext : SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                connecting.set(false);
+                fanOut.fireError(e);
+                return;
+            }
+        }
+        IrcConnection conn = new IrcConnection(host, port, context, connectionHandler);
+        this.connection = conn;
+        conn.open(CONNECT_TIMEOUT_MILLIS);
+    }
+
+    private void onOpen(IrcConnection conn) {
+        if (conn != this.connection) {
+            conn.close();
+            return;
+        }
+        registered = false;
+        names.clear();
+        closeReason = null;
+        readingWithheld.set(false);
+        // each connection starts from the configured nick; collisions on earlier connections do not count here
+        nickRetryCount = 0;
+        currentNick = ircNick(baseNick, 0);
+        StringBuilder register = new StringBuilder(128);
+        if (!password.isEmpty()) {
+            register.append("PASS ").append(stripLineBreaks(password)).append("\r\n");
+        }
+        register.append("NICK ").append(currentNick).append("\r\n");
+        register.append("USER ").append(baseNick).append(" 0 * :").append(baseNick).append("\r\n");
+        conn.write(register.toString());
+        startHeartbeat(conn);
+    }
+
+    private void onLine(IrcConnection conn, byte[] data, int start, int end) {
+        if (conn != this.connection) {
+            return;
+        }
+        Heartbeat hb = this.heartbeat;
+        if (hb != null) {
+            hb.onActivity();
+        }
+        SocketMetrics.FRAMES_IN.increment();
+        SocketMetrics.BYTES_IN.add(end - start + 1);
+        long started = System.nanoTime();
+        if (!message.parse(data, start, end)) {
+            return;
+        }
+        SocketMetrics.PARSE_NANOS.record(System.nanoTime() - started);
+        try {
+            handle(conn, message);
+        } catch (RuntimeException e) {
+            fanOut.fireError(e);
+        }
+        if (shouldWithholdReading() && readingWithheld.compareAndSet(false, true)) {
+            conn.setReading(false);
+            if (!shouldWithholdReading()) {
+                releaseWithheldReading();
+            }
+        }
+    }
+
+    private void handle(IrcConnection conn, IrcMessage m) {
+        int numeric = m.numeric();
+        if (numeric >= 0) {
+            handleNumeric(conn, numeric, m);
+        } else if (m.is("PING")) {
+            conn.write("PONG :" + m.trailing() + "\r\n");
+        } else if (m.is("PONG")) {
+            Heartbeat hb = this.heartbeat;
+            long sentAt = m.paramAsLong(m.paramCount() - 1);
+            if (hb != null && sentAt >= 0) {
+                hb.onPong(sentAt);
+            }
+        } else if (m.is("PRIVMSG")) {
+            onPrivmsg(m);
+        } else if (m.is("NOTICE")) {
+            if (m.fromUser() && (m.paramIs(0, target) || m.paramIs(0, currentNick))) {
+                info("-" + m.sourceNick() + "- " + m.trailing());
+            }
+        } else if (m.is("JOIN")) {
+            if (!m.paramIs(0, target)) {
+                return;
+            }
+            if (m.sourceIs(currentNick)) {
+                outbound.attach(conn);
+            } else {
+                String nick = m.sourceNick();
+                roster.add(nick);
+                info(nick + " joined");
+            }
+        } else if (m.is("PART")) {
+            if (m.paramIs(0, target) && !m.sourceIs(currentNick)) {
+                String nick = m.sourceNick();
+                roster.remove(nick);
+                info(nick + " left");
+            }
+        } else if (m.is("QUIT")) {
+            String nick = m.sourceNick();
+            if (roster.contains(nick)) {
+                roster.remove(nick);
+                info(nick + " left");
+            }
+        } else if (m.is("NICK")) {
+            String from = m.sourceNick();
+            String to = m.param(0);
+            if (m.sourceIs(currentNick)) {
+                currentNick = to;
+            }
+            if (roster.contains(from)) {
+                roster.remove(from);
+                roster.add(to);
+                info(from + " is now known as " + to);
+            }
+        } else if (m.is("KICK")) {
+            if (!m.paramIs(0, target)) {
+                return;
+            }
+            String victim = m.param(1);
+            String reason = m.paramCount() > 2 ? ": " + m.trailing() : "";
+            if (m.paramIs(1, currentNick)) {
+                outbound.detach(conn);
+                roster.clear();
+                warn("Kicked from " + target + " by " + m.sourceNick() + reason);
+            } else {
+                roster.remove(victim);
+                info(victim + " was kicked by " + m.sourceNick() + reason);
+            }
+        } else if (m.is("TOPIC")) {
+            if (m.paramIs(0, target)) {
+                info(m.sourceNick() + " set the topic: " + m.trailing());
+            }
+        } else if (m.is("ERROR")) {
+            closeReason = m.trailing();
+            warn(closeReason);
+            if (isFloodError(closeReason)) {
+                onRateLimited();
+            }
+        }
+    }
+
+    private void handleNumeric(IrcConnection conn, int numeric, IrcMessage m) {
+        switch (numeric) {
+            case RPL_WELCOME -> {
+                registered = true;
+                currentNick = m.param(0);
+                connected = true;
+                connecting.set(false);
+                conn.write("JOIN " + target + "\r\n");
+                int attempts = finishOutage();
+                if (attempts > 0) {
+                    SocketMetrics.RECONNECTS.increment();
+                    fanOut.fireReconnected(attempts);
+                } else {
+                    fanOut.fireConnected();
+                }
+            }
+            case RPL_TOPIC -> {
+                if (m.paramIs(1, target)) {
+                    info("Topic: " + m.trailing());
+                }
+            }
+            case RPL_NAMREPLY -> {
+                if (m.paramIs(2, target)) {
+                    collectNames(m.trailing());
+                }
+            }
+            case RPL_ENDOFNAMES -> {
+                if (m.paramIs(1, target)) {
+                    roster.replaceAll(names);
+                    names.clear();
+                }
+            }
+            case ERR_ERRONEUSNICKNAME, ERR_NICKNAMEINUSE, ERR_NICKCOLLISION, ERR_UNAVAILRESOURCE -> {
+                if (registered) {
+                    warn(m.trailing());
+                } else {
+                    retryNick(conn);
+                }
+            }
+            default -> {
+                if (numeric >= 400 && numeric < 600) {
+                    warn(m.paramCount() > 2 ? m.param(1) + ": " + m.trailing() : m.trailing());
+                }
+            }
+        }
+    }
+
+    private void onPrivmsg(IrcMessage m) {
+        String text = displayText(m.trailing());
+        String nick = m.sourceNick();
+        if (text == null) {
+            return;
+        }
+        if (m.paramIs(0, target)) {
+            fanOut.fireMessage(new SocketReceivedPacketEvent(nick, text));
+        } else if (m.paramIs(0, currentNick)) {
+            info(nick + " (private): " + text);
+        }
+    }
+
+    /**
+     * {@code text} as shown in chat: a CTCP {@code ACTION} becomes {@code "* text"}, and other CTCP requests are
+     * {@code null}.
+     */
+    private static String displayText(String text) {
+        if (text.length() <= 1 || text.charAt(0) != '\u0001') {
+            return text;
+        }
+        int end = text.charAt(text.length() - 1) == '\u0001' ? text.length() - 1 : text.length();
+        if (!text.regionMatches(true, 1, "ACTION ", 0, 7) || end <= 8) {
+            return null;
+        }
+        return "* " + text.substring(8, end);
+    }
+
+    private void collectNames(String list) {
+        int i = 0;
+        int length = list.length();
+        while (i < length) {
+            int end = list.indexOf(' ', i);
+            if (end < 0) {
+                end = length;
+            }
+            int nameStart = i;
+            while (nameStart < end && "~&@%+".indexOf(list.charAt(nameStart)) >= 0) {
+                nameStart++;
+            }
+            if (nameStart < end) {
+                names.add(list.substring(nameStart, end));
+            }
+            i = end + 1;
+        }
+    }
+
+    private void retryNick(IrcConnection conn) {
+        if (nickRetryCount >= MAX_NICK_RETRIES) {
+            warn("Nick already in use. Too many retries.");
+            disconnect();
+            return;
+        }
+        nickRetryCount++;
+        SocketMetrics.NICK_RETRIES.increment();
+        currentNick = ircNick(baseNick, nickRetryCount);
+        info("Nick already in use, trying " + currentNick);
+        conn.write("NICK " + currentNick + "\r\n");
+    }
+
+    private void onClosed(IrcConnection conn, Throwable error) {
+        if (!releaseConnection(conn)) {
+            return;
+        }
+        if (!outage) {
+            if (error != null) {
+                fanOut.fireError(error);
+            } else {
+                fanOut.fireDisconnected(closeRequested ? NORMAL_CLOSURE : ABNORMAL_CLOSURE,
+                        closeReason != null ? closeReason : "Connection closed");
+            }
+        }
+        scheduleReconnect();
+    }
+
+    private boolean releaseConnection(IrcConnection conn) {
+        synchronized (reconnectLock) {
+            if (this.connection != conn) {
+                return false;
+            }
+            this.connection = null;
+            connected = false;
+            connecting.set(false);
+        }
+        roster.clear();
+        Heartbeat hb = this.heartbeat;
+        if (hb != null) {
+            hb.stop();
+            this.heartbeat = null;
+        }
+        outbound.detach(conn);
+        return true;
+    }
+
+    private void startHeartbeat(IrcConnection conn) {
+        if (options.heartbeatIntervalMillis <= 0) {
+            return;
+        }
+        Heartbeat hb = new Heartbeat(sentAt -> conn.write("PING :" + sentAt + "\r\n"),
+                options.heartbeatIntervalMillis, options.heartbeatMissedPongs, this::recordRtt,
+                () -> onHeartbeatTimeout(conn));
+        this.heartbeat = hb;
+        hb.start();
+    }
+
+    private void recordRtt(long sampleNanos) {
+        long previous = smoothedRttNanos;
+        smoothedRttNanos = previous < 0 ? sampleNanos : previous + (sampleNanos - previous) / 8;
+    }
+
+    private void onHeartbeatTimeout(IrcConnection conn) {
+        closeReason = "Heartbeat timed out";
+        conn.close();
+    }
+
+    private void scheduleReconnect() {
+        if (closeRequested || !options.reconnect) {
+            return;
+        }
+        int attempt;
+        long delay;
+        synchronized (reconnectLock) {
+            outage = true;
+            if (reconnectTask != null && !reconnectTask.isDone()) {
+                return;
+            }
+            attempt = ++reconnectAttempts;
+            delay = SocketChat.backoffDelay(attempt, options);
+            reconnectTask = SocketScheduler.get().schedule(() -> {
+                if (!closeRequested) {
+                    openConnection();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        SocketMetrics.RECONNECT_ATTEMPTS.increment();
+        fanOut.fireReconnecting(attempt, delay);
+    }
+
+    private int finishOutage() {
+        synchronized (reconnectLock) {
+            int attempts = outage ? reconnectAttempts : 0;
+            outage = false;
+            reconnectAttempts = 0;
+            return attempts;
+        }
+    }
+
+    private void cancelReconnect() {
+        synchronized (reconnectLock) {
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
+            outage = false;
+            reconnectAttempts = 0;
+        }
+    }
+
+    private boolean shouldWithholdReading() {
+        return readPaused || fanOut.isBacklogged();
+    }
+
+    private void releaseWithheldReading() {
+        if (shouldWithholdReading()) {
+            return;
+        }
+        IrcConnection conn = this.connection;
+        if (conn != null && readingWithheld.compareAndSet(true, false)) {
+            conn.setReading(true);
+        }
+    }
+
+    private void onRateLimited() {
+        SocketMetrics.RATE_LIMITED.increment();
+        double rate = outbound.onRateLimited();
+        if (rate >= 0) {
+            info(String.format(Locale.ROOT, "Rate limited by the server; slowing down to %.0f characters/s", rate));
+        }
+    }
+
+    private void info(String text) {
+        fanOut.fireMessage(new SocketReceivedPacketEvent("info", text));
+    }
+
+    private void warn(String text) {
+        fanOut.fireMessage(new SocketReceivedPacketEvent("warn", text));
+    }
+
+    static boolean isFloodError(String text) {
+        String t = text == null ? "" : text.toLowerCase(Locale.ROOT);
+        return t.contains("excess flood") || SocketChat.isRateLimitWarning(t);
+    }
+
+    /**
+     * {@link SocketChat#buildNick} already keeps to letters, digits and {@code _}; IRC also wants no leading digit.
+     */
+    static String ircNick(String baseNick, int retryCount) {
+        String nick = SocketChat.buildNick(baseNick, retryCount);
+        return Character.isDigit(nick.charAt(0)) ? "_" + nick : nick;
+    }
+
+    /**
+     * {@code PRIVMSG} lines for {@code text}, each with at most {@link #MAX_TEXT_BYTES} bytes of text, split between
+     * code points. Line breaks and NULs, which would end or corrupt the line, become spaces.
+     */
+    static List<String> buildPrivmsgLines(String target, String text) {
+        String clean = stripLineBreaks(text);
+        List<String> lines = new ArrayList<>(1);
+        StringBuilder line = new StringBuilder(clean.length() + target.length() + 12);
+        int i = 0;
+        while (i < clean.length()) {
+            int bytes = 0;
+            int end = i;
+            while (end < clean.length()) {
+                int cp = clean.codePointAt(end);
+                int size = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+                if (bytes + size > MAX_TEXT_BYTES) {
+                    break;
+                }
+                bytes += size;
+                end += Character.charCount(cp);
+            }
+            line.setLength(0);
+            line.append("PRIVMSG ").append(target).append(" :").append(clean, i, end).append("\r\n");
+            lines.add(line.toString());
+            i = end;
+        }
+        return lines;
+    }
+
+    private static String stripLineBreaks(String text) {
+        if (text.indexOf('\r') < 0 && text.indexOf('\n') < 0 && text.indexOf('\0') < 0) {
+            return text;
+        }
+        return text.replace('\r', ' ').replace('\n', ' ').replace('\0', ' ');
+    }
+}
@@ -0,0 +1,503 @@
+package vip.megumin.ircmod.socket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * One IRC socket on the {@link IrcSelector} thread: a non-blocking {@link SocketChannel}, TLS through an
+ * {@link SSLEngine} when there is one, and line framing in the read buffer itself. Complete lines are handed to the
+ * {@link Handler} as a range of that buffer, and only a trailing partial line is ever moved, so reading costs no
+ * copies beyond the one into the buffer. The buffers are allocated once per connection.
+ * <p>
+ * {@link #write}, {@link #setReading} and {@link #close} may be called from any thread; everything else runs on the
+ * selector thread, which is also where the handler is called.
+ *
+ * @author haipi
+ */
+
+final class IrcConnection {
+    /**
+     * Longest line kept: 512 bytes of message plus up to 8 KiB of IRCv3 tags, with room to spare.
+     */
+    static final int MAX_LINE_BYTES = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    interface Handler {
+        /**
+         * The socket is connected and, for TLS, the handshake is done.
+         */
+        void onOpen(IrcConnection connection);
+
+        /**
+         * One line, {@code data[start, end)} without the {@code \n}. The range is only valid during the call.
+         */
+        void onLine(IrcConnection connection, byte[] data, int start, int end);
+
+        /**
+         * Called once, with {@code null} after an orderly close or end of stream.
+         */
+        void onClosed(IrcConnection connection, Throwable error);
+    }
+
+    private final String host;
+    private final int port;
+    private final SSLEngine engine;
+    private final Handler handler;
+    private final IrcSelector loop = IrcSelector.get();
+    private final ArrayDeque<PendingWrite> writes = new ArrayDeque<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final ByteBuffer in;
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private volatile SocketChannel channel;
+    private volatile SelectionKey key;
+    private volatile ScheduledFuture<?> connectTimeout;
+    private volatile boolean open;
+    private volatile boolean reading = true;
+    private boolean discarding;
+    private boolean delegating;
+    private int scanned;
+
+    /**
+     * @param tls {@code null} for a plain connection
+     */
+    IrcConnection(String host, int port, SSLContext tls, Handler handler) {
+        this.host = host;
+        this.port = port;
+        this.handler = handler;
+        if (tls == null) {
+            this.engine = null;
+            this.in = ByteBuffer.allocate(MAX_LINE_BYTES);
+            this.netIn = null;
+            this.netOut = null;
+        } else {
+            SSLEngine e = tls.createSSLEngine(host, port);
+            e.setUseClientMode(true);
+            SSLParameters params = e.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            e.setSSLParameters(params);
+            this.engine = e;
+            // unwrap wants a whole record's worth of room, on top of a line that may be waiting for its end
+            this.in = ByteBuffer.allocate(MAX_LINE_BYTES + e.getSession().getApplicationBufferSize());
+            this.netIn = ByteBuffer.allocate(e.getSession().getPacketBufferSize());
+            this.netOut = ByteBuffer.allocate(e.getSession().getPacketBufferSize());
+        }
+    }
+
+    /**
+     * Resolves the host off the selector thread, then connects. Success or failure arrives at the handler.
+     */
+    void open(long timeoutMillis) {
+        connectTimeout = SocketScheduler.get().schedule(() -> {
+            if (!open) {
+                close(new SocketTimeoutException("Connecting to " + host + ":" + port + " timed out"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        CompletableFuture.supplyAsync(() -> new InetSocketAddress(host, port), SocketRuntime.executor())
+                .whenComplete((address, err) -> {
+                    if (err != null) {
+                        close(err);
+                    } else {
+                        loop.execute(() -> connect(address));
+                    }
+                });
+    }
+
+    boolean isOpen() {
+        return open && !closed.get();
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Queues {@code lines}, already terminated with {@code \r\n}.
+     *
+     * @return completes once the bytes are handed to the socket
+     */
+    CompletableFuture<Void> write(String lines) {
+        PendingWrite write = new PendingWrite(ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8)));
+        synchronized (writes) {
+            if (closed.get()) {
+                return CompletableFuture.failedFuture(new ClosedChannelException());
+            }
+            writes.addLast(write);
+        }
+        loop.execute(this::flushAndUpdate);
+        return write.done;
+    }
+
+    /**
+     * Stops or resumes reading from the socket. Lines already read are still delivered.
+     */
+    void setReading(boolean reading) {
+        if (this.reading == reading) {
+            return;
+        }
+        this.reading = reading;
+        loop.execute(this::updateInterest);
+    }
+
+    void close() {
+        close(null);
+    }
+
+    void handle(SelectionKey selected) {
+        try {
+            if (selected.isConnectable() && channel.finishConnect()) {
+                onConnected();
+            }
+            if (selected.isValid() && selected.isReadable()) {
+                onReadable();
+            }
+            if (selected.isValid() && selected.isWritable()) {
+                if (open) {
+                    flush();
+                } else if (engine != null && flushNet()) {
+                    // the rest of a handshake message the socket would not take at once
+                    pumpTls();
+                }
+            }
+            updateInterest();
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        }
+    }
+
+    private void connect(InetSocketAddress address) {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            SocketChannel ch = SocketChannel.open();
+            channel = ch;
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = ch.connect(address);
+            key = ch.register(loop.selector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+            if (closed.get()) {
+                ch.close();
+                return;
+            }
+            if (connected) {
+                onConnected();
+                updateInterest();
+            }
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        if (engine == null) {
+            markOpen();
+        } else {
+            engine.beginHandshake();
+            pumpTls();
+        }
+    }
+
+    private void markOpen() throws IOException {
+        open = true;
+        ScheduledFuture<?> timeout = connectTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        handler.onOpen(this);
+        flush();
+    }
+
+    private void onReadable() throws IOException {
+        int read = channel.read(engine == null ? in : netIn);
+        if (read < 0) {
+            close(null);
+            return;
+        }
+        if (engine == null) {
+            drainLines();
+        } else {
+            pumpTls();
+        }
+    }
+
+    /**
+     * Hands every complete line to the handler, then moves what is left of a partial line to the front. A line that
+     * fills {@link #MAX_LINE_BYTES} without ending is dropped up to its end.
+     */
+    private void drainLines() {
+        byte[] data = in.array();
+        int limit = in.position();
+        int start = 0;
+        for (int i = scanned; i < limit; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (discarding) {
+                discarding = false;
+            } else if (i > start) {
+                handler.onLine(this, data, start, i);
+                if (closed.get()) {
+                    return;
+                }
+            }
+            start = i + 1;
+        }
+        int tail = limit - start;
+        if (start > 0) {
+            System.arraycopy(data, start, data, 0, tail);
+            in.position(tail);
+        }
+        scanned = tail;
+        if (tail >= MAX_LINE_BYTES) {
+            in.clear();
+            scanned = 0;
+            if (!discarding) {
+                discarding = true;
+                SocketMetrics.OVERSIZED_DROPPED.increment();
+            }
+        }
+    }
+
+    /**
+     * Runs the engine as far as the bytes at hand allow: handshake steps, then decrypting whatever records have
+     * arrived. Stops when it needs more input or the socket will not take more output.
+     */
+    private void pumpTls() throws IOException {
+        boolean progress = true;
+        while (progress && !closed.get()) {
+            progress = false;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK -> {
+                    if (!delegating) {
+                        delegating = true;
+                        runDelegatedTasks();
+                    }
+                }
+                case NEED_WRAP -> progress = wrap(EMPTY);
+                default -> {
+                    if (netIn.position() > 0) {
+                        progress = unwrap();
+                    }
+                    if (!open && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        markOpen();
+                        progress = true;
+                    }
+                }
+            }
+        }
+        if (open && !closed.get()) {
+            drainLines();
+        }
+    }
+
+    /**
+     * Runs the engine's handshake tasks, certificate checks among them, off the selector thread so other connections
+     * are not held up, then picks the handshake up again on the selector thread.
+     */
+    private void runDelegatedTasks() {
+        try {
+            SocketRuntime.executor().execute(() -> {
+                try {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } catch (RuntimeException e) {
+                    close(e);
+                    return;
+                }
+                loop.execute(this::resumeHandshake);
+            });
+        } catch (RuntimeException e) {
+            close(e);
+        }
+    }
+
+    private void resumeHandshake() {
+        delegating = false;
+        try {
+            pumpTls();
+            flush();
+            updateInterest();
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        }
+    }
+
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, in);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW -> {
+                // full of complete lines, or of one over-long line; either way draining makes room
+                drainLines();
+                return true;
+            }
+            case BUFFER_UNDERFLOW -> {
+                return false;
+            }
+            case CLOSED -> {
+                close(null);
+                return false;
+            }
+            default -> {
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+    }
+
+    /**
+     * Encrypts from {@code source} into {@link #netOut} and writes it out.
+     *
+     * @return {@code false} if nothing could be done until the socket takes more
+     */
+    private boolean wrap(ByteBuffer source) throws IOException {
+        if (!flushNet()) {
+            return false;
+        }
+        SSLEngineResult result = engine.wrap(source, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            close(null);
+            return false;
+        }
+        flushNet();
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    private boolean flushNet() throws IOException {
+        if (netOut.position() == 0) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private void flush() throws IOException {
+        while (open && !closed.get()) {
+            if (engine != null && !flushNet()) {
+                return;
+            }
+            PendingWrite head;
+            synchronized (writes) {
+                head = writes.peekFirst();
+            }
+            if (head == null) {
+                return;
+            }
+            if (engine == null) {
+                channel.write(head.data);
+            } else if (!wrap(head.data)) {
+                return;
+            }
+            if (head.data.hasRemaining()) {
+                if (engine == null) {
+                    return;
+                }
+                continue;
+            }
+            synchronized (writes) {
+                writes.pollFirst();
+            }
+            head.done.complete(null);
+        }
+    }
+
+    private void flushAndUpdate() {
+        try {
+            flush();
+            updateInterest();
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        }
+    }
+
+    private void updateInterest() {
+        SelectionKey k = key;
+        SocketChannel ch = channel;
+        if (k == null || !k.isValid() || ch == null || !ch.isConnected()) {
+            return;
+        }
+        int ops = 0;
+        if ((reading || !open) && !delegating) {
+            ops |= SelectionKey.OP_READ;
+        }
+        boolean pending;
+        synchronized (writes) {
+            pending = open && !writes.isEmpty();
+        }
+        if (pending || (netOut != null && netOut.position() > 0)) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (k.interestOps() != ops) {
+            k.interestOps(ops);
+        }
+    }
+
+    private void close(Throwable error) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        ScheduledFuture<?> timeout = connectTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        SelectionKey k = key;
+        if (k != null) {
+            k.cancel();
+        }
+        SocketChannel ch = channel;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+        }
+        PendingWrite write;
+        while (true) {
+            synchronized (writes) {
+                write = writes.pollFirst();
+            }
+            if (write == null) {
+                break;
+            }
+            write.done.completeExceptionally(new ClosedChannelException());
+        }
+        handler.onClosed(this, error);
+    }
+
+    private static final class PendingWrite {
+        private final ByteBuffer data;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private PendingWrite(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+}
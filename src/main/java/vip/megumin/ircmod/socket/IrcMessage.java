@@ -0,0 +1,228 @@
+package vip.megumin.ircmod.socket;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One IRC line, parsed where it lies in the read buffer. Tags are skipped, and the source, command and parameters
+ * are kept as offsets, so a line nobody is interested in costs one scan and no allocation. Strings are only made for
+ * the parts a caller asks for. One instance is reused for every line of a connection; it is valid until the next
+ * {@link #parse} or until the buffer is compacted.
+ *
+ * @author haipi
+ */
+
+final class IrcMessage {
+    static final int MAX_PARAMS = 15;
+
+    private final int[] paramStart = new int[MAX_PARAMS];
+    private final int[] paramEnd = new int[MAX_PARAMS];
+    private byte[] data;
+    private int sourceStart;
+    private int sourceEnd;
+    private int commandStart;
+    private int commandEnd;
+    private int numeric;
+    private int paramCount;
+
+    /**
+     * Parses {@code data[start, end)}, a line without its {@code \n}; a trailing {@code \r} is ignored.
+     *
+     * @return {@code false} if there is no command
+     */
+    boolean parse(byte[] data, int start, int end) {
+        this.data = data;
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+        int i = start;
+        if (i < end && data[i] == '@') {
+            i = skipSpaces(wordEnd(i, end), end);
+        }
+        sourceStart = -1;
+        sourceEnd = -1;
+        if (i < end && data[i] == ':') {
+            sourceStart = i + 1;
+            sourceEnd = wordEnd(sourceStart, end);
+            i = skipSpaces(sourceEnd, end);
+        }
+        if (i >= end) {
+            return false;
+        }
+        commandStart = i;
+        commandEnd = wordEnd(i, end);
+        numeric = parseNumeric();
+        paramCount = 0;
+        i = commandEnd;
+        while (paramCount < MAX_PARAMS) {
+            i = skipSpaces(i, end);
+            if (i >= end) {
+                break;
+            }
+            if (data[i] == ':' || paramCount == MAX_PARAMS - 1) {
+                paramStart[paramCount] = data[i] == ':' ? i + 1 : i;
+                paramEnd[paramCount] = end;
+                paramCount++;
+                break;
+            }
+            paramStart[paramCount] = i;
+            i = wordEnd(i, end);
+            paramEnd[paramCount] = i;
+            paramCount++;
+        }
+        return true;
+    }
+
+    /**
+     * The three-digit reply code, or {@code -1} for a named command.
+     */
+    int numeric() {
+        return numeric;
+    }
+
+    /**
+     * Whether the command is {@code command}, ignoring ASCII case.
+     */
+    boolean is(String command) {
+        return regionEquals(commandStart, commandEnd, command);
+    }
+
+    String command() {
+        return decode(commandStart, commandEnd);
+    }
+
+    /**
+     * The nick part of the source ({@code nick!user@host}), or {@code null} if the line has no source.
+     */
+    String sourceNick() {
+        if (sourceStart < 0) {
+            return null;
+        }
+        return decode(sourceStart, nickEnd());
+    }
+
+    /**
+     * Whether the source is a user ({@code nick!user@host}) rather than a server.
+     */
+    boolean fromUser() {
+        return sourceStart >= 0 && nickEnd() < sourceEnd;
+    }
+
+    boolean sourceIs(String nick) {
+        return sourceStart >= 0 && nick != null && regionEquals(sourceStart, nickEnd(), nick);
+    }
+
+    int paramCount() {
+        return paramCount;
+    }
+
+    /**
+     * Parameter {@code index}, or {@code ""} if the line has fewer.
+     */
+    String param(int index) {
+        return index < paramCount ? decode(paramStart[index], paramEnd[index]) : "";
+    }
+
+    /**
+     * The last parameter, where servers put the human-readable text.
+     */
+    String trailing() {
+        return paramCount == 0 ? "" : param(paramCount - 1);
+    }
+
+    /**
+     * Whether parameter {@code index} is {@code value} under IRC case rules, where {@code []\~} are the upper case of
+     * <code>{}|^</code>.
+     */
+    boolean paramIs(int index, String value) {
+        return index < paramCount && value != null && regionEquals(paramStart[index], paramEnd[index], value);
+    }
+
+    /**
+     * Parameter {@code index} as a decimal number, or {@code -1} if it is not one.
+     */
+    long paramAsLong(int index) {
+        if (index >= paramCount || paramStart[index] == paramEnd[index]) {
+            return -1L;
+        }
+        long value = 0;
+        for (int i = paramStart[index]; i < paramEnd[index]; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return -1L;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int nickEnd() {
+        for (int i = sourceStart; i < sourceEnd; i++) {
+            if (data[i] == '!' || data[i] == '@') {
+                return i;
+            }
+        }
+        return sourceEnd;
+    }
+
+    private int parseNumeric() {
+        if (commandEnd - commandStart != 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = commandStart; i < commandEnd; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private boolean regionEquals(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c > 0x7f || fold(data[start + i]) != fold((byte) c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private int wordEnd(int i, int end) {
+        while (i < end && data[i] != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipSpaces(int i, int end) {
+        while (i < end && data[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * RFC 1459 case mapping: ASCII letters plus <code>{}|^</code> as the lower case of {@code []\~}.
+     */
+    static int fold(byte b) {
+        if (b >= 'A' && b <= 'Z') {
+            return b + ('a' - 'A');
+        }
+        return switch (b) {
+            case '[' -> '{';
+            case ']' -> '}';
+            case '\\' -> '|';
+            case '~' -> '^';
+            default -> b;
+        };
+    }
+}
@@ -0,0 +1,79 @@
+package vip.megumin.ircmod.socket;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The one thread that does all IRC socket I/O, however many {@link IrcChat}s are open, in the same way the shared
+ * {@link java.net.http.HttpClient} has one selector thread for every WebSocket. Other threads hand it work with
+ * {@link #execute}; ready connections are serviced in {@link IrcConnection#handle}.
+ *
+ * @author haipi
+ */
+
+final class IrcSelector {
+    private static final Object LOCK = new Object();
+    private static IrcSelector instance;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    private IrcSelector(Selector selector) {
+        this.selector = selector;
+        this.thread = new Thread(this::run, "IRCMod-IRC-Selector");
+        this.thread.setDaemon(true);
+    }
+
+    static IrcSelector get() {
+        synchronized (LOCK) {
+            if (instance == null) {
+                try {
+                    instance = new IrcSelector(Selector.open());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                instance.thread.start();
+            }
+            return instance;
+        }
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inSelectorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inSelectorThread()) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ignored) {
+                }
+            }
+            try {
+                selector.select(IrcSelector::dispatch);
+            } catch (IOException | RuntimeException ignored) {
+            }
+        }
+    }
+
+    private static void dispatch(SelectionKey key) {
+        ((IrcConnection) key.attachment()).handle(key);
+    }
+}
@@ -0,0 +1,69 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs listener callbacks in order, either inline or as one serial lane on an executor so the socket thread never
+ * waits for a listener.
+ *
+ * @author haipi
+ */
+
+final class ListenerDispatcher {
+    private static final int BATCH = 64;
+
+    private final Executor executor;
+    private final int backlogLimit;
+    private final Runnable onRelieved;
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    ListenerDispatcher(Executor executor, int backlogLimit, Runnable onRelieved) {
+        this.executor = executor;
+        this.backlogLimit = Math.max(1, backlogLimit);
+        this.onRelieved = onRelieved;
+    }
+
+    void dispatch(Runnable task) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        queue.add(task);
+        pending.incrementAndGet();
+        schedule();
+    }
+
+    boolean isBacklogged() {
+        return pending.get() >= backlogLimit;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        int ran = 0;
+        Runnable task;
+        while (ran < BATCH && (task = queue.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ignored) {
+            }
+            ran++;
+            if (pending.decrementAndGet() == backlogLimit / 2) {
+                onRelieved.run();
+            }
+        }
+        scheduled.set(false);
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+}
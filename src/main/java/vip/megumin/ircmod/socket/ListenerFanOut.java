@@ -0,0 +1,103 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * The listeners of one transport: those sharing the dispatch lane and those with a {@link ListenerQueue} of their
+ * own. Either kind can ask the transport to stop reading; {@code onRelieved} is how they tell it to start again.
+ *
+ * @author haipi
+ */
+
+final class ListenerFanOut {
+    private final SocketChatOptions options;
+    private final Runnable onRelieved;
+    private final CopyOnWriteArrayList<SocketChatListener> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ListenerQueue> queues = new CopyOnWriteArrayList<>();
+    private final ListenerDispatcher dispatcher;
+
+    ListenerFanOut(SocketChatOptions options, Runnable onRelieved) {
+        this.options = options;
+        this.onRelieved = onRelieved;
+        this.dispatcher = new ListenerDispatcher(options.dispatchExecutor, options.dispatchBacklogLimit, onRelieved);
+    }
+
+    void add(SocketChatListener listener) {
+        if (listener == null) {
+            return;
+        }
+        if (options.listenerQueueCapacity > 0) {
+            add(listener, options.listenerQueueCapacity, options.listenerOverflow);
+        } else {
+            listeners.add(listener);
+        }
+    }
+
+    ListenerQueue add(SocketChatListener listener, int capacity, ListenerQueue.Overflow overflow) {
+        Executor executor = options.dispatchExecutor != null ? options.dispatchExecutor : SocketRuntime.executor();
+        ListenerQueue queue = new ListenerQueue(Objects.requireNonNull(listener, "listener"), capacity, overflow,
+                executor, onRelieved);
+        queues.add(queue);
+        return queue;
+    }
+
+    List<ListenerQueue> queues() {
+        return List.copyOf(queues);
+    }
+
+    boolean isBacklogged() {
+        if (dispatcher.isBacklogged()) {
+            return true;
+        }
+        for (ListenerQueue queue : queues) {
+            if (queue.isBacklogged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shared-lane listeners get the event through the dispatcher, queued listeners each through their own queue.
+     */
+    void fire(Consumer<SocketChatListener> event) {
+        if (!listeners.isEmpty()) {
+            dispatcher.dispatch(() -> {
+                for (SocketChatListener listener : listeners) {
+                    event.accept(listener);
+                }
+            });
+        }
+        for (ListenerQueue queue : queues) {
+            queue.offer(event);
+        }
+    }
+
+    void fireMessage(SocketReceivedPacketEvent event) {
+        fire(listener -> listener.onMessage(event));
+    }
+
+    void fireConnected() {
+        fire(SocketChatListener::onConnected);
+    }
+
+    void fireDisconnected(int statusCode, String reason) {
+        fire(listener -> listener.onDisconnected(statusCode, reason));
+    }
+
+    void fireError(Throwable error) {
+        fire(listener -> listener.onError(error));
+    }
+
+    void fireReconnecting(int attempt, long delayMillis) {
+        fire(listener -> listener.onReconnecting(attempt, delayMillis));
+    }
+
+    void fireReconnected(int attempts) {
+        fire(listener -> listener.onReconnected(attempts));
+    }
+}
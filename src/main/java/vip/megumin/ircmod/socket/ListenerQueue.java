@@ -0,0 +1,146 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A listener with its own bounded queue and consumer lane, so one slow listener only ever delays itself. Events
+ * reach the listener in the order they were fired. The ring is single-producer/single-consumer: producers take a
+ * short lock among themselves (events are normally fired from the socket thread alone), the consumer never locks.
+ * <p>
+ * What happens when the queue is full is declared up front with {@link Overflow}. Events that arrive while the
+ * queue is at least half full count as lagged; events that could not be queued count as dropped.
+ *
+ * @author haipi
+ */
+
+public final class ListenerQueue {
+    public enum Overflow {
+        /**
+         * Drop the event that does not fit. The socket never waits for this listener.
+         */
+        DROP_NEWEST,
+        /**
+         * Stop reading from the socket while the queue is three quarters full; events already read that still do not
+         * fit are dropped. The thread firing events is never made to wait, since for IRC it serves every connection.
+         */
+        BACKPRESSURE
+    }
+
+    private static final int BATCH = 64;
+
+    private final SocketChatListener listener;
+    private final Overflow overflow;
+    private final Executor executor;
+    private final Runnable onRelieved;
+    private final Object[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Object producerLock = new Object();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder lagged = new LongAdder();
+    private volatile int maxDepth;
+
+    ListenerQueue(SocketChatListener listener, int capacity, Overflow overflow, Executor executor,
+                  Runnable onRelieved) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.listener = listener;
+        this.overflow = overflow == null ? Overflow.BACKPRESSURE : overflow;
+        this.executor = executor;
+        this.onRelieved = onRelieved;
+        this.ring = new Object[size];
+        this.mask = size - 1;
+    }
+
+    public SocketChatListener listener() {
+        return listener;
+    }
+
+    public Overflow overflow() {
+        return overflow;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    public int size() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public long laggedCount() {
+        return lagged.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    boolean isBacklogged() {
+        return overflow == Overflow.BACKPRESSURE && size() >= ring.length * 3 / 4;
+    }
+
+    void offer(Consumer<SocketChatListener> event) {
+        synchronized (producerLock) {
+            long t = tail.get();
+            if (t - head.get() >= ring.length) {
+                dropped.increment();
+                SocketMetrics.LISTENER_DROPPED.increment();
+                return;
+            }
+            int depth = (int) (t - head.get()) + 1;
+            if (depth > ring.length / 2) {
+                lagged.increment();
+                SocketMetrics.LISTENER_LAGGED.increment();
+            }
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+            ring[(int) (t & mask)] = event;
+            tail.set(t + 1);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        int ran = 0;
+        while (ran < BATCH) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                break;
+            }
+            int index = (int) (h & mask);
+            Consumer<SocketChatListener> event = (Consumer<SocketChatListener>) ring[index];
+            ring[index] = null;
+            head.set(h + 1);
+            try {
+                event.accept(listener);
+            } catch (RuntimeException ignored) {
+            }
+            ran++;
+        }
+        if (overflow == Overflow.BACKPRESSURE && size() <= ring.length / 2) {
+            onRelieved.run();
+        }
+        scheduled.set(false);
+        if (head.get() < tail.get()) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns every text frame sent by a transport. Frames leave one at a time, each send chained on the completion of the
+ * previous one, because {@link java.net.http.WebSocket} rejects overlapping sends. Chat frames also wait for the
+ * {@link SendPacer}, if there is one; control frames never do.
+ *
+ * @param <T> the connection frames are written to; a new one is {@link #attach attached} after every reconnect
+ *
+ * @author haipi
+ */
+
+final class OutboundPipeline<T> {
+    interface Sender<T> {
+        CompletableFuture<?> send(T target, String payload);
+
+        /**
+         * Whether a failed send failed because the connection is gone, in which case a chat frame is kept for the
+         * next connection instead of failing.
+         */
+        boolean isClosed(T target);
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final int capacity;
+    private final SocketChatOptions.OverflowPolicy overflowPolicy;
+    private final SendPacer pacer;
+    private final Sender<T> sender;
+    private T target;
+    private boolean inFlight;
+    private boolean wakeScheduled;
+    private boolean messagesHeld;
+    private int messages;
+
+    OutboundPipeline(int capacity, SocketChatOptions.OverflowPolicy overflowPolicy, SendPacer pacer,
+                     Sender<T> sender) {
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy == null ? SocketChatOptions.OverflowPolicy.REJECT : overflowPolicy;
+        this.pacer = pacer;
+        this.sender = sender;
+    }
+
+    CompletableFuture<Void> enqueue(String payload) {
+        Entry entry = new Entry(payload, false);
+        Entry dropped = null;
+        synchronized (lock) {
+            if (messages >= capacity) {
+                if (overflowPolicy == SocketChatOptions.OverflowPolicy.REJECT) {
+                    return CompletableFuture.failedFuture(
+                            new RejectedExecutionException("Outbound queue is full (" + capacity + " messages)"));
+                }
+                dropped = pollOldestMessage();
+            }
+            queue.addLast(entry);
+            messages++;
+            SocketMetrics.OUTBOUND_QUEUED.add(1);
+        }
+        if (dropped != null) {
+            dropped.future.completeExceptionally(
+                    new RejectedExecutionException("Dropped from full outbound queue"));
+        }
+        pump();
+        return entry.future;
+    }
+
+    CompletableFuture<Void> enqueueControl(String payload) {
+        Entry entry = new Entry(payload, true);
+        synchronized (lock) {
+            queue.addFirst(entry);
+        }
+        pump();
+        return entry.future;
+    }
+
+    void attach(T connection) {
+        synchronized (lock) {
+            target = connection;
+            messagesHeld = false;
+        }
+        pump();
+    }
+
+    /**
+     * Like {@link #attach}, but only control frames are sent until {@link #releaseMessages}, so chat waits until the
+     * connection has actually joined its channel.
+     */
+    void attachControl(T connection) {
+        synchronized (lock) {
+            target = connection;
+            messagesHeld = true;
+        }
+        pump();
+    }
+
+    void releaseMessages(T connection) {
+        synchronized (lock) {
+            if (connection == null || target != connection) {
+                return;
+            }
+            messagesHeld = false;
+        }
+        pump();
+    }
+
+    void detach(T connection) {
+        synchronized (lock) {
+            if (connection != null && target != connection) {
+                return;
+            }
+            target = null;
+            dropControlFrames();
+        }
+    }
+
+    int size() {
+        synchronized (lock) {
+            return messages;
+        }
+    }
+
+    int remaining() {
+        synchronized (lock) {
+            return Math.max(0, capacity - messages);
+        }
+    }
+
+    /**
+     * Slows the pacer down after the server complained.
+     *
+     * @return the new rate in payload characters per second, or {@code -1} if sends are not paced
+     */
+    double onRateLimited() {
+        synchronized (lock) {
+            if (pacer == null) {
+                return -1;
+            }
+            pacer.onRateLimited(System.nanoTime());
+            return pacer.ratePerSecond();
+        }
+    }
+
+    double pacedRatePerSecond() {
+        synchronized (lock) {
+            return pacer == null ? -1 : pacer.ratePerSecond();
+        }
+    }
+
+    private void pump() {
+        Entry entry;
+        T connection;
+        synchronized (lock) {
+            if (inFlight || target == null || queue.isEmpty()) {
+                return;
+            }
+            Entry head = queue.peekFirst();
+            if (!head.control && messagesHeld) {
+                return;
+            }
+            if (!head.control && pacer != null) {
+                long wait = pacer.reserve(head.payload.length(), System.nanoTime());
+                if (wait > 0) {
+                    if (!wakeScheduled) {
+                        wakeScheduled = true;
+                        SocketScheduler.get().schedule(this::wake, wait, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+            }
+            entry = queue.pollFirst();
+            if (!entry.control) {
+                messages--;
+                SocketMetrics.OUTBOUND_QUEUED.add(-1);
+            }
+            connection = target;
+            inFlight = true;
+        }
+        CompletableFuture<?> send;
+        try {
+            send = sender.send(connection, entry.payload);
+        } catch (RuntimeException e) {
+            send = CompletableFuture.failedFuture(e);
+        }
+        send.whenComplete((ignored, err) -> onSent(connection, entry, err));
+    }
+
+    private void wake() {
+        synchronized (lock) {
+            wakeScheduled = false;
+        }
+        pump();
+    }
+
+    private void onSent(T connection, Entry entry, Throwable err) {
+        boolean failed = false;
+        synchronized (lock) {
+            inFlight = false;
+            if (err != null) {
+                if (sender.isClosed(connection)) {
+                    if (target == connection) {
+                        target = null;
+                        dropControlFrames();
+                    }
+                    if (!entry.control) {
+                        queue.addFirst(entry);
+                        messages++;
+                        SocketMetrics.OUTBOUND_QUEUED.add(1);
+                    }
+                } else {
+                    failed = true;
+                }
+            }
+        }
+        if (err == null) {
+            SocketMetrics.FRAMES_OUT.increment();
+            SocketMetrics.BYTES_OUT.add(SocketMetrics.utf8Length(entry.payload));
+            entry.future.complete(null);
+        } else if (failed || entry.control) {
+            entry.future.completeExceptionally(err);
+        }
+        pump();
+    }
+
+    private Entry pollOldestMessage() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.control) {
+                it.remove();
+                messages--;
+                SocketMetrics.OUTBOUND_QUEUED.add(-1);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void dropControlFrames() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.control) {
+                it.remove();
+                entry.future.cancel(false);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final String payload;
+        private final boolean control;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Entry(String payload, boolean control) {
+            this.payload = payload;
+            this.control = control;
+        }
+    }
+}
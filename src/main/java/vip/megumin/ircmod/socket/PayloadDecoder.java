@@ -0,0 +1,160 @@
+package vip.megumin.ircmod.socket;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming decoder for inbound hack.chat frames. Fails the same way {@code JsonParser.parseString} does.
+ *
+ * @author haipi
+ */
+
+final class PayloadDecoder {
+    interface Handler {
+        void onChat(String nick, String text);
+
+        void onInfo(String text);
+
+        void onWarn(String text);
+
+        void onOnlineSet(List<String> nicks);
+
+        void onOnlineAdd(String nick);
+
+        void onOnlineRemove(String nick);
+    }
+
+    private PayloadDecoder() {
+    }
+
+    @SuppressWarnings("deprecation")
+    static void decode(CharSequence payload, Handler handler) {
+        long started = System.nanoTime();
+        String cmd = null;
+        String nick = null;
+        String text = null;
+        List<String> nicks = null;
+        try {
+            JsonReader reader = new JsonReader(new CharSequenceReader(payload));
+            // setStrictness needs Gson 2.11, and Minecraft 1.20.x ships 2.10
+            reader.setLenient(true);
+            JsonToken root;
+            try {
+                root = reader.peek();
+            } catch (EOFException empty) {
+                return;
+            }
+            if (root != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                if (root != JsonToken.NULL) {
+                    ensureFullyConsumed(reader);
+                }
+                return;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "cmd" -> cmd = readString(reader);
+                    case "nick" -> nick = readString(reader);
+                    case "text" -> text = readString(reader);
+                    case "nicks" -> nicks = readStringArray(reader);
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            ensureFullyConsumed(reader);
+        } catch (MalformedJsonException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        } catch (StackOverflowError | OutOfMemoryError e) {
+            throw new JsonParseException("Failed parsing JSON source to Json", e);
+        }
+        SocketMetrics.PARSE_NANOS.record(System.nanoTime() - started);
+        if (cmd == null) {
+            return;
+        }
+        switch (cmd) {
+            case "chat" -> {
+                if (text != null) {
+                    handler.onChat(nick == null ? "" : nick, text);
+                }
+            }
+            case "info" -> {
+                if (text != null) {
+                    handler.onInfo(text);
+                }
+            }
+            case "warn" -> {
+                if (text != null) {
+                    handler.onWarn(text);
+                }
+            }
+            case "onlineSet" -> handler.onOnlineSet(nicks == null ? List.of() : nicks);
+            case "onlineAdd" -> {
+                if (nick != null) {
+                    handler.onOnlineAdd(nick);
+                }
+            }
+            case "onlineRemove" -> {
+                if (nick != null) {
+                    handler.onOnlineRemove(nick);
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING, NUMBER -> {
+                return reader.nextString();
+            }
+            case BOOLEAN -> {
+                return Boolean.toString(reader.nextBoolean());
+            }
+            case NULL -> {
+                reader.nextNull();
+                return null;
+            }
+            default -> {
+                reader.skipValue();
+                return null;
+            }
+        }
+    }
+
+    private static List<String> readStringArray(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String value = readString(reader);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        reader.endArray();
+        return values;
+    }
+
+    private static void ensureFullyConsumed(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new JsonSyntaxException("Did not consume the entire document.");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Who is currently in one channel, kept sorted by lower-cased nick so prefix lookups are a single range scan.
+ *
+ * @author haipi
+ */
+
+public final class Roster {
+    private final ConcurrentSkipListMap<String, String> nicks = new ConcurrentSkipListMap<>();
+
+    void replaceAll(Collection<String> online) {
+        nicks.clear();
+        for (String nick : online) {
+            add(nick);
+        }
+    }
+
+    void add(String nick) {
+        if (nick == null || nick.isEmpty()) {
+            return;
+        }
+        String interned = nick.intern();
+        nicks.put(key(interned), interned);
+    }
+
+    void remove(String nick) {
+        if (nick != null) {
+            nicks.remove(key(nick));
+        }
+    }
+
+    void clear() {
+        nicks.clear();
+    }
+
+    public boolean contains(String nick) {
+        return nick != null && nicks.containsKey(key(nick));
+    }
+
+    public int size() {
+        return nicks.size();
+    }
+
+    public List<String> complete(String prefix, int limit) {
+        List<String> out = new ArrayList<>();
+        if (prefix == null || limit <= 0) {
+            return out;
+        }
+        String from = key(prefix);
+        for (Map.Entry<String, String> entry : nicks.tailMap(from, true).entrySet()) {
+            if (!entry.getKey().startsWith(from) || out.size() >= limit) {
+                break;
+            }
+            out.add(entry.getValue());
+        }
+        return out;
+    }
+
+    private static String key(String nick) {
+        return nick.toLowerCase(Locale.ROOT);
+    }
+}
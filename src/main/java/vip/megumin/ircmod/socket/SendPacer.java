@@ -0,0 +1,78 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that spaces out chat sends. hack.chat scores chat by text volume, so tokens are characters of
+ * payload: a full bucket lets a short burst through at once, after which sends leave at the refill rate.
+ * <p>
+ * A rate-limit warning from the server means our idea of the limit was too generous: the bucket is emptied and
+ * the rate halved, then it creeps back toward the configured rate once the server has been quiet for a while.
+ * Not thread-safe; {@link OutboundPipeline} calls it under its lock.
+ *
+ * @author haipi
+ */
+
+final class SendPacer {
+    private static final long QUIET_BEFORE_RECOVERY_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final double RECOVERY_PER_SECOND = 0.01;
+    private static final double MIN_RATE_FRACTION = 0.1;
+
+    private final double configuredRate;
+    private final double burst;
+    private double rate;
+    private double tokens;
+    private long refilledAt;
+    private long limitedAt;
+
+    /**
+     * @param charsPerSecond sustained payload characters per second
+     * @param burstChars     bucket size; how much can go out back to back after a quiet spell
+     */
+    SendPacer(double charsPerSecond, double burstChars, long now) {
+        this.configuredRate = charsPerSecond;
+        this.burst = Math.max(1, burstChars);
+        this.rate = charsPerSecond;
+        this.tokens = this.burst;
+        this.refilledAt = now;
+    }
+
+    /**
+     * Takes the tokens for a payload of {@code cost} characters if they are there.
+     *
+     * @return {@code 0} if the payload may go now, otherwise how many nanoseconds until it may
+     */
+    long reserve(int cost, long now) {
+        refill(now);
+        double needed = Math.min(cost, burst);
+        if (tokens >= needed) {
+            tokens -= needed;
+            return 0L;
+        }
+        return Math.max(1L, (long) Math.ceil((needed - tokens) / rate * 1e9));
+    }
+
+    void onRateLimited(long now) {
+        refill(now);
+        rate = Math.max(configuredRate * MIN_RATE_FRACTION, rate / 2);
+        tokens = 0;
+        limitedAt = now;
+    }
+
+    double ratePerSecond() {
+        return rate;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - refilledAt;
+        if (elapsed <= 0) {
+            return;
+        }
+        refilledAt = now;
+        double seconds = elapsed / 1e9;
+        if (rate < configuredRate && now - limitedAt >= QUIET_BEFORE_RECOVERY_NANOS) {
+            rate = Math.min(configuredRate, rate + configuredRate * RECOVERY_PER_SECOND * seconds);
+        }
+        tokens = Math.min(burst, tokens + rate * seconds);
+    }
+}
@@ -1,18 +1,19 @@
 package vip.megumin.ircmod.socket;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.WebSocket;
-import java.time.Duration;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,28 +21,123 @@ import java.util.regex.Pattern;
  * @author haipi
  */
 
-public final class SocketChat implements WebSocket.Listener {
+public final class SocketChat implements ChatTransport, WebSocket.Listener {
     private static final int MAX_NICK_LEN = 24;
+    private static final int ABNORMAL_CLOSURE = 1006;
     private static final Pattern NICK_SUFFIX_PARENS = Pattern.compile("^(.*)\\((\\d+)\\)$");
     private static final Pattern NICK_ALLOWED = Pattern.compile("^[A-Za-z0-9_]{1," + MAX_NICK_LEN + "}$");
 
+    private static final OutboundPipeline.Sender<WebSocket> SENDER = new OutboundPipeline.Sender<>() {
+        @Override
+        public CompletableFuture<?> send(WebSocket target, String payload) {
+            return target.sendText(payload, true);
+        }
+
+        @Override
+        public boolean isClosed(WebSocket target) {
+            return target.isOutputClosed();
+        }
+    };
+
     private final URI uri;
     private final String channel;
     private final String baseNick;
     private final String password;
     private final HttpClient httpClient;
-    private final CopyOnWriteArrayList<SocketChatListener> listeners = new CopyOnWriteArrayList<>();
-    private final ConcurrentLinkedQueue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final SocketChatOptions options;
+    private final ListenerFanOut fanOut;
+    private final OutboundPipeline<WebSocket> outbound;
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final Roster roster = new Roster();
     private final AtomicBoolean connected = new AtomicBoolean(false);
     private final AtomicBoolean connecting = new AtomicBoolean(false);
+    private final AtomicBoolean demandWithheld = new AtomicBoolean(false);
+    private final AtomicInteger demand = new AtomicInteger();
+    private final int demandWindow;
+    private final int maxMessageChars;
+    private boolean discardingOversized;
+    private volatile boolean readPaused;
     private final StringBuilder incomingBuffer = new StringBuilder();
     private volatile WebSocket webSocket;
+    private volatile Heartbeat heartbeat;
+    private volatile long smoothedRttNanos = -1L;
     private volatile String currentNick;
     private final Object joinLock = new Object();
+    private final PayloadDecoder.Handler payloadHandler = new PayloadDecoder.Handler() {
+        @Override
+        public void onChat(String nick, String text) {
+            fanOut.fireMessage(new SocketReceivedPacketEvent(nick, text));
+        }
+
+        @Override
+        public void onInfo(String text) {
+            fanOut.fireMessage(new SocketReceivedPacketEvent("info", text));
+        }
+
+        @Override
+        public void onWarn(String text) {
+            if (handleNickInUse(text)) {
+                return;
+            }
+            fanOut.fireMessage(new SocketReceivedPacketEvent("warn", text));
+            if (isRateLimitWarning(text)) {
+                onRateLimited();
+            }
+        }
+
+        @Override
+        public void onOnlineSet(List<String> nicks) {
+            roster.replaceAll(nicks);
+            boolean first;
+            int attempts;
+            synchronized (joinLock) {
+                first = !joined;
+                attempts = joinAttempts;
+                joined = true;
+                lastJoinedNick = currentNick;
+                lastJoinedRetryCount = nickRetryCount;
+            }
+            if (!first) {
+                return;
+            }
+            outbound.releaseMessages(webSocket);
+            if (attempts > 0) {
+                SocketMetrics.RECONNECTS.increment();
+                fanOut.fireReconnected(attempts);
+            } else {
+                fanOut.fireConnected();
+            }
+        }
+
+        @Override
+        public void onOnlineAdd(String nick) {
+            roster.add(nick);
+            fanOut.fireMessage(new SocketReceivedPacketEvent("info", nick + " joined"));
+        }
+
+        @Override
+        public void onOnlineRemove(String nick) {
+            roster.remove(nick);
+            fanOut.fireMessage(new SocketReceivedPacketEvent("info", nick + " left"));
+        }
+    };
     private int nickRetryCount;
     private boolean joined;
+    private String lastJoinedNick;
+    private int lastJoinedRetryCount;
+    private int joinAttempts;
+    private final Object reconnectLock = new Object();
+    private volatile boolean closeRequested;
+    private volatile boolean outage;
+    private int reconnectAttempts;
+    private ScheduledFuture<?> reconnectTask;
 
     public SocketChat(String uri, String channel, String nick, String password) {
+        this(uri, channel, nick, password, new SocketChatOptions());
+    }
+
+    public SocketChat(String uri, String channel, String nick, String password, SocketChatOptions options) {
+        SocketChatOptions opts = options == null ? new SocketChatOptions() : options;
         this.uri = URI.create(Objects.requireNonNull(uri, "uri"));
         this.channel = Objects.requireNonNull(channel, "channel");
         String initialNickRaw = Objects.requireNonNull(nick, "nick").trim();
@@ -69,196 +165,420 @@ public final class SocketChat implements WebSocket.Listener {
         this.nickRetryCount = Math.max(0, parsedRetry);
         this.currentNick = buildNick(this.baseNick, this.nickRetryCount);
         this.password = password == null ? "" : password;
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(10))
-                .build();
+        this.options = opts;
+        SendPacer pacer = opts.sendRateCharsPerSecond > 0
+                ? new SendPacer(opts.sendRateCharsPerSecond, opts.sendBurstChars, System.nanoTime())
+                : null;
+        this.outbound = new OutboundPipeline<>(opts.maxPendingMessages, opts.overflowPolicy, pacer, SENDER);
+        this.fanOut = new ListenerFanOut(opts, this::releaseWithheldDemand);
+        this.httpClient = opts.httpClient != null ? opts.httpClient : SocketRuntime.httpClient();
+        this.demandWindow = Math.max(1, opts.demandWindow);
+        this.maxMessageChars = Math.max(1, opts.maxMessageChars);
     }
 
+    /**
+     * Adds a listener to the shared dispatch lane, or gives it its own queue when
+     * {@link SocketChatOptions#listenerQueueCapacity} is set.
+     */
+    @Override
     public void addListener(SocketChatListener listener) {
-        if (listener != null) {
-            listeners.add(listener);
-        }
+        fanOut.add(listener);
     }
 
+    /**
+     * Adds a listener with its own bounded queue and consumer on the dispatch executor (or the shared socket
+     * executor), so it can block without holding up the socket or other listeners.
+     *
+     * @return the queue, for its lag and drop counts
+     */
+    public ListenerQueue addListener(SocketChatListener listener, int capacity, ListenerQueue.Overflow overflow) {
+        return fanOut.add(listener, capacity, overflow);
+    }
+
+    public List<ListenerQueue> getListenerQueues() {
+        return fanOut.queues();
+    }
+
+    @Override
+    public String getChannel() {
+        return channel;
+    }
+
+    @Override
+    public Roster getRoster() {
+        return roster;
+    }
+
+    @Override
     public boolean isConnected() {
         return connected.get();
     }
 
+    @Override
+    public boolean isReconnecting() {
+        return outage;
+    }
+
+    @Override
     public void connect() {
-        if (connected.get() || connecting.getAndSet(true)) {
-            return;
-        }
-        synchronized (joinLock) {
-            joined = false;
-        }
-        httpClient.newWebSocketBuilder()
-                .buildAsync(uri, this)
-                .whenComplete((ws, err) -> {
-                    connecting.set(false);
-                    if (err != null) {
-                        fireError(err);
-                    }
-                });
+        closeRequested = false;
+        openSocket();
     }
 
+    @Override
     public void disconnect() {
+        closeRequested = true;
+        cancelReconnect();
         WebSocket ws = this.webSocket;
         if (ws != null) {
             ws.sendClose(WebSocket.NORMAL_CLOSURE, "bye");
         }
     }
 
-    public void sendMessage(String text) {
+    @Override
+    public void pauseReading() {
+        readPaused = true;
+    }
+
+    @Override
+    public void resumeReading() {
+        readPaused = false;
+        releaseWithheldDemand();
+    }
+
+    public long getRoundTripMillis() {
+        long rtt = smoothedRttNanos;
+        return rtt < 0 ? -1L : TimeUnit.NANOSECONDS.toMillis(rtt);
+    }
+
+    @Override
+    public int getPendingCount() {
+        return outbound.size();
+    }
+
+    @Override
+    public int getFreeCapacity() {
+        return outbound.remaining();
+    }
+
+    /**
+     * Current send pace in payload characters per second, lowered for a while after the server rate-limits us;
+     * {@code -1} when sends are not paced.
+     */
+    public double getSendRate() {
+        return outbound.pacedRatePerSecond();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMessage(String text) {
         if (text == null || text.isBlank()) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
-        String payload = buildChatPayload(text);
-        WebSocket ws = this.webSocket;
-        if (ws == null || !connected.get()) {
-            pendingMessages.add(payload);
+        CompletableFuture<Void> sent = outbound.enqueue(buildChatPayload(text));
+        if (!connected.get() && !outage) {
             connect();
-            return;
         }
-        ws.sendText(payload, true);
+        return sent;
     }
 
     @Override
     public void onOpen(WebSocket webSocket) {
-        this.webSocket = webSocket;
-        connected.set(true);
+        synchronized (reconnectLock) {
+            this.webSocket = webSocket;
+            connected.set(true);
+        }
+        demandWithheld.set(false);
+        demand.set(0);
+        synchronized (incomingBuffer) {
+            resetIncoming();
+        }
         sendJoin();
-        flushPending();
-        fireConnected();
-        webSocket.request(1);
+        // chat is held back until the join succeeds, see onOnlineSet
+        outbound.attachControl(webSocket);
+        startHeartbeat(webSocket);
+        int attempts = finishOutage();
+        synchronized (joinLock) {
+            joinAttempts = attempts;
+        }
+        refillDemand(webSocket);
     }
 
     @Override
     public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        Heartbeat hb = this.heartbeat;
+        if (hb != null) {
+            hb.onActivity();
+        }
+        SocketMetrics.BYTES_IN.add(SocketMetrics.utf8Length(data));
         synchronized (incomingBuffer) {
-            incomingBuffer.append(data);
-            if (last) {
-                String payload = incomingBuffer.toString();
-                incomingBuffer.setLength(0);
-                handlePayload(payload);
+            if (discardingOversized) {
+                discardingOversized = !last;
+            } else if (incomingBuffer.length() + data.length() > maxMessageChars) {
+                resetIncoming();
+                discardingOversized = !last;
+                SocketMetrics.OVERSIZED_DROPPED.increment();
+                fanOut.fireMessage(new SocketReceivedPacketEvent("warn",
+                        "Dropped an incoming message longer than " + maxMessageChars + " characters"));
+            } else if (last && incomingBuffer.length() == 0) {
+                // the common case: the whole message in one piece goes to the decoder without a copy
+                SocketMetrics.FRAMES_IN.increment();
+                handlePayload(data);
+            } else {
+                incomingBuffer.append(data);
+                if (last) {
+                    SocketMetrics.FRAMES_IN.increment();
+                    handlePayload(incomingBuffer);
+                    resetIncoming();
+                }
             }
         }
-        webSocket.request(1);
+        consumeDemand(webSocket);
         return CompletableFuture.completedFuture(null);
     }
 
     @Override
-    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
-        connected.set(false);
-        this.webSocket = null;
-        fireDisconnected(statusCode, reason);
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        consumeDemand(webSocket);
         return CompletableFuture.completedFuture(null);
     }
 
     @Override
-    public void onError(WebSocket webSocket, Throwable error) {
-        connected.set(false);
-        this.webSocket = null;
-        fireError(error);
+    public CompletionStage<?> onPing(WebSocket webSocket, ByteBuffer message) {
+        // the client answers pings by itself; this only keeps the demand count right
+        consumeDemand(webSocket);
+        return CompletableFuture.completedFuture(null);
     }
 
-    private void sendJoin() {
-        WebSocket ws = this.webSocket;
-        if (ws == null) {
-            return;
+    @Override
+    public CompletionStage<?> onPong(WebSocket webSocket, ByteBuffer message) {
+        Heartbeat hb = this.heartbeat;
+        if (hb != null) {
+            if (message.remaining() == Long.BYTES) {
+                hb.onPong(message.getLong(message.position()));
+            } else {
+                hb.onActivity();
+            }
         }
-        JsonObject join = new JsonObject();
-        join.addProperty("cmd", "join");
-        join.addProperty("channel", channel);
-        join.addProperty("nick", currentNick);
-        if (!password.isEmpty()) {
-            join.addProperty("password", password);
+        consumeDemand(webSocket);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        if (!releaseSocket(webSocket)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!outage) {
+            fanOut.fireDisconnected(statusCode, reason);
         }
-        ws.sendText(join.toString(), true);
+        scheduleReconnect();
+        return CompletableFuture.completedFuture(null);
     }
 
-    private void flushPending() {
-        WebSocket ws = this.webSocket;
-        if (ws == null) {
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        if (!releaseSocket(webSocket)) {
             return;
         }
-        String payload;
-        while ((payload = pendingMessages.poll()) != null) {
-            ws.sendText(payload, true);
+        if (!outage) {
+            fanOut.fireError(error);
         }
+        scheduleReconnect();
     }
 
-    private String buildChatPayload(String text) {
-        JsonObject chat = new JsonObject();
-        chat.addProperty("cmd", "chat");
-        chat.addProperty("text", text);
-        return chat.toString();
+    private boolean releaseSocket(WebSocket ws) {
+        synchronized (reconnectLock) {
+            if (this.webSocket != ws) {
+                return false;
+            }
+            this.webSocket = null;
+            connected.set(false);
+        }
+        roster.clear();
+        Heartbeat hb = this.heartbeat;
+        if (hb != null) {
+            hb.stop();
+            this.heartbeat = null;
+        }
+        outbound.detach(ws);
+        return true;
     }
 
-    private void handlePayload(String payload) {
-        JsonElement root;
-        try {
-            root = JsonParser.parseString(payload);
-        } catch (Exception e) {
-            fireError(e);
+    private void startHeartbeat(WebSocket ws) {
+        if (options.heartbeatIntervalMillis <= 0) {
             return;
         }
-        if (!root.isJsonObject()) {
+        Heartbeat hb = new Heartbeat(sentAt -> {
+            ByteBuffer payload = ByteBuffer.allocate(Long.BYTES);
+            payload.putLong(0, sentAt);
+            ws.sendPing(payload);
+        }, options.heartbeatIntervalMillis, options.heartbeatMissedPongs, this::recordRtt,
+                () -> onHeartbeatTimeout(ws));
+        this.heartbeat = hb;
+        hb.start();
+    }
+
+    private void recordRtt(long sampleNanos) {
+        long previous = smoothedRttNanos;
+        smoothedRttNanos = previous < 0 ? sampleNanos : previous + (sampleNanos - previous) / 8;
+    }
+
+    private void onHeartbeatTimeout(WebSocket ws) {
+        if (!releaseSocket(ws)) {
             return;
         }
-        JsonObject obj = root.getAsJsonObject();
-        String cmd = getString(obj, "cmd");
-        if (cmd == null) {
+        ws.abort();
+        if (!outage) {
+            fanOut.fireDisconnected(ABNORMAL_CLOSURE, "Heartbeat timed out");
+        }
+        scheduleReconnect();
+    }
+
+    private void openSocket() {
+        if (connected.get() || connecting.getAndSet(true)) {
             return;
         }
-        switch (cmd) {
-            case "chat" -> {
-                String nick = getString(obj, "nick");
-                String text = getString(obj, "text");
-                if (text != null) {
-                    fireMessage(new SocketReceivedPacketEvent(nick == null ? "" : nick, text));
-                }
-            }
-            case "info" -> {
-                String text = getString(obj, "text");
-                if (text != null) {
-                    fireMessage(new SocketReceivedPacketEvent("info", text));
-                }
+        synchronized (joinLock) {
+            joined = false;
+            if (lastJoinedNick != null) {
+                currentNick = lastJoinedNick;
+                nickRetryCount = lastJoinedRetryCount;
             }
-            case "warn" -> {
-                String text = getString(obj, "text");
-                if (text != null && handleNickInUse(text)) {
-                    return;
-                }
-                if (text != null) {
-                    fireMessage(new SocketReceivedPacketEvent("warn", text));
-                }
+        }
+        httpClient.newWebSocketBuilder()
+                .buildAsync(uri, this)
+                .whenComplete((ws, err) -> {
+                    connecting.set(false);
+                    if (err != null) {
+                        if (!outage) {
+                            fanOut.fireError(err);
+                        }
+                        scheduleReconnect();
+                    }
+                });
+    }
+
+    private void scheduleReconnect() {
+        if (closeRequested || !options.reconnect) {
+            return;
+        }
+        int attempt;
+        long delay;
+        synchronized (reconnectLock) {
+            outage = true;
+            if (reconnectTask != null && !reconnectTask.isDone()) {
+                return;
             }
-            case "onlineSet" -> {
-                synchronized (joinLock) {
-                    joined = true;
+            attempt = ++reconnectAttempts;
+            delay = backoffDelay(attempt, options);
+            reconnectTask = SocketScheduler.get().schedule(() -> {
+                if (!closeRequested) {
+                    openSocket();
                 }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        SocketMetrics.RECONNECT_ATTEMPTS.increment();
+        fanOut.fireReconnecting(attempt, delay);
+    }
+
+    /**
+     * Full jitter: a uniform pick between zero and an exponentially growing ceiling.
+     */
+    static long backoffDelay(int attempt, SocketChatOptions options) {
+        long base = Math.max(1L, options.reconnectBaseDelayMillis);
+        long max = Math.max(base, options.reconnectMaxDelayMillis);
+        long ceiling = attempt > 30 ? max : Math.min(max, base << (attempt - 1));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private int finishOutage() {
+        synchronized (reconnectLock) {
+            int attempts = outage ? reconnectAttempts : 0;
+            outage = false;
+            reconnectAttempts = 0;
+            return attempts;
+        }
+    }
+
+    private void cancelReconnect() {
+        synchronized (reconnectLock) {
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
             }
-            case "onlineAdd" -> {
-                String nick = getString(obj, "nick");
-                if (nick != null) {
-                    fireMessage(new SocketReceivedPacketEvent("info", nick + " joined"));
-                }
+            outage = false;
+            reconnectAttempts = 0;
+        }
+    }
+
+    private boolean shouldWithholdDemand() {
+        return readPaused || fanOut.isBacklogged();
+    }
+
+    private void releaseWithheldDemand() {
+        if (shouldWithholdDemand()) {
+            return;
+        }
+        WebSocket ws = this.webSocket;
+        if (ws != null && demandWithheld.compareAndSet(true, false)) {
+            refillDemand(ws);
+        }
+    }
+
+    /**
+     * Accounts for one delivered message and tops the window back up once half of it is used, so the socket asks
+     * for more in batches rather than once per frame. While reading is withheld nothing is requested; up to a
+     * window's worth of already requested messages may still arrive.
+     */
+    private void consumeDemand(WebSocket ws) {
+        int left = demand.decrementAndGet();
+        if (shouldWithholdDemand()) {
+            demandWithheld.set(true);
+            if (!shouldWithholdDemand()) {
+                releaseWithheldDemand();
             }
-            case "onlineRemove" -> {
-                String nick = getString(obj, "nick");
-                if (nick != null) {
-                    fireMessage(new SocketReceivedPacketEvent("info", nick + " left"));
-                }
+        } else if (left <= demandWindow / 2) {
+            refillDemand(ws);
+        }
+    }
+
+    private void refillDemand(WebSocket ws) {
+        int current;
+        do {
+            current = demand.get();
+            if (current >= demandWindow) {
+                return;
             }
+        } while (!demand.compareAndSet(current, demandWindow));
+        ws.request(demandWindow - current);
+    }
+
+    private void resetIncoming() {
+        incomingBuffer.setLength(0);
+        if (incomingBuffer.capacity() > 16 * 1024) {
+            incomingBuffer.trimToSize();
+        }
+        discardingOversized = false;
+    }
+
+    private void sendJoin() {
+        WebSocket ws = this.webSocket;
+        if (ws == null) {
+            return;
         }
+        outbound.enqueueControl(encoder.join(channel, currentNick, password));
+    }
+
+    String buildChatPayload(String text) {
+        return encoder.chat(text);
     }
 
-    private static String getString(JsonObject obj, String key) {
-        JsonElement value = obj.get(key);
-        if (value == null || !value.isJsonPrimitive()) {
-            return null;
+    void handlePayload(CharSequence payload) {
+        try {
+            PayloadDecoder.decode(payload, payloadHandler);
+        } catch (Exception e) {
+            fanOut.fireError(e);
         }
-        return value.getAsString();
     }
 
     private boolean handleNickInUse(String warnText) {
@@ -276,50 +596,45 @@ public final class SocketChat implements WebSocket.Listener {
                 return false;
             }
             if (nickRetryCount >= 20) {
-                fireMessage(new SocketReceivedPacketEvent("warn", "Nick already in use. Too many retries."));
+                fanOut.fireMessage(new SocketReceivedPacketEvent("warn", "Nick already in use. Too many retries."));
                 disconnect();
                 return true;
             }
             nickRetryCount++;
+            SocketMetrics.NICK_RETRIES.increment();
             currentNick = buildNick(baseNick, nickRetryCount);
         }
 
-        fireMessage(new SocketReceivedPacketEvent("info", "Nick already in use, trying " + currentNick));
+        fanOut.fireMessage(new SocketReceivedPacketEvent("info", "Nick already in use, trying " + currentNick));
         sendJoin();
         return true;
     }
 
-    private static boolean isNickInUseWarning(String warnText) {
-        String t = warnText == null ? "" : warnText.toLowerCase();
-        return (t.contains("nick") || t.contains("name"))
-                && (t.contains("in use") || t.contains("already") || t.contains("taken") || t.contains("registered"));
-    }
-
-    private void fireMessage(SocketReceivedPacketEvent event) {
-        for (SocketChatListener listener : listeners) {
-            listener.onMessage(event);
+    private void onRateLimited() {
+        SocketMetrics.RATE_LIMITED.increment();
+        double rate = outbound.onRateLimited();
+        if (rate < 0) {
+            return;
         }
+        int pending = outbound.size();
+        fanOut.fireMessage(new SocketReceivedPacketEvent("info", String.format(Locale.ROOT,
+                "Rate limited by the server; slowing down to %.0f characters/s%s", rate,
+                pending > 0 ? " (" + pending + " queued)" : "")));
     }
 
-    private void fireConnected() {
-        for (SocketChatListener listener : listeners) {
-            listener.onConnected();
-        }
+    static boolean isRateLimitWarning(String warnText) {
+        String t = warnText == null ? "" : warnText.toLowerCase(Locale.ROOT);
+        return t.contains("too much text") || t.contains("too fast") || t.contains("rate limit")
+                || t.contains("rate-limit") || t.contains("slow down");
     }
 
-    private void fireDisconnected(int statusCode, String reason) {
-        for (SocketChatListener listener : listeners) {
-            listener.onDisconnected(statusCode, reason);
-        }
-    }
-
-    private void fireError(Throwable error) {
-        for (SocketChatListener listener : listeners) {
-            listener.onError(error);
-        }
+    static boolean isNickInUseWarning(String warnText) {
+        String t = warnText == null ? "" : warnText.toLowerCase();
+        return (t.contains("nick") || t.contains("name"))
+                && (t.contains("in use") || t.contains("already") || t.contains("taken") || t.contains("registered"));
     }
 
-    private static String sanitizeNick(String nick) {
+    static String sanitizeNick(String nick) {
         String raw = nick == null ? "" : nick.trim();
         if (raw.isEmpty()) {
             return "Player";
@@ -343,7 +658,7 @@ public final class SocketChat implements WebSocket.Listener {
         return sb.toString();
     }
 
-    private static String buildNick(String baseNick, int retryCount) {
+    static String buildNick(String baseNick, int retryCount) {
         String base = sanitizeNick(baseNick);
         if (retryCount <= 0) {
             return base.length() > MAX_NICK_LEN ? base.substring(0, MAX_NICK_LEN) : base;
@@ -15,4 +15,10 @@ public interface SocketChatListener {
 
     default void onError(Throwable error) {
     }
+
+    default void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    default void onReconnected(int attempts) {
+    }
 }
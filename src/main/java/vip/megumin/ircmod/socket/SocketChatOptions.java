@@ -0,0 +1,50 @@
+package vip.megumin.ircmod.socket;
+
+import java.net.http.HttpClient;
+import java.util.concurrent.Executor;
+import javax.net.ssl.SSLContext;
+
+/**
+ * @author haipi
+ */
+
+public final class SocketChatOptions {
+    public HttpClient httpClient;
+    /**
+     * Trust and key material for {@code ircs://}; {@code null} uses the JVM defaults.
+     */
+    public SSLContext sslContext;
+    public Executor dispatchExecutor;
+    public int dispatchBacklogLimit = 256;
+    /**
+     * When above zero, every listener added with {@link SocketChat#addListener(SocketChatListener)} gets its own
+     * {@link ListenerQueue} of this size instead of sharing the dispatch lane.
+     */
+    public int listenerQueueCapacity = 0;
+    public ListenerQueue.Overflow listenerOverflow = ListenerQueue.Overflow.BACKPRESSURE;
+    public int maxPendingMessages = 64;
+    public OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    public boolean reconnect = true;
+    public long reconnectBaseDelayMillis = 1_000L;
+    public long reconnectMaxDelayMillis = 60_000L;
+    public long heartbeatIntervalMillis = 20_000L;
+    public int heartbeatMissedPongs = 2;
+    /**
+     * Messages requested from the socket at a time; more are asked for once half have arrived.
+     */
+    public int demandWindow = 16;
+    /**
+     * Longest incoming message, after joining fragments, that is decoded. Longer ones are dropped with a warning.
+     */
+    public int maxMessageChars = 128 * 1024;
+    /**
+     * Sustained chat send rate in payload characters per second; {@code 0} sends as fast as the socket allows.
+     */
+    public double sendRateCharsPerSecond = 0;
+    public int sendBurstChars = 4_000;
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        REJECT
+    }
+}
@@ -0,0 +1,64 @@
+package vip.megumin.ircmod.socket;
+
+import vip.megumin.ircmod.metrics.Counter;
+import vip.megumin.ircmod.metrics.Gauge;
+import vip.megumin.ircmod.metrics.Histogram;
+import vip.megumin.ircmod.metrics.Metrics;
+
+/**
+ * Socket metrics, summed over every {@link SocketChat}. Byte counts are UTF-8 sizes of the text payloads,
+ * without WebSocket framing.
+ *
+ * @author haipi
+ */
+
+public final class SocketMetrics {
+    public static final Counter FRAMES_IN = Metrics.counter("socket.framesIn", "Text messages received");
+    public static final Counter BYTES_IN = Metrics.counter("socket.bytesIn", "UTF-8 bytes of text received");
+    public static final Counter FRAMES_OUT = Metrics.counter("socket.framesOut", "Text messages sent");
+    public static final Counter BYTES_OUT = Metrics.counter("socket.bytesOut", "UTF-8 bytes of text sent");
+    public static final Histogram PARSE_NANOS = Metrics.histogram("socket.parseNanos",
+            "Time to decode one inbound payload, in nanoseconds");
+    public static final Gauge OUTBOUND_QUEUED = Metrics.gauge("socket.outboundQueued",
+            "Chat messages waiting to be sent");
+    public static final Counter OVERSIZED_DROPPED = Metrics.counter("socket.oversizedDropped",
+            "Incoming messages dropped for exceeding the size limit");
+    public static final Counter LISTENER_LAGGED = Metrics.counter("socket.listenerLagged",
+            "Events queued for a listener whose queue was over half full");
+    public static final Counter LISTENER_DROPPED = Metrics.counter("socket.listenerDropped",
+            "Events dropped because a listener's queue was full");
+    public static final Counter RECONNECT_ATTEMPTS = Metrics.counter("socket.reconnectAttempts",
+            "Reconnect attempts scheduled");
+    public static final Counter RECONNECTS = Metrics.counter("socket.reconnects",
+            "Connections restored after an outage");
+    public static final Counter RATE_LIMITED = Metrics.counter("socket.rateLimited",
+            "Rate-limit warnings received from the server");
+    public static final Counter NICK_RETRIES = Metrics.counter("socket.nickRetries",
+            "Joins retried with a suffixed nick because the nick was taken");
+
+    private SocketMetrics() {
+    }
+
+    /**
+     * UTF-8 length of {@code text} without encoding it.
+     */
+    static long utf8Length(CharSequence text) {
+        int length = text.length();
+        long bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes++;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+package vip.megumin.ircmod.socket;
+
+import java.lang.reflect.Method;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link HttpClient} and executor shared by every {@link SocketChat}, so extra channels do not bring their own
+ * selector thread and thread pool. With virtual threads enabled on a runtime that has them, the executor runs each
+ * task on its own virtual thread; otherwise it falls back to a cached pool of daemon threads.
+ *
+ * @author haipi
+ */
+
+public final class SocketRuntime {
+    private static final Object LOCK = new Object();
+    private static ExecutorService executor;
+    private static HttpClient httpClient;
+    private static boolean virtualThreads;
+    private static boolean usingVirtualThreads;
+
+    private SocketRuntime() {
+    }
+
+    public static HttpClient httpClient() {
+        synchronized (LOCK) {
+            if (httpClient == null) {
+                httpClient = HttpClient.newBuilder()
+                        .connectTimeout(Duration.ofSeconds(10))
+                        .executor(executor())
+                        .build();
+            }
+            return httpClient;
+        }
+    }
+
+    public static ExecutorService executor() {
+        synchronized (LOCK) {
+            if (executor == null) {
+                executor = virtualThreads ? newVirtualThreadExecutor() : null;
+                usingVirtualThreads = executor != null;
+                if (executor == null) {
+                    AtomicInteger counter = new AtomicInteger();
+                    executor = Executors.newCachedThreadPool(r -> {
+                        Thread thread = new Thread(r, "IRCMod-IO-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+            return executor;
+        }
+    }
+
+    public static void setVirtualThreads(boolean enabled) {
+        synchronized (LOCK) {
+            if (virtualThreads == enabled) {
+                return;
+            }
+            virtualThreads = enabled;
+            if (executor != null && usingVirtualThreads != enabled) {
+                executor = null;
+                httpClient = null;
+            }
+        }
+    }
+
+    public static boolean isUsingVirtualThreads() {
+        synchronized (LOCK) {
+            return usingVirtualThreads;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Throwable ignored) {
+            return null;
+        }
+    }
+}
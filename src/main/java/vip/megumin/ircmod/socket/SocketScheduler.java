@@ -0,0 +1,29 @@
+package vip.megumin.ircmod.socket;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * One daemon timer thread shared by every {@link SocketChat} for reconnects and other delayed work.
+ *
+ * @author haipi
+ */
+
+final class SocketScheduler {
+    private static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "IRCMod-Scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private SocketScheduler() {
+    }
+
+    static ScheduledExecutorService get() {
+        return SCHEDULER;
+    }
+}
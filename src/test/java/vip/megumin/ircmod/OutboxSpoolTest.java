@@ -0,0 +1,234 @@
+package vip.megumin.ircmod;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link OutboxSpool} has to give back exactly the messages that were never sent, across restarts and torn writes,
+ * and must not lose one to a failed send.
+ *
+ * @author haipi
+ */
+
+class OutboxSpoolTest {
+    private static final String KEY = "wss://hack.chat/chat-ws|mc-irc-mod";
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void survivesRestartInOrder() throws Exception {
+        OutboxSpool spool = open(10);
+        spool.offer(KEY, "first");
+        spool.offer(KEY, "second \u00e9\u3042");
+        spool.offer("other", "elsewhere");
+        spool.close();
+
+        spool = open(10);
+        assertEquals(3, spool.size());
+        assertEquals(List.of("first", "second \u00e9\u3042"), drainAll(spool, KEY));
+        assertEquals(List.of("elsewhere"), drainAll(spool, "other"));
+        spool.close();
+
+        spool = open(10);
+        assertEquals(0, spool.size(), "acked messages came back");
+        spool.close();
+    }
+
+    @Test
+    void duplicatesAndCapacity() throws Exception {
+        OutboxSpool spool = open(2);
+        assertEquals(OutboxSpool.Result.SPOOLED, spool.offer(KEY, "hi"));
+        assertEquals(OutboxSpool.Result.DUPLICATE, spool.offer(KEY, "hi"));
+        assertEquals(OutboxSpool.Result.SPOOLED, spool.offer("other", "hi"));
+        assertEquals(OutboxSpool.Result.FULL, spool.offer(KEY, "again"));
+        assertEquals(1, spool.pending(KEY));
+        spool.close();
+    }
+
+    @Test
+    void tornTailIsCutOff() throws Exception {
+        OutboxSpool spool = open(10);
+        spool.offer(KEY, "one");
+        spool.offer(KEY, "two");
+        spool.close();
+        byte[] next = add(99, System.currentTimeMillis(), KEY, "three");
+        Files.write(log(), Arrays.copyOf(next, next.length - 3), StandardOpenOption.APPEND);
+
+        spool = open(10);
+        assertEquals(2, spool.size());
+        spool.offer(KEY, "four");
+        spool.close();
+
+        spool = open(10);
+        assertEquals(List.of("one", "two", "four"), drainAll(spool, KEY));
+        spool.close();
+    }
+
+    @Test
+    void corruptRecordEndsReplay() throws Exception {
+        long now = System.currentTimeMillis();
+        byte[] second = add(2, now, KEY, "two");
+        second[second.length - 1] ^= 0x20;
+        write(add(1, now, KEY, "one"), second, add(3, now, KEY, "three"));
+
+        OutboxSpool spool = open(10);
+        assertEquals(List.of("one"), drainAll(spool, KEY));
+        spool.close();
+    }
+
+    @Test
+    void readsHandWrittenAddAndAckRecords() throws Exception {
+        long now = System.currentTimeMillis();
+        write(add(1, now, KEY, "one"), add(2, now, KEY, "two"), ack(1), add(3, now, KEY, "three"));
+
+        OutboxSpool spool = open(10);
+        assertEquals(List.of("two", "three"), drainAll(spool, KEY));
+        spool.close();
+    }
+
+    @Test
+    void expiredMessagesAreDroppedOnLoad() throws Exception {
+        long now = System.currentTimeMillis();
+        write(add(1, now - 2 * TTL, KEY, "stale"), add(2, now, KEY, "fresh"));
+
+        OutboxSpool spool = open(10);
+        assertEquals(List.of("fresh"), drainAll(spool, KEY));
+        spool.close();
+    }
+
+    @Test
+    void loadCompactsToLiveMessages() throws Exception {
+        OutboxSpool spool = open(200);
+        for (int i = 0; i < 100; i++) {
+            spool.offer(KEY, "m" + i);
+        }
+        spool.offer("other", "kept");
+        assertEquals(100, drainAll(spool, KEY).size());
+        spool.close();
+
+        open(200).close();
+        assertEquals(add(1, 0, "other", "kept").length, Files.size(log()));
+        spool = open(200);
+        assertEquals(List.of("kept"), drainAll(spool, "other"));
+        spool.close();
+    }
+
+    @Test
+    void sendsInBatchesThatFitTheQueue() throws Exception {
+        OutboxSpool spool = open(10);
+        for (int i = 0; i < 5; i++) {
+            spool.offer(KEY, "m" + i);
+        }
+        List<String> texts = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<Void>> sends = new CopyOnWriteArrayList<>();
+        spool.drain(KEY, () -> 2, text -> {
+            CompletableFuture<Void> sent = new CompletableFuture<>();
+            texts.add(text);
+            sends.add(sent);
+            return sent;
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of("m0", "m1"), texts);
+        sends.get(0).complete(null);
+        sends.get(1).complete(null);
+        awaitSends(sends, 4);
+        assertEquals(List.of("m0", "m1", "m2", "m3"), texts);
+        sends.get(2).complete(null);
+        sends.get(3).completeExceptionally(new IOException("closed"));
+        Thread.sleep(100);
+        assertEquals(4, texts.size(), "kept sending after a failure");
+        assertEquals(2, spool.pending(KEY));
+        spool.close();
+
+        spool = open(10);
+        assertEquals(List.of("m3", "m4"), drainAll(spool, KEY));
+        spool.close();
+    }
+
+    private OutboxSpool open(int capacity) throws Exception {
+        OutboxSpool spool = new OutboxSpool(dir, capacity, TTL);
+        // queued behind the load on the spool's thread
+        spool.drain("", () -> 1, text -> CompletableFuture.completedFuture(null)).get(5, TimeUnit.SECONDS);
+        return spool;
+    }
+
+    private static List<String> drainAll(OutboxSpool spool, String key) throws Exception {
+        List<String> sent = new CopyOnWriteArrayList<>();
+        spool.drain(key, () -> 4, text -> {
+            sent.add(text);
+            return CompletableFuture.completedFuture(null);
+        }).get(5, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (spool.pending(key) > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, spool.pending(key));
+        return new ArrayList<>(sent);
+    }
+
+    private static void awaitSends(List<?> sends, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sends.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(sends.size() >= count, "next batch was not sent");
+    }
+
+    private Path log() {
+        return dir.resolve("outbox.log");
+    }
+
+    private void write(byte[]... records) throws IOException {
+        int length = 0;
+        for (byte[] record : records) {
+            length += record.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        for (byte[] record : records) {
+            out.put(record);
+        }
+        Files.write(log(), out.array());
+    }
+
+    private static byte[] add(long id, long createdAt, String key, String text) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 2 * Long.BYTES + 2 * Integer.BYTES + k.length + t.length);
+        payload.put((byte) 1).putLong(id).putLong(createdAt);
+        payload.putInt(k.length).put(k);
+        payload.putInt(t.length).put(t);
+        return frame(payload.array());
+    }
+
+    private static byte[] ack(long id) {
+        return frame(ByteBuffer.allocate(1 + Long.BYTES).put((byte) 2).putLong(id).array());
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(2 * Integer.BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+}
@@ -0,0 +1,188 @@
+package vip.megumin.ircmod.history;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link HistoryLog} has to read back exactly what was appended, newest first, across segment rollovers, restarts and
+ * a write that was cut off halfway.
+ *
+ * @author haipi
+ */
+
+class HistoryLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripNewestFirst() throws Exception {
+        List<HistoryRecord> records = List.of(
+                new HistoryRecord(1L, "mc-irc-mod", "Steve", "hello"),
+                new HistoryRecord(2L, "mc-irc-mod", "Alex", "\u00e9\u3042 \ud83d\ude00"),
+                new HistoryRecord(3L, "mc-irc-mod", "", ""));
+        HistoryLog log = open(8);
+        records.forEach(log::append);
+
+        assertEquals(reversed(records), readAll(log, null));
+        log.close();
+        log = open(8);
+        assertEquals(reversed(records), readAll(log, null));
+        log.close();
+    }
+
+    @Test
+    void rollsOverSegmentsAndPagesBack() throws Exception {
+        List<HistoryRecord> records = records(400, i -> "chan");
+        HistoryLog log = open(64);
+        records.forEach(log::append);
+
+        assertEquals(reversed(records), readAll(log, null));
+        assertTrue(count(".log") > 1, "never rolled over");
+        assertEquals(count(".log") - 1, count(".terms"), "every sealed segment has a terms file");
+        log.close();
+        log = open(64);
+        assertEquals(reversed(records), readAll(log, null));
+        log.close();
+    }
+
+    @Test
+    void dropsOldestSegments() throws Exception {
+        HistoryLog log = open(2);
+        records(400, i -> "chan").forEach(log::append);
+
+        List<HistoryRecord> kept = readAll(log, null);
+        assertEquals(399L, kept.get(0).timestamp());
+        assertTrue(kept.size() < 400, "nothing was dropped");
+        assertTrue(count(".log") <= 2, "too many segments kept");
+        log.close();
+    }
+
+    @Test
+    void cutOffWriteIsDroppedOnReopen() throws Exception {
+        List<HistoryRecord> records = records(10, i -> "chan");
+        HistoryLog log = open(8);
+        records.forEach(log::append);
+        readAll(log, null);
+        log.close();
+        Path active = dir.resolve("history-1.log");
+        try (FileChannel file = FileChannel.open(active, StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 5);
+        }
+
+        log = open(8);
+        assertEquals(reversed(records.subList(0, 9)), readAll(log, null));
+        HistoryRecord next = new HistoryRecord(10L, "chan", "Steve", "after the cut");
+        log.append(next);
+        List<HistoryRecord> expected = new ArrayList<>(records.subList(0, 9));
+        expected.add(next);
+        assertEquals(reversed(expected), readAll(log, null));
+        log.close();
+
+        log = open(8);
+        assertEquals(reversed(expected), readAll(log, null));
+        assertEquals(List.of(next), log.search(SearchQuery.parse("cut", 0L), null, 10).get(5, TimeUnit.SECONDS)
+                .records());
+        log.close();
+    }
+
+    @Test
+    void channelReplayCrossesSegments() throws Exception {
+        List<HistoryRecord> records = records(400, i -> i % 37 == 0 ? "Quiet" : "busy");
+        HistoryLog log = open(64);
+        records.forEach(log::append);
+
+        List<HistoryRecord> quiet = new ArrayList<>();
+        for (HistoryRecord record : records) {
+            if (record.channel().equals("Quiet")) {
+                quiet.add(record);
+            }
+        }
+        assertEquals(reversed(quiet), readAll(log, "quiet"));
+        assertEquals(List.of(), readAll(log, "nobody"));
+        log.close();
+    }
+
+    @Test
+    void staleTermsFilesAreRebuilt() throws Exception {
+        List<HistoryRecord> records = records(400, i -> "chan");
+        records.set(3, new HistoryRecord(3L, "chan", "Steve", "needle \u4f60\u597d\u4e16\u754c"));
+        HistoryLog log = open(64);
+        records.forEach(log::append);
+        readAll(log, null);
+        log.close();
+        try (DirectoryStream<Path> terms = Files.newDirectoryStream(dir, "*.terms")) {
+            for (Path path : terms) {
+                Files.write(path, new byte[]{'I', 'R', 'C', 'T', 0, 0, 0, 0});
+            }
+        }
+
+        log = open(64);
+        List<HistoryRecord> expected = List.of(records.get(3));
+        assertEquals(expected, log.search(SearchQuery.parse("needle", 0L), null, 10).get(5, TimeUnit.SECONDS)
+                .records());
+        assertEquals(expected, log.search(SearchQuery.parse("\u597d", 0L), null, 10).get(5, TimeUnit.SECONDS)
+                .records());
+        try (DirectoryStream<Path> terms = Files.newDirectoryStream(dir, "*.terms")) {
+            for (Path path : terms) {
+                assertTrue(Files.size(path) > 8, path + " was not rebuilt");
+            }
+        }
+        log.close();
+    }
+
+    private HistoryLog open(int maxSegments) {
+        return new HistoryLog(dir, SEGMENT_BYTES, maxSegments, 1024);
+    }
+
+    private static List<HistoryRecord> readAll(HistoryLog log, String channel) throws Exception {
+        List<HistoryRecord> out = new ArrayList<>();
+        HistoryPage page = log.readRecent(channel, 7).get(5, TimeUnit.SECONDS);
+        while (true) {
+            out.addAll(page.records());
+            if (page.next() == null) {
+                return out;
+            }
+            page = log.readBefore(page.next(), channel, 7).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static List<HistoryRecord> records(int count, IntFunction<String> channel) {
+        List<HistoryRecord> out = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            out.add(new HistoryRecord(i, channel.apply(i), "nick" + (i % 5), "message number " + i));
+        }
+        return out;
+    }
+
+    private static List<HistoryRecord> reversed(List<HistoryRecord> records) {
+        List<HistoryRecord> out = new ArrayList<>(records);
+        Collections.reverse(out);
+        return out;
+    }
+
+    private int count(String suffix) throws IOException {
+        int n = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "history-*" + suffix)) {
+            for (Path ignored : files) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,90 @@
+package vip.megumin.ircmod.history;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A sealed {@code .terms} file has to give back the same postings the in-memory table held, whatever the term bytes
+ * and however far apart the record numbers are.
+ *
+ * @author haipi
+ */
+
+class SearchIndexTest {
+    private static final String PREFIX = "history-";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void postingsSurviveSealing() throws Exception {
+        int[] ids = {0, 1, 127, 128, 300, 16_383, 16_384, 2_000_000};
+        SearchIndex index = new SearchIndex(dir, PREFIX);
+        for (int id : ids) {
+            index.add(id, new HistoryRecord(id, "Chan", "Steve", "shared word " + id));
+        }
+        index.add(2_000_001, new HistoryRecord(5L, "other", "Alex", "alone"));
+        assertArrayEquals(ids, index.postings(1L, true, "shared"));
+
+        index.seal(1L);
+        assertTrue(index.hasTerms(1L));
+        assertArrayEquals(ids, index.postings(1L, false, "shared"));
+        assertArrayEquals(ids, index.postings(1L, false, Tokenizer.channelTerm("chan")));
+        assertArrayEquals(ids, index.postings(1L, false, Tokenizer.nickTerm("STEVE")));
+        assertArrayEquals(new int[]{2_000_001}, index.postings(1L, false, "alone"));
+        assertArrayEquals(new int[0], index.postings(1L, true, "shared"), "active table was not reset");
+    }
+
+    @Test
+    void findsEveryTermInALargeTable() throws Exception {
+        SearchIndex index = new SearchIndex(dir, PREFIX);
+        String[] words = new String[600];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = switch (i % 3) {
+                case 0 -> "w" + i;
+                case 1 -> "\u00e9t\u00e9" + i;
+                default -> "z".repeat(1 + i % 29) + i;
+            };
+            index.add(i, new HistoryRecord(i, "chan", "nick", words[i]));
+        }
+        index.seal(2L);
+        SearchIndex reopened = new SearchIndex(dir, PREFIX);
+        for (int i = 0; i < words.length; i++) {
+            assertArrayEquals(new int[]{i}, reopened.postings(2L, false, words[i]), words[i]);
+        }
+        for (String missing : new String[]{"", "a", "w", "w600", "\u00e9t\u00e9", "z".repeat(32)}) {
+            assertArrayEquals(new int[0], reopened.postings(2L, false, missing), missing);
+        }
+    }
+
+    @Test
+    void timeRangeOfSealedSegment() throws Exception {
+        SearchIndex index = new SearchIndex(dir, PREFIX);
+        index.add(0, new HistoryRecord(1_000L, "chan", "nick", "a"));
+        index.add(1, new HistoryRecord(5_000L, "chan", "nick", "b"));
+        assertTrue(index.overlaps(3L, true, 4_000L, 9_000L));
+        index.seal(3L);
+        assertFalse(index.overlaps(3L, true, Long.MIN_VALUE, Long.MAX_VALUE), "empty active table");
+        assertTrue(index.overlaps(3L, false, 5_000L, 6_000L));
+        assertTrue(index.overlaps(3L, false, 0L, 1_000L));
+        assertFalse(index.overlaps(3L, false, 5_001L, 9_000L));
+        assertFalse(index.overlaps(3L, false, 0L, 999L));
+    }
+
+    @Test
+    void missingOrForeignFileMeansScan() throws Exception {
+        SearchIndex index = new SearchIndex(dir, PREFIX);
+        assertFalse(index.hasTerms(4L));
+        assertNull(index.postings(4L, false, "word"));
+        Files.write(dir.resolve(PREFIX + 4 + SearchIndex.SUFFIX), new byte[]{'I', 'R', 'C', 'T', 0, 0, 0, 0});
+        assertFalse(index.hasTerms(4L));
+        assertNull(index.postings(4L, false, "word"));
+    }
+}
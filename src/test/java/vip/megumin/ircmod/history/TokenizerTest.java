@@ -0,0 +1,56 @@
+package vip.megumin.ircmod.history;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Search terms are what both the index and the query go through, so a query can only match if its terms are a subset
+ * of the terms of the text it should find.
+ *
+ * @author haipi
+ */
+
+class TokenizerTest {
+    @Test
+    void wordsAreLowerCasedAndSplit() {
+        assertTerms("Hello, WORLD! foo_bar 42x", "hello", "world", "foo", "bar", "42x");
+        assertTerms("  ");
+        assertTerms(null);
+        assertTerms("a".repeat(40), "a".repeat(32));
+        assertTerms("\u00c9T\u00c9 \u00e9t\u00e9", "\u00e9t\u00e9");
+    }
+
+    @Test
+    void cjkRunsGetSingleCharactersAndBigrams() {
+        assertTerms("\u4f60\u597d\u4e16\u754c",
+                "\u4f60", "\u4f60\u597d", "\u597d", "\u597d\u4e16", "\u4e16", "\u4e16\u754c", "\u754c");
+        assertTerms("\u597d", "\u597d");
+        assertTerms("abc\u4f60\u597ddef", "abc", "\u4f60", "\u4f60\u597d", "\u597d", "def");
+        assertTerms("\ud55c\uad6d", "\ud55c", "\ud55c\uad6d", "\uad6d");
+        assertTerms("\ud840\udc00\ud840\udc01",
+                "\ud840\udc00", "\ud840\udc00\ud840\udc01", "\ud840\udc01");
+    }
+
+    @Test
+    void cjkQueriesMatchInsideLongerRuns() {
+        Set<String> indexed = Tokenizer.terms("\u4eca\u5929\u4f60\u597d\u4e16\u754c");
+        for (String query : new String[]{"\u597d", "\u4f60\u597d", "\u4f60\u597d\u4e16", "\u4eca\u5929"}) {
+            assertTrue(indexed.containsAll(Tokenizer.terms(query)), query);
+        }
+    }
+
+    @Test
+    void nickAndChannelTerms() {
+        assertEquals("n:steve", Tokenizer.nickTerm("Steve"));
+        assertEquals("n:", Tokenizer.nickTerm(null));
+        assertEquals("c:mc-irc-mod", Tokenizer.channelTerm("MC-IRC-Mod"));
+    }
+
+    private static void assertTerms(String text, String... expected) {
+        assertEquals(List.of(expected), List.copyOf(Tokenizer.terms(text)), () -> "terms of " + text);
+    }
+}
@@ -0,0 +1,117 @@
+package vip.megumin.ircmod.socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link FrameEncoder} has to produce exactly what the Gson trees it replaced did: {@code JsonObject.toString()},
+ * which is {@code Gson.toJson} without HTML escaping.
+ *
+ * @author haipi
+ */
+
+class FrameEncoderTest {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final String SPECIAL = "\"\\/<>&='\u2028\u2029\u007f\u0080\u00e9\u3042\ud83d\ude00";
+    private static final long SEED = 0x1a2b3c4dL;
+
+    private final FrameEncoder encoder = new FrameEncoder();
+
+    @Test
+    void controlCharacters() {
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            assertChat(String.valueOf(c));
+            all.append('a').append(c);
+        }
+        assertChat(all.toString());
+    }
+
+    @Test
+    void surrogates() {
+        assertChat("\ud83d\ude00");
+        assertChat("\ud83d");
+        assertChat("\ude00");
+        assertChat("x\ude00\ud83d y");
+        assertChat("\ud83d\ud83d\ude00\ude00");
+    }
+
+    @Test
+    void htmlSensitiveAndLineSeparators() {
+        assertChat("<b>&amp;</b> a=b 'quoted'");
+        assertChat("\u2028\u2029");
+        assertChat("line\u2028break\u2029para");
+        assertChat("\"\\/");
+    }
+
+    @Test
+    void joinFrames() {
+        assertJoin("mc-irc-mod", "Steve", null);
+        assertJoin("mc-irc-mod", "Steve", "");
+        assertJoin("c\u2028h", "<nick>", "p\"w\\d\u0001");
+    }
+
+    @Test
+    void fuzzedStrings() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < 20_000; i++) {
+            assertChat(randomString(random));
+            assertJoin(randomString(random), randomString(random), random.nextBoolean() ? randomString(random) : null);
+        }
+    }
+
+    private void assertChat(String text) {
+        JsonObject chat = new JsonObject();
+        chat.addProperty("cmd", "chat");
+        chat.addProperty("text", text);
+        assertFrame(chat, encoder.chat(text), text);
+    }
+
+    private void assertJoin(String channel, String nick, String password) {
+        JsonObject join = new JsonObject();
+        join.addProperty("cmd", "join");
+        join.addProperty("channel", channel);
+        join.addProperty("nick", nick);
+        if (password != null && !password.isEmpty()) {
+            join.addProperty("password", password);
+        }
+        assertFrame(join, encoder.join(channel, nick, password), channel + "|" + nick + "|" + password);
+    }
+
+    private static void assertFrame(JsonObject expected, String actual, String input) {
+        assertEquals(GSON.toJson(expected), actual, () -> "Gson.toJson mismatch for " + escape(input));
+        assertEquals(expected.toString(), actual, () -> "JsonObject.toString mismatch for " + escape(input));
+    }
+
+    private static String randomString(Random random) {
+        int length = random.nextInt(24);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0 -> text.append((char) random.nextInt(0x20));
+                case 1 -> text.append(SPECIAL.charAt(random.nextInt(SPECIAL.length())));
+                case 2 -> text.append((char) (0xd800 + random.nextInt(0x800)));
+                default -> text.append((char) random.nextInt(0x10000));
+            }
+        }
+        return text.toString();
+    }
+
+    private static String escape(String input) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}